@@ -0,0 +1,118 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Decides how much audio the mixer keeps queued in the output line, between a floor and a
+ * ceiling set in the config.
+ *
+ * The line is opened big enough for the ceiling, and the mixer holds each block back until
+ * the line has drained to the target, so the target is the latency we actually run at and it
+ * can move without reopening the line. Every underrun puts the target up a block. After
+ * SHRINK_AFTER_SECONDS without one it comes back down a block, towards the floor. On a fast
+ * machine that settles at the floor; on a slow one it finds the smallest size that holds.
+ *
+ * The audio thread notes what happened in a small preallocated ring, with the wall clock time;
+ * nextEvent() turns those into log lines on whichever thread reads them.
+ */
+public class AdaptiveBuffer {
+
+	static final int SHRINK_AFTER_SECONDS = 60;
+	static final int EVENTS = 64;
+
+	// event kinds
+	public static final int UNDERRUN = 1;
+	public static final int STALL = 2;
+	public static final int GROW = 3;
+	public static final int SHRINK = 4;
+
+	public final int minBlocks, maxBlocks;
+	final int shrinkAfter;
+	volatile int targetBlocks;
+	// audio thread only
+	int cleanBlocks = 0;
+
+	final long[] eventTimes = new long[EVENTS];
+	final int[] eventKinds = new int[EVENTS];
+	final int[] eventBlocks = new int[EVENTS];
+	volatile long eventsWritten = 0;
+	long eventsRead = 0;
+	SimpleDateFormat stamp = new SimpleDateFormat("HH:mm:ss.SSS");
+
+	public AdaptiveBuffer(int minBlocks, int maxBlocks, int startBlocks) {
+		this.minBlocks = Math.max(2, minBlocks);
+		this.maxBlocks = Math.max(this.minBlocks, maxBlocks);
+		targetBlocks = Math.max(this.minBlocks, Math.min(this.maxBlocks, startBlocks));
+		shrinkAfter = SHRINK_AFTER_SECONDS * MasterMixer.SAMPLE_RATE / MasterMixer.BLOCK_FRAMES;
+	}
+
+	public int getTargetBlocks() {
+		return targetBlocks;
+	}
+
+	public float getTargetMillis() {
+		return targetBlocks * MasterMixer.BLOCK_FRAMES * 1000f / MasterMixer.SAMPLE_RATE;
+	}
+
+	// Audio thread: the line ran dry (UNDERRUN) or wouldn't take a block for too long (STALL)
+	void trouble(int kind) {
+		event(kind, targetBlocks);
+		cleanBlocks = 0;
+		if (targetBlocks < maxBlocks) {
+			targetBlocks++;
+			event(GROW, targetBlocks);
+		}
+	}
+
+	// Audio thread: a block went out on time
+	void clean() {
+		if (++cleanBlocks >= shrinkAfter) {
+			cleanBlocks = 0;
+			if (targetBlocks > minBlocks) {
+				targetBlocks--;
+				event(SHRINK, targetBlocks);
+			}
+		}
+	}
+
+	void event(int kind, int blocks) {
+		long w = eventsWritten;
+		int i = (int) (w % EVENTS);
+		eventTimes[i] = System.currentTimeMillis();
+		eventKinds[i] = kind;
+		eventBlocks[i] = blocks;
+		eventsWritten = w + 1;
+	}
+
+	/**
+	 * The oldest event not yet read, as a log line, or null if there isn't one. One reader
+	 * only. If the reader has fallen a whole ring behind, the oldest events are skipped.
+	 */
+	public String nextEvent() {
+		long w = eventsWritten;
+		if (eventsRead >= w) {
+			return null;
+		}
+		if (w - eventsRead > EVENTS) {
+			eventsRead = w - EVENTS;
+		}
+		int i = (int) (eventsRead++ % EVENTS);
+		String what;
+		switch (eventKinds[i]) {
+		case UNDERRUN:
+			what = "underrun";
+			break;
+		case STALL:
+			what = "output stalled";
+			break;
+		case GROW:
+			what = "buffer up to";
+			break;
+		default:
+			what = "buffer down to";
+			break;
+		}
+		float ms = eventBlocks[i] * MasterMixer.BLOCK_FRAMES * 1000f / MasterMixer.SAMPLE_RATE;
+		return "[Audio] " + stamp.format(new Date(eventTimes[i])) + " " + what + " " + eventBlocks[i] + " blocks ("
+				+ Math.round(ms) + "ms)";
+	}
+}
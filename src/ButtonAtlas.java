@@ -0,0 +1,107 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Every ControlButton image, decoded once at startup and packed into one sheet.
+ *
+ * Each image goes on the sheet twice, side by side: as drawn, and dimmed the way ControlButton
+ * shows an idle button (the old tint(255,180)). A Frame is just where those two sit, and
+ * drawing one draws that rectangle of the sheet, so the renderer keeps a single image for every
+ * button and nothing is copied out of it. Buttons just swap Frame references when they change
+ * state - no loadImage(), no PNG decoding and no tint() on the event thread, and since the dim
+ * copies are baked, Java2D never has to re-tint an image between draws.
+ */
+public class ButtonAtlas {
+
+	// same alpha ControlButton used to tint idle buttons with
+	static final int DIM_ALPHA = 180;
+	static final int SHEET_WIDTH = 1024;
+
+	public class Frame {
+		public final String name;
+		// where it is on the sheet; the dimmed copy is straight to the right
+		final int x, y;
+		public final int width, height;
+
+		Frame(String name, int x, int y, int width, int height) {
+			this.name = name;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		public void draw(PApplet p, float px, float py, boolean dim) {
+			int u = dim ? x + width : x;
+			p.image(sheet, px, py, width, height, u, y, u + width, y + height);
+		}
+	}
+
+	public PImage sheet;
+	Map<String, Frame> frames = new HashMap<String, Frame>();
+
+	public ButtonAtlas(PApplet p, String[] names) {
+		PImage[] images = new PImage[names.length];
+		int[] xs = new int[names.length];
+		int[] ys = new int[names.length];
+
+		// simple shelf packing: left to right, new shelf when the row's full
+		int x = 0, y = 0, shelf = 0, sheetW = 1;
+		for (int i = 0; i < names.length; i++) {
+			images[i] = p.loadImage(names[i]);
+			if (images[i] == null) {
+				System.err.println("ButtonAtlas: couldn't load " + names[i] + ", using a blank frame");
+				images[i] = p.createImage(1, 1, PConstants.ARGB);
+			}
+			// room for the normal and the dimmed copy
+			int w = images[i].width * 2;
+			if (x > 0 && x + w > SHEET_WIDTH) {
+				x = 0;
+				y += shelf;
+				shelf = 0;
+			}
+			xs[i] = x;
+			ys[i] = y;
+			x += w;
+			shelf = Math.max(shelf, images[i].height);
+			sheetW = Math.max(sheetW, x);
+		}
+
+		sheet = p.createImage(sheetW, Math.max(1, y + shelf), PConstants.ARGB);
+		sheet.loadPixels();
+		for (int i = 0; i < names.length; i++) {
+			PImage img = images[i];
+			img.loadPixels();
+			// PNGs without an alpha channel come in as RGB - make them solid on the sheet
+			int solid = img.format == PConstants.ARGB ? 0 : 0xFF000000;
+			for (int row = 0; row < img.height; row++) {
+				int src = row * img.width;
+				int dst = (ys[i] + row) * sheet.width + xs[i];
+				for (int col = 0; col < img.width; col++) {
+					int c = img.pixels[src + col] | solid;
+					sheet.pixels[dst + col] = c;
+					sheet.pixels[dst + img.width + col] = dimmed(c);
+				}
+			}
+			frames.put(names[i], new Frame(names[i], xs[i], ys[i], img.width, img.height));
+		}
+		sheet.updatePixels();
+	}
+
+	static int dimmed(int c) {
+		int a = (c >>> 24) * DIM_ALPHA / 255;
+		return (a << 24) | (c & 0xFFFFFF);
+	}
+
+	public Frame get(String name) {
+		Frame f = frames.get(name);
+		if (f == null) {
+			throw new IllegalArgumentException("ButtonAtlas: " + name + " isn't in the atlas");
+		}
+		return f;
+	}
+}
@@ -3,6 +3,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import processing.core.*;
 import sojamo.drop.*;
@@ -11,7 +15,6 @@ import java.util.Properties;
 
 import themidibus.*;
 import crayolon.portamod.*;
-import org.apache.commons.lang3.StringEscapeUtils;
 
 
 /**
@@ -168,9 +171,49 @@ public class Chipdisco6 extends PApplet {
 	boolean channelbars = true, channelbarsB = true, foundprops = false, keydown = false;
 	Properties props;
 	Properties midiprops;
-	PortaMod deckA, deckB;	
+	// volatile since a standby deck can be swapped in from the MIDI thread
+	volatile PortaMod deckA, deckB;	
+	MasterMixer mixer;
+	StandbyDeck[] standby = new StandbyDeck[2];
+	// async loads waiting to be swapped in by draw(), and what to do when they are
+	ModLoad[] loading = new ModLoad[2];
+	boolean[] loadAutostart = new boolean[2];
+	int[] loadListpos = new int[2];
+	final Object loadLock = new Object();
+	// loadStage()
+	static final int LOAD_NONE = -1;
+	static final int LOAD_QUEUED = 0;
+	static final int LOAD_RUNNING = 1;
+	ModuleIndex moduleIndex;
+	ModuleAnalyser analyser;
+	// everything under deckAdir/deckBdir, searchable from the box between the playlists
+	MusicLibrary library;
+	// picks up tunes copied into (or taken out of) deckAdir/deckBdir mid-set
+	FolderWatcher watcher;
+	// streams m3u/pls files into the playlists
+	PlaylistImporter importer;
+	List<List<String>> imported = new ArrayList<List<String>>();
+	// modules dropped or chosen on other threads, added to the playlists in draw() like imports
+	ConcurrentLinkedQueue<PlaylistImporter.Entry> added = new ConcurrentLinkedQueue<PlaylistImporter.Entry>();
+	Group librarygroup;
+	Textfield librarySearch;
+	// what the library was last searched for, so typing searches again only when the text changes
+	String librarySearched = "";
+	Button libraryToA, libraryToB;
+	List<MusicLibrary.Track> libraryResults = new ArrayList<MusicLibrary.Track>();
+	static final int LIBRARY_RESULTS = 500;
 	ControlButton bpmgfxA, bpmgfxB, crossfadergfx, playbt, pausebt, cuebt, loopbt, emptybt, syncbt, incbpmbt, decbpmbt, mutebt, playbtB, pausebtB, cuebtB, 
 	loopbtB, emptybtB, syncbtB, incbpmbtB, decbpmbtB, mutebtB, volgfxA, volgfxB, transpgfx, transpgfxB, infodisplaygfx, infodisplaygfxB, playlistgfx;
+	// every ControlButton image, decoded once; the play button flips between the two icons
+	ButtonAtlas atlas;
+	ButtonAtlas.Frame iconPlaying, iconPaused;
+	// everything draw() shows as a ControlButton, in drawing order
+	ControlButton[] buttons;
+	// the static background, and the bits of it each deck's meters and song info are drawn over
+	DirtyRegions layers;
+	DirtyRegions.Region deckRegionA, deckRegionB;
+	// strip between the crossfader and the logo for the master spectrum
+	DirtyRegions.Region spectrumRegion;
 	
 	/*boolean joyselected = false;
 	ControllIO controll;
@@ -236,7 +279,17 @@ public class Chipdisco6 extends PApplet {
 	//skin vars Deck B end
 
 	int volumelocal = 48, volumelocalB = 48, crossbehaviour = 0, currentsong = 0, currentsongB = 0;
-	int loopcaught, loopstart, loopend, loopcaughtB, loopstartB, loopendB, totalrows, endcount = 0; 
+	int loopcaught, loopcaughtB, totalrows, endcount = 0; 
+	// what the loop engine was last told, per deck
+	boolean[] loopSent = new boolean[2];
+	int[] loopDivisionSent = new int[2];
+	int[] loopCaughtSent = new int[2];
+	int[] loopLengthSent = new int[2];
+	// loops of a set length in rows (F9-F12, the MIDI loop length knobs, the wheel over a loop
+	// button), or 0 for the 1/division segment loops
+	int[] loopLength = new int[2];
+	static final int LOOP_DEFAULT_ROWS = 16;
+	static final int MAX_LOOP_ROWS = 128;
 	float loopcount, loopcountB;
 	boolean tempoknoblock = false, tempoknoblockB = false,  transposeknoblock = false, transposeknoblockB = false;
 	boolean playing = false, muted = false, mutedB = false, shiftpressed = false, ctrlpressed = false, altpressed = false, loopcurrentsegment = false, loopcurrentsegmentB = false;	
@@ -258,7 +311,11 @@ public class Chipdisco6 extends PApplet {
 	boolean deckAcue = true, deckBcue = true; //always start in cue mix mode - headphones rather than FOH
 	int xcurveProp, midinoteProp, slicesProp, midiInput2Prop;
 	String deckAdir = "", deckBdir = "";
-	String selectedTuneA = "", selectedTuneB = "";
+	// what's in each deck's playlist - the ListBoxes only show it
+	Playlist playlistA = new Playlist(), playlistB = new Playlist();
+	PlaylistView playlistViewA, playlistViewB;
+	// the entry each deck last loaded from its playlist, by id
+	int[] playingEntry = { Playlist.NONE, Playlist.NONE };
 	int playlistposA = 0;
 	int playlistposB = 0;
 
@@ -268,7 +325,7 @@ public class Chipdisco6 extends PApplet {
 	boolean playingB = false;
 	String titleB = "";
 	int bpmvalueB = 0;
-	ListBox midi2, midi3, midi4, filemenu, playlistCP5_a, playlistCP5_b, crossfaderbehaviour, slicebehaviour, joysticklist;	
+	ListBox midi2, midi3, midi4, filemenu, crossfaderbehaviour, slicebehaviour, joysticklist;	
 	Slider volumesliderA, volumesliderB, crossfadeslider, temposliderA, temposliderB, translideA, translideB;	
 	//Slider cuevolumeslider;
 	Knob cuevolumeslider;
@@ -281,8 +338,27 @@ public class Chipdisco6 extends PApplet {
 	int slicetargetsB[] = new int[32];
 	int slicetriggerbehaviour = 1;
 	boolean cpuSaver;	
-	boolean deckAslavesync = false;
-	boolean deckBslavesync = false;
+	// spectrum updates per second, 0 for none. Never runs with cpuSaver on
+	int spectrumRate = 15;
+	SpectrumAnalyser spectrum;
+	// seconds between metrics dumps to the console, 0 for none (they're always on JMX)
+	int metricsLog = 0;
+
+	// HUD text under each deck, kept between frames and only rebuilt when what it shows changes
+	HudText[] statusText = { new HudText(96), new HudText(96) };
+	int[][] statusShown = new int[2][6];
+	HudText[] loadingText = { new HudText(16), new HudText(16) };
+	int[] loadingShown = { LOAD_NONE, LOAD_NONE };
+	String[][] instrumentSource = new String[2][];
+	String[][] instrumentCache = { new String[0], new String[0] };
+	static final String[] NO_MODULE = { "No module loaded" };
+	// deck output meters: the loudest recent peak stays up for a second, then falls away
+	float[] peakHold = new float[2];
+	int[] peakHeldAt = new int[2];
+	static final int PEAK_HOLD_FRAMES = 60;
+	static final float PEAK_FALL = 0.02f;
+	int syncboundary = SyncScheduler.PATTERN;
+	int syncsreported = 0;
 	
 	//Default MIDI mappings (Korg nanoKontrol)
 	int ccCrossfader=13;
@@ -309,6 +385,8 @@ public class Chipdisco6 extends PApplet {
 	int ccPattLoopTrigB=28;
 	int ccPattLoopTogA=25;
 	int ccPattLoopTogB=29;
+	int ccLoopLengthA=50;
+	int ccLoopLengthB=51;
 	int ccChanvolA1=2;
 	int ccChanvolA2=3;
 	int ccChanvolA3=4;
@@ -334,9 +412,22 @@ public class Chipdisco6 extends PApplet {
 		//deckA = new PortaModJava(this.getClass(), neA);
 		//deckB = new PortaModJava(this.getClass(), neB);
 		deckA = new PortaMod(this);
-		deckA.mono = 2;
 		deckB = new PortaMod(this);
-		deckB.mono = 2;
+		// Both decks are pulled by the one mixer - neither PortaMod ever opens its own line
+		mixer = new MasterMixer(deckA, deckB);
+		// spares that preload each deck's next playlist entry
+		standby[0] = new StandbyDeck(new PortaMod(this), "A");
+		standby[1] = new StandbyDeck(new PortaMod(this), "B");
+		// remembers which files passed headerCheck (and their song info) between runs
+		moduleIndex = new ModuleIndex(ModuleIndex.defaultFile());
+		moduleIndex.load();
+		// fills in playlist song info in the background
+		analyser = new ModuleAnalyser(this, moduleIndex);
+		library = new MusicLibrary(this, moduleIndex);
+		watcher = new FolderWatcher(this, moduleIndex, library);
+		importer = new PlaylistImporter(this, moduleIndex);
+		imported.add(new ArrayList<String>());
+		imported.add(new ArrayList<String>());
 		cdlogo = loadImage("logo.png");
 		credits = loadImage("credit.png");
 		for (int i=0; i < slicetargets.length; i++) {
@@ -364,15 +455,32 @@ public class Chipdisco6 extends PApplet {
 			midinoteProp = Integer.parseInt(props.getProperty("midiNote", "0"));
 			midiInput2Prop = Integer.parseInt(props.getProperty("midiInput2", "0"));
 			slicesProp = Integer.parseInt(props.getProperty("slices", "0"));	
+			syncboundary = Integer.parseInt(props.getProperty("syncBoundary", "2"));
+			mixer.sync.setRowsPerBeat(Integer.parseInt(props.getProperty("rowsPerBeat", "4")));
+			analyser.setRowsPerBeat(Integer.parseInt(props.getProperty("rowsPerBeat", "4")));
+			library.setRowsPerBeat(Integer.parseInt(props.getProperty("rowsPerBeat", "4")));
+			mixer.slices.setRowsPerBeat(Integer.parseInt(props.getProperty("rowsPerBeat", "4")));
+			mixer.slices.setQuantize(Integer.parseInt(props.getProperty("sliceQuantize", "0")));
 			if(Integer.parseInt(props.getProperty("cpuSaver", "0")) > 0) {
 				cpuSaver = true;
 			} else {
 				cpuSaver = false;
 			}
+			spectrumRate = Integer.parseInt(props.getProperty("spectrumRate", "15"));
+			metricsLog = Integer.parseInt(props.getProperty("metricsLog", "0"));
+			mixer.setLatencyBounds(Integer.parseInt(props.getProperty("minLatency", "43")),
+					Integer.parseInt(props.getProperty("maxLatency", "171")));
 			foundprops = true;
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
+		mixer.metrics.register();
+		mixer.metrics.start(metricsLog);
+		if (!cpuSaver && spectrumRate > 0) {
+			spectrum = new SpectrumAnalyser(spectrumRate);
+			mixer.setTap(spectrum.tap);
+			spectrum.start();
+		}
 		
 		try {
 			midiprops = new Properties();
@@ -402,6 +510,9 @@ public class Chipdisco6 extends PApplet {
 			ccPattLoopTrigB= Integer.parseInt(midiprops.getProperty("mccPattLoopTrigB"));
 			ccPattLoopTogA= Integer.parseInt(midiprops.getProperty("mccPattLoopTogA"));
 			ccPattLoopTogB= Integer.parseInt(midiprops.getProperty("mccPattLoopTogB"));
+			// newer than most midimap files, so these two can be left out
+			ccLoopLengthA= Integer.parseInt(midiprops.getProperty("mccLoopLengthA", "" + ccLoopLengthA));
+			ccLoopLengthB= Integer.parseInt(midiprops.getProperty("mccLoopLengthB", "" + ccLoopLengthB));
 			ccChanvolA1= Integer.parseInt(midiprops.getProperty("mccChanvolA1"));
 			ccChanvolA2= Integer.parseInt(midiprops.getProperty("mccChanvolA2"));
 			ccChanvolA3= Integer.parseInt(midiprops.getProperty("mccChanvolA3"));
@@ -567,10 +678,9 @@ public class Chipdisco6 extends PApplet {
 		listAremove.setColorCaptionLabel(1);
 		listAremove.setColorBackground(color(foregroundcol));
 		listAremove.setColorActive(foreshadecol);
-		listAremove.setPosition(3 + listAadd.getWidth(),0);
-		listAremove.setWidth(72);
+		listAremove.setPosition(6 + listAadd.getWidth(),0);
+		listAremove.setWidth(60);
 		listAremove.setHeight(24);	
-		listAremove.hide();
 		
 		listAloadm3u = controlp5.addButton("listAloadm3u", 0).setSwitch(false);
 		listAloadm3u.setGroup(plcontrolgroup);
@@ -580,8 +690,8 @@ public class Chipdisco6 extends PApplet {
 		listAloadm3u.setColorCaptionLabel(1);
 		listAloadm3u.setColorBackground(color(foregroundcol));
 		listAloadm3u.setColorActive(foreshadecol);
-		listAloadm3u.setPosition(9 + listAadd.getWidth(),0);
-		listAloadm3u.setWidth(93);
+		listAloadm3u.setPosition(9 + listAadd.getWidth() + listAremove.getWidth(),0);
+		listAloadm3u.setWidth(80);
 		listAloadm3u.setHeight(24);
 		
 		listAsavem3u = controlp5.addButton("listAsavem3u", 0).setSwitch(false);
@@ -592,8 +702,8 @@ public class Chipdisco6 extends PApplet {
 		listAsavem3u.setColorCaptionLabel(1);
 		listAsavem3u.setColorBackground(color(foregroundcol));
 		listAsavem3u.setColorActive(foreshadecol);
-		listAsavem3u.setPosition(18 + listAloadm3u.getWidth()+  listAadd.getWidth(), 0);
-		listAsavem3u.setWidth(93);
+		listAsavem3u.setPosition(12 + listAloadm3u.getWidth() + listAremove.getWidth() + listAadd.getWidth(), 0);
+		listAsavem3u.setWidth(80);
 		listAsavem3u.setHeight(24);
 		// PLAYLIST BUTTONS - A - END
 
@@ -622,10 +732,9 @@ public class Chipdisco6 extends PApplet {
 		listBremove.setColorCaptionLabel(1);
 		listBremove.setColorBackground(color(foregroundcol));
 		listBremove.setColorActive(foreshadecol);
-		listBremove.setPosition(3 + listBadd.getWidth(),0);
-		listBremove.setWidth(72);
+		listBremove.setPosition(6 + listBadd.getWidth(),0);
+		listBremove.setWidth(60);
 		listBremove.setHeight(24);	
-		listBremove.hide();
 		
 		listBloadm3u = controlp5.addButton("listBloadm3u", 0).setSwitch(false);
 		listBloadm3u.setGroup(plcontrolgroupB);
@@ -635,8 +744,8 @@ public class Chipdisco6 extends PApplet {
 		listBloadm3u.setColorCaptionLabel(1);
 		listBloadm3u.setColorBackground(color(foregroundcol));
 		listBloadm3u.setColorActive(foreshadecol);
-		listBloadm3u.setPosition(9 + listBadd.getWidth(),0);
-		listBloadm3u.setWidth(93);
+		listBloadm3u.setPosition(9 + listBadd.getWidth() + listBremove.getWidth(),0);
+		listBloadm3u.setWidth(80);
 		listBloadm3u.setHeight(24);
 		
 		listBsavem3u = controlp5.addButton("listBsavem3u", 0).setSwitch(false);
@@ -647,24 +756,51 @@ public class Chipdisco6 extends PApplet {
 		listBsavem3u.setColorCaptionLabel(1);
 		listBsavem3u.setColorBackground(color(foregroundcol));
 		listBsavem3u.setColorActive(foreshadecol);
-		listBsavem3u.setPosition(18 + listBloadm3u.getWidth()+  listBadd.getWidth(), 0);
-		listBsavem3u.setWidth(93);
+		listBsavem3u.setPosition(12 + listBloadm3u.getWidth() + listBremove.getWidth() + listBadd.getWidth(), 0);
+		listBsavem3u.setWidth(80);
 		listBsavem3u.setHeight(24);
 		// PLAYLIST BUTTONS - A - END	
 		
-		
-		playlistCP5_a = controlp5.addListBox("playlist_a", infodisplayX+5, infodisplayY+10, infodisplayW-20, infodisplayH-12);
-		playlistCP5_a.setColorBackground(color(0x001a1816));
-		playlistCP5_a.setColorActive(foregroundcol);
-		playlistCP5_a.hideBar();
-		playlistCP5_a.showScrollbar();
-		playlistCP5_a.disableCollapse();
-
-		playlistCP5_b = controlp5.addListBox("playlist_b", b_infodisplayX+5, b_infodisplayY+10, b_infodisplayW-20, b_infodisplayH-12);
-		playlistCP5_b.setColorBackground(color(0x001a1816));
-		playlistCP5_b.setColorActive(foregroundcol);
-		playlistCP5_b.hideBar();
-		playlistCP5_b.disableCollapse();
+		// LIBRARY SEARCH - type a query, enter, then send what it found to either deck
+		librarygroup = controlp5.addGroup("libraryGroup", width/2 - 190, height-33);
+		librarygroup.disableCollapse();
+		librarygroup.hideBar();
+		
+		librarySearch = controlp5.addTextfield("librarySearch", 0, 0, 280, 24);
+		librarySearch.setGroup(librarygroup);
+		librarySearch.setCaptionLabel("library");
+		librarySearch.setAutoClear(false);
+		librarySearch.setColorBackground(0xff31332e);
+		librarySearch.setColorActive(foreshadecol);
+		
+		libraryToA = controlp5.addButton("libraryToA", 0).setSwitch(false);
+		libraryToA.setGroup(librarygroup);
+		libraryToA.setCaptionLabel("to A");
+		libraryToA.getCaptionLabel().getStyle().marginLeft = 3;
+		libraryToA.getCaptionLabel().getStyle().marginTop = -1;
+		libraryToA.setColorCaptionLabel(1);
+		libraryToA.setColorBackground(color(foregroundcol));
+		libraryToA.setColorActive(foreshadecol);
+		libraryToA.setPosition(283, 0);
+		libraryToA.setWidth(48);
+		libraryToA.setHeight(24);
+		
+		libraryToB = controlp5.addButton("libraryToB", 0).setSwitch(false);
+		libraryToB.setGroup(librarygroup);
+		libraryToB.setCaptionLabel("to B");
+		libraryToB.getCaptionLabel().getStyle().marginLeft = 3;
+		libraryToB.getCaptionLabel().getStyle().marginTop = -1;
+		libraryToB.setColorCaptionLabel(1);
+		libraryToB.setColorBackground(color(foregroundcol));
+		libraryToB.setColorActive(foreshadecol);
+		libraryToB.setPosition(334, 0);
+		libraryToB.setWidth(48);
+		libraryToB.setHeight(24);
+		
+		
+		// drawn by us, a screenful of rows at a time, rather than a ControlP5 ListBox with a widget per entry
+		playlistViewA = new PlaylistView(this, playlistA, helvetica11, infodisplayX+5, infodisplayY+10, infodisplayW-20, infodisplayH-12);
+		playlistViewB = new PlaylistView(this, playlistB, helvetica11, b_infodisplayX+5, b_infodisplayY+10, b_infodisplayW-20, b_infodisplayH-12);
 		
 		midi2 = controlp5.addListBox("midi2", 6 , 27, 300, 750);
 		midi2.setMoveable(false);
@@ -740,7 +876,7 @@ public class Chipdisco6 extends PApplet {
 		crossfaderbehaviour.addItem("B-BIAS CUT", 3);
 		crossfaderbehaviour.addItem("FADE", 4);
 		
-		slicebehaviour = controlp5.addListBox("slicebehaviour", 18 + midi2.getWidth() + midi3.getWidth() + midi4.getWidth() +  crossfaderbehaviour.getWidth(), 27, 108, 120);
+		slicebehaviour = controlp5.addListBox("slicebehaviour", 18 + midi2.getWidth() + midi3.getWidth() + midi4.getWidth() +  crossfaderbehaviour.getWidth(), 27, 108, 240);
 		slicebehaviour.getCaptionLabel().setColor(0);
 		slicebehaviour.actAsPulldownMenu(true);
 		slicebehaviour.setItemHeight(30);
@@ -755,6 +891,11 @@ public class Chipdisco6 extends PApplet {
 		slicebehaviour.setColorActive(foregroundcol);
 		slicebehaviour.addItem("Row 0", 1);
 		slicebehaviour.addItem("Continue", 0);
+		// where triggers land - values from 10 up so they can't be mistaken for the two above
+		slicebehaviour.addItem("Now", 10 + SliceScheduler.NOW);
+		slicebehaviour.addItem("On beat", 10 + SliceScheduler.BEAT);
+		slicebehaviour.addItem("On bar", 10 + SliceScheduler.BAR);
+		slicebehaviour.addItem("On pattern", 10 + SliceScheduler.PATTERN);
 
 
 		
@@ -763,8 +904,8 @@ public class Chipdisco6 extends PApplet {
 		midi4.setColorForeground(foregroundcol);
 		midi3.setColorForeground(foregroundcol);
 		crossfaderbehaviour.setColorForeground(foregroundcol);		
-		playlistCP5_a.setColorForeground(foregroundcol);
-		playlistCP5_b.setColorForeground(foregroundcol);
+		playlistViewA.setColours(foregroundcol, foregroundcol);
+		playlistViewB.setColours(foregroundcol, foregroundcol);
 		crossfaderbehaviour.setColorActive(foregroundcol);
 		midi2.setColorActive(foregroundcol);
 		midi3.setColorActive(foregroundcol);		
@@ -781,39 +922,46 @@ public class Chipdisco6 extends PApplet {
 		File deckBdirectory = new File(deckBdir);
 		File[] listOfFiles = deckAdirectory.listFiles();
 		File[] listOfFilesB = deckBdirectory.listFiles();
+		List<String> foundA = new ArrayList<String>(), foundB = new ArrayList<String>();
 		if (listOfFiles != null) {
 			for (int i = 0; i < listOfFiles.length; i++) {
-				String temppath = StringEscapeUtils.escapeJava(listOfFiles[i]
-						.getPath());
-				String tempname = temppath.substring(temppath.lastIndexOf('/'))
-						.substring(1);
-				if (deckA.headerCheck(temppath)) {
-					// I need to escape these - some files are going missing and leaving the List out of sync with the labels
-					playlistCP5_a.addItem(temppath, playlistCP5_a.getListBoxItems().length);
-					// Stripping the full path, leaving just the filename for display
-					playlistCP5_a.getItem(temppath).setText(tempname);
+				String temppath = listOfFiles[i].getPath();
+				String tempname = listOfFiles[i].getName();
+				if (isModule(temppath)) {
+					// Playlist keeps the path as it is on disk, for the loader and analyser,
+					// and just the filename for display
+					playlistA.add(temppath, tempname);
+					foundA.add(temppath);
 				} else {
 					println("Module " + tempname + " failed headerCheck");
 				}
 
 			}
 		} else { //load BLANK.mod
-			playlistCP5_a.addItem("BLANK.mod", 0);
+			playlistA.add("BLANK.mod", "BLANK.mod");
 		}
 		if (listOfFilesB != null) {
 			for (int i = 0; i < listOfFilesB.length; i++) {
-				String temppath = StringEscapeUtils.escapeJava(listOfFilesB[i]
-						.getPath());
-				String tempname = temppath.substring(temppath.lastIndexOf('/'))
-						.substring(1);
-				if (deckB.headerCheck(temppath)) {
-					playlistCP5_b.addItem(temppath, playlistCP5_b.getListBoxItems().length);
-					playlistCP5_b.getItem(temppath).setText(tempname);
+				String temppath = listOfFilesB[i].getPath();
+				String tempname = listOfFilesB[i].getName();
+				if (isModule(temppath)) {
+					playlistB.add(temppath, tempname);
+					foundB.add(temppath);
 				}
 			}
 		} else { //load BLANK.mod
-			playlistCP5_b.addItem("BLANK.mod", 0);
-		}
+			playlistB.add("BLANK.mod", "BLANK.mod");
+		}
+		moduleIndex.save();
+		analyser.analyse('a', foundA);
+		analyser.analyse('b', foundB);
+		// and the whole tree under both folders, subfolders too, for the search box
+		library.addRoot(deckAdir);
+		library.addRoot(deckBdir);
+		library.start();
+		watcher.watch(0, deckAdir);
+		watcher.watch(1, deckBdir);
+		watcher.start();
 		
 		drop = new SDrop(this);
 		droplistenerA = new ChipdiscoDropListenerA();
@@ -823,9 +971,9 @@ public class Chipdisco6 extends PApplet {
 		
 		//Deck A initial play from list
 		
-		if(playlistCP5_a.getListBoxItems().length > 0) {
+		if(playlistA.size() > 0) {
 			//deckA.doModLoad(playlistCP5_a.getItem(0).getName(), false, 64);
-			modLoader(playlistCP5_a.getItem(0).getName(), false, 48, 0, playlistCP5_a.getItem(0).getId());
+			modLoader(playlistA.pathAt(0), false, 0, 0);
 			liveinstrument[0] = -1;
 			deckA.setOverridetempo(false);
 			//temposliderA.setValue(deckA.initialtempo);
@@ -833,9 +981,9 @@ public class Chipdisco6 extends PApplet {
 			cuedeck('a', true);
 		}
 		
-		if(playlistCP5_b.getListBoxItems().length > 0) {
+		if(playlistB.size() > 0) {
 			//deckB.doModLoad(playlistCP5_b.getItem(0).getName(), false, 64);
-			modLoader(playlistCP5_b.getItem(0).getName(), false, 48, 1, playlistCP5_b.getItem(0).getId());
+			modLoader(playlistB.pathAt(0), false, 1, 0);
 			liveinstrument[0] = -1;
 			deckB.setOverridetempo(false);
 			temposliderB.setValue(deckB.initialtempo);
@@ -843,6 +991,11 @@ public class Chipdisco6 extends PApplet {
 			cuedeck('b', true);
 		}
 		
+		try {
+			mixer.start();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 
 		try {
 			if(foundprops) {
@@ -862,6 +1015,12 @@ public class Chipdisco6 extends PApplet {
 		//Let's get the image buttons up and running...
 
 		// A		(filename, xpos, ypos, buttonID)
+		atlas = new ButtonAtlas(this, new String[] {
+				"controls_03BIG.png", "controls_04BIG.png", "controls_05BIG.png", "controls_06BIG.png", "controls_07BIG.png",
+				"controls_11BIG.png", "controls_12BIG.png", "controls_13BIG.png", "controls_14BIG.png", "controls_15BIG.png",
+				"bpmBIG.png", "crossfadeBIG.png", "volBIG.png", "transposeBIG.png", "infodisplayBIG.png" });
+		iconPlaying = atlas.get("controls_04BIG.png");
+		iconPaused = atlas.get("controls_03BIG.png");
 		decbpmbt = new ControlButton("controls_11BIG.png", 11, 233, 2);
 		bpmgfxA = new ControlButton("bpmBIG.png", 77, 239, 19);
 		incbpmbt = new ControlButton("controls_07BIG.png", 303, 233, 3);		
@@ -908,6 +1067,7 @@ public class Chipdisco6 extends PApplet {
 		infodisplaygfx.btW = 399;
 		infodisplaygfxB.btH = 292;
 		infodisplaygfxB.btW = 399;
+		buildLayers();
 	
 		updateControlcolours();
 		
@@ -920,142 +1080,246 @@ public class Chipdisco6 extends PApplet {
 
 	
 	public void draw() {
+		long frameStarted = System.nanoTime();
 		if(millis() - doubleclick > 200f) {
 			doubleclick = 0f;	
 		}
 		if(millis() - doublerightclick > 200f) {
 			doublerightclick = 0f;
 		}
+		checkLoads();
+		ModuleAnalyser.Result analysed;
+		while ((analysed = analyser.poll()) != null) {
+			showAnalysis(analysed);
+		}
+		FolderWatcher.Change folderChange;
+		while ((folderChange = watcher.poll()) != null) {
+			folderChanged(folderChange);
+		}
+		// the library is searched as you type, at most once a frame
+		if (librarySearch.isFocus() && !librarySearch.getText().equals(librarySearched)) {
+			searchLibrary(librarySearch.getText());
+		}
+		// whatever was dropped or chosen and whatever playlist imports have found since last frame,
+		// in order, then analysed a deck at a time
+		PlaylistImporter.Entry entry;
+		while ((entry = added.poll()) != null || (entry = importer.poll()) != null) {
+			playlist(entry.deck).add(entry.path, entry.text);
+			imported.get(entry.deck).add(entry.path);
+		}
+		for (int d = 0; d < imported.size(); d++) {
+			if (!imported.get(d).isEmpty()) {
+				analyser.analyse(d < 1 ? 'a' : 'b', imported.get(d));
+				imported.get(d).clear();
+			}
+		}
 
-		fill(49,51,46);
-		rect(0,0,width,height);		
+		// background, logo and credits come from the static layer; on a partial frame only the
+		// deck areas (meters, progress, song info) and any buttons that changed are put back
+		boolean full = layers.beginFrame();
+		if (!full) {
+			deckRegionA.restore();
+			deckRegionB.restore();
+			spectrumRegion.restore();
+		}
 		noFill();
-		line(0,0,0,height);
 		noStroke();		
 
-		infodisplaygfx.display(); infodisplaygfxB.display();					
+		if (spectrum != null) {
+			// decks go faintly behind their channel bars, the master gets the strip under the crossfader
+			drawSpectrum(spectrum.getBands(SpectrumAnalyser.DECK_A), infodisplayX, 53, infodisplayW, 84, color(255, 40));
+			drawSpectrum(spectrum.getBands(SpectrumAnalyser.DECK_B), b_infodisplayX, 53, b_infodisplayW, 84, color(255, 40));
+			drawSpectrum(spectrum.getBands(SpectrumAnalyser.MASTER), width/2 - 191, 348, 382, 22, color(blockpalette[1], 160));
+			noStroke();
+		}
+
 		displayInfo(0, 'a'); displayInfo(0, 'b');
 		
-		textFont(syntaxterror32, 32);
+		//textFont(syntaxterror32, 32);
 		//text(titlestring , width/2 - 124, height-162);
-		image(cdlogo, width/2-195, height-257);
-		image(credits, width/2-190, height-185);
 		textFont(helvetica15, 15);
-		text(aboutstring, width/2 - 201, height-192);
 		fill(255,255);
 		
-		if(deckA.loadSuccess > 0) {
-			
-			if(deckA.player.ibxm.current_row == 0 && deckAslavesync) {
-				deckB.setNext_row(0);
-				deckAslavesync = false;
+		if(mixer.sync.getFireCount() != syncsreported) {
+			syncsreported = mixer.sync.getFireCount();
+			println("[Sync] Deck " + (mixer.sync.getLastSlave() == 0 ? "A" : "B") + " was " + nf(mixer.sync.getLastOffsetMillis(), 1, 1) + "ms off the master, lands "
+					+ nf(mixer.sync.getLastAppliedMillis(), 1, 1) + "ms off at its next row");
+		}
+		if (mixer.buffer != null) {
+			String audioEvent;
+			while ((audioEvent = mixer.buffer.nextEvent()) != null) {
+				println(audioEvent);
 			}
-			
+		}
+		
+		if(deckA.loadSuccess > 0) {
 			patternLoop();
-			int deckAlenSeconds = round(deckA.songLength % 60);
-			int deckAlenMinutes = round(deckA.songLength / 60);
-			text("CHANS:" + deckA.numchannels + " POS:" + deckA.getCurrent_sequence_index() + "/" + deckA.numpatterns + "  INIT BPM:" + deckA.initialtempo + "  " +
-					"LEN:" + deckAlenMinutes + ":" + deckAlenSeconds, playlistCP5_a.getPosition().x, 225);
+			drawStatus(0, deckA, playlistViewA.x);
 		}
+		drawLoading(0, playlistViewA.x);
 		if(deckB.loadSuccess > 0) {
-			
-			if(deckB.player.ibxm.current_row == 0 && deckBslavesync) {
-				deckA.setNext_row(0);
-				deckBslavesync = false;
-			}
-			
 			patternLoopB();
-			int deckBlenSeconds = round(deckB.songLength % 60);
-			int deckBlenMinutes = round(deckB.songLength / 60);
-			text("CHANS:" + deckB.numchannels + " POS:" + deckB.getCurrent_sequence_index() + "/" + deckB.numpatterns + "  INIT BPM:" + deckB.initialtempo + "  " +
-					"LEN:" + deckBlenMinutes + ":" + deckBlenSeconds, playlistCP5_b.getPosition().x, 225);
+			drawStatus(1, deckB, playlistViewB.x);
 		}
+		drawLoading(1, playlistViewB.x);
 		
-		
-		syncbt.display(); decbpmbt.display(); incbpmbt.display();
-		playbt.display();  cuebt.display(); loopbt.display();
-		syncbtB.display(); decbpmbtB.display(); incbpmbtB.display();
-		playbtB.display(); cuebtB.display(); loopbtB.display();
-		crossfadergfx.display();
-		bpmgfxA.display(); bpmgfxB.display(); volgfxA.display(); volgfxB.display();
-		transpgfx.display(); transpgfxB.display();
+		// the playlists are drawn on their backdrops, so one that has changed or scrolled gets its
+		// backdrop put back first, and anything that puts the backdrop back means a redraw
+		infodisplaygfx.live = playlistViewA.needsDraw();
+		infodisplaygfxB.live = playlistViewB.needsDraw();
+		drawButtons(full);
+		if (infodisplaygfx.dirty) {
+			playlistViewA.draw();
+		}
+		if (infodisplaygfxB.dirty) {
+			playlistViewB.draw();
+		}
 
+		mixer.metrics.frame.recordNanos(System.nanoTime() - frameStarted);
 		//end draw	
 	}
 	
-	public void patternLoop(){
-		int totalrows = deckA.player.ibxm.total_rows;
-		int looplength = totalrows/loopdivision;
-		if (loopcurrentsegment == true){
-			loopbt.override = true;
-			if (loopcaught < looplength){
-				loopstart = 0;
-				loopend = looplength-1;
-			} else if (loopcaught > looplength && loopcaught < looplength*2){
-				loopstart = looplength;
-				loopend = (looplength*2)-1;
-			} else if (loopcaught > looplength*2 && loopcaught < looplength*3) {
-				loopstart = looplength*2;
-				loopend = (looplength*3)-1;
-			} else if (loopcaught > looplength*3 && loopcaught < looplength*4){
-				loopstart = looplength*3;
-				loopend = (looplength*4)-1;
-			}
-
-			if (deckA.getCurrent_row() == loopend){
-				if (loopend == looplength*loopdivision-1){
-					deckA.setNext_sequence_index(deckA.getCurrent_sequence_index(), 0);
-					deckA.setNext_row(loopstart);
-				} else {
-					deckA.setNext_row(loopstart);
-				}
+	// Paints everything that never changes into the static layer and cuts the regions draw() repaints out of it
+	void buildLayers() {
+		PGraphics base = createGraphics(width, height);
+		base.noSmooth();
+		base.beginDraw();
+		base.stroke(0);
+		base.fill(49,51,46);
+		base.rect(0,0,width,height);
+		base.line(0,0,0,height);
+		base.image(cdlogo, width/2-195, height-257);
+		base.image(credits, width/2-190, height-185);
+		base.textFont(helvetica15, 15);
+		base.fill(255,255);
+		base.text(aboutstring, width/2 - 201, height-192);
+		base.endDraw();
+		layers = new DirtyRegions(this, base);
+		// meters, progress bar and the song info/loading lines underneath, for each deck
+		deckRegionA = layers.region(0, 50, width/2 - 195, 181);
+		deckRegionB = layers.region(width/2 + 195, 50, width/2 - 195, 181);
+		spectrumRegion = layers.region(width/2 - 194, 346, 388, 26);
+		buttons = new ControlButton[] { infodisplaygfx, infodisplaygfxB,
+				syncbt, decbpmbt, incbpmbt, playbt, cuebt, loopbt,
+				syncbtB, decbpmbtB, incbpmbtB, playbtB, cuebtB, loopbtB,
+				crossfadergfx, bpmgfxA, bpmgfxB, volgfxA, volgfxB, transpgfx, transpgfxB };
+	}
+	
+	// One bar per band, growing up from the bottom of the box
+	void drawSpectrum(float[] bands, int x, int y, int w, int h, int col) {
+		noStroke();
+		fill(col);
+		int n = bands.length;
+		for (int b = 0; b < n; b++) {
+			int bh = (int) (bands[b] * h);
+			if (bh > 0) {
+				rect(x + b * w / n, y + h - bh, w / n - 1, bh);
+			}
+		}
+	}
 
+	// Redraws the buttons that look different since last frame (all of them on a full frame)
+	void drawButtons(boolean full) {
+		for (int i = 0; i < buttons.length; i++) {
+			ControlButton b = buttons[i];
+			b.dirty = b.changed() || b.live || full;
+			if (!b.dirty && (b.region().overlaps(deckRegionA) || b.region().overlaps(deckRegionB))) {
+				b.dirty = true;
+			}
+		}
+		if (!full) {
+			// putting one button's background back can wipe part of a neighbour, so that gets redrawn too
+			boolean spread = true;
+			while (spread) {
+				spread = false;
+				for (int i = 0; i < buttons.length; i++) {
+					for (int j = 0; j < buttons.length; j++) {
+						if (buttons[i].dirty && !buttons[j].dirty && buttons[i].region().overlaps(buttons[j].region())) {
+							buttons[j].dirty = true;
+							spread = true;
+						}
+					}
+				}
+			}
+			for (int i = 0; i < buttons.length; i++) {
+				if (buttons[i].dirty) {
+					buttons[i].region().restore();
+				}
+			}
+		}
+		for (int i = 0; i < buttons.length; i++) {
+			if (buttons[i].dirty) {
+				buttons[i].display();
 			}
 		}
 	}
+	
+	// The loop buttons, keys and MIDI only set flags; this hands them to the mixer's loop engine,
+	// which does the actual looping row by row on the audio thread
+	public void patternLoop(){
+		updateLoop(0, loopcurrentsegment, loopdivision, loopcaught, loopbt);
+	}
 
 	public void patternLoopB(){
-		int totalrows = deckB.player.ibxm.total_rows;
-		int looplength = totalrows/b_loopdivision;
-		if (loopcurrentsegmentB == true){
-			loopbtB.override = true;
-			if (loopcaughtB < looplength){
-				loopstartB = 0;
-				loopendB = looplength-1;
-			} else if (loopcaughtB > looplength && loopcaughtB < looplength*2){
-				loopstartB = looplength;
-				loopendB = (looplength*2)-1;
-			} else if (loopcaughtB > looplength*2 && loopcaughtB < looplength*3) {
-				loopstartB = looplength*2;
-				loopendB = (looplength*3)-1;
-			} else if (loopcaughtB > looplength*3 && loopcaughtB < looplength*4){
-				loopstartB = looplength*3;
-				loopendB = (looplength*4)-1;
-			}
-
-			if (deckB.getCurrent_row() == loopendB){
-				if (loopendB == looplength*b_loopdivision-1){
-					deckB.setNext_sequence_index(deckB.getCurrent_sequence_index(), 0);
-					deckB.setNext_row(loopstartB);
+		updateLoop(1, loopcurrentsegmentB, b_loopdivision, loopcaughtB, loopbtB);
+	}
+
+	void updateLoop(int deck, boolean on, int division, int caught, ControlButton bt) {
+		int rows = loopLength[deck];
+		if (on) {
+			bt.override = true;
+			if (!loopSent[deck] || loopDivisionSent[deck] != division || loopCaughtSent[deck] != caught || loopLengthSent[deck] != rows) {
+				if (rows > 0) {
+					// a new length keeps the loop where it started; a new loop starts here
+					if (loopSent[deck] && loopCaughtSent[deck] == caught) {
+						mixer.loops.setLoopRows(deck, rows);
+					} else {
+						mixer.loops.loopRows(deck, rows);
+					}
 				} else {
-					deckB.setNext_row(loopstartB);
+					mixer.loops.loopSegment(deck, division, caught);
 				}
-
+				loopSent[deck] = true;
+				loopDivisionSent[deck] = division;
+				loopCaughtSent[deck] = caught;
+				loopLengthSent[deck] = rows;
 			}
+		} else if (loopSent[deck]) {
+			mixer.loops.clear(deck);
+			loopSent[deck] = false;
 		}
 	}
 
-	public void mousePressed() {
-		// Experimental panning stuff! ONLY to be used for MOD; any format with its own pan commands will ignore it 
-		// or be messed up. Do it all while checking the header.
-		for (int i=0; i < deckA.numchannels; i++) {
-			deckA.player.ibxm.channels[i].set_panning(0);
+	// Halve or double a deck's loop length and loop that many rows, starting from whatever is
+	// looping now (or a bar's worth if nothing is)
+	void stepLoopLength(int deck, boolean longer) {
+		int rows = loopLength[deck];
+		if (rows == 0) {
+			rows = mixer.loops.isLooping(deck) ? Integer.highestOneBit(mixer.loops.getLoopRows(deck)) : LOOP_DEFAULT_ROWS;
 		}
-		
-		for (int i=0; i < deckB.numchannels; i++) {
-			deckB.player.ibxm.channels[i].set_panning(255);
+		setLoopLength(deck, longer ? rows * 2 : rows / 2);
+	}
+
+	void setLoopLength(int deck, int rows) {
+		rows = constrain(rows, 1, MAX_LOOP_ROWS);
+		loopLength[deck] = rows;
+		if (deck < 1) {
+			if (!loopcurrentsegment) {
+				loopcaught = deckA.getCurrent_row();
+			}
+			loopcurrentsegment = true;
+			loopbt.override = true;
+		} else {
+			if (!loopcurrentsegmentB) {
+				loopcaughtB = deckB.getCurrent_row();
+			}
+			loopcurrentsegmentB = true;
+			loopbtB.override = true;
 		}
-		
+		println("[Deck " + (deck < 1 ? "A" : "B") + " Loop " + rows + " rows]");
+	}
+
+	public void mousePressed() {
 		if (mouseEvent.getClickCount() == 2) {
 			if(mouseButton == LEFT) {
 				doubleclick = millis(); // General doubleclick timer for playlists
@@ -1066,24 +1330,30 @@ public class Chipdisco6 extends PApplet {
 		}
 		
 		if (!midi2.isOpen() && !midi3.isOpen() ) {
+				if (playlistViewA.contains(mouseX, mouseY)) {
+					playlistPressed(0, playlistViewA.press(mouseX, mouseY));
+				}
+				if (playlistViewB.contains(mouseX, mouseY)) {
+					playlistPressed(1, playlistViewB.press(mouseX, mouseY));
+				}
 				if (mouseButton == LEFT) {
 
 					// Mute channels from GUI blocks
 					for (int c=0; c<deckA.numchannels; c++) {
 						if(chanmutes[c]) {
 							if(deckA.getChanmute(c)) {
-								deckA.setChanmute(c, false);
+								mixer.setChanmute(0, c, false);
 							} else {
-								deckA.setChanmute(c, true);
+								mixer.setChanmute(0, c, true);
 							}
 						}
 					}
 					for (int c=0; c<deckB.numchannels; c++) {
 						if(chanmutesB[c]) {
 							if(deckB.getChanmute(c)) {
-								deckB.setChanmute(c, false);
+								mixer.setChanmute(1, c, false);
 							} else {
-								deckB.setChanmute(c, true);
+								mixer.setChanmute(1, c, true);
 							}
 						}
 					}
@@ -1097,7 +1367,7 @@ public class Chipdisco6 extends PApplet {
 					if (deckA.loadSuccess > 0) {
 						//DECK A STUFF
 						//if (player.running == true && currentTime > 5000) {
-						if (deckA.playing == true) {
+						if (mixer.isPlaying(0)) {
 							doPosition('a');
 						}
 					
@@ -1110,7 +1380,7 @@ public class Chipdisco6 extends PApplet {
 					if (deckB.loadSuccess > 0) {
 						//DECK B STUFF
 						//if (player.running == true && currentTime > 5000) {
-						if (deckB.playing == true) {
+						if (mixer.isPlaying(1)) {
 							doPosition('b');
 						}
 				
@@ -1122,47 +1392,47 @@ public class Chipdisco6 extends PApplet {
 				// 1: syncbt, 2: decbpmbt, 3: incbpmbt, 4: playbt, 6: mutebt, 7: cuebt, 8: loopbt, 9: emptybt,
 				// 10: playbtB, 12: mutebtB, 13: cuebtB, 14: loopbtB, 15: decbpmB, 16: incbpmB, 17: syncbtB, 18: emptybtB,
 				if(playbt.mouseover) {
-					 if(deckA.paused) {
-						deckA.play();
-						playbt.btimg = loadImage("controls_04BIG.png");
+					 if(!mixer.isPlaying(0)) {
+						mixer.play(0);
+						playbt.frame = iconPlaying;
 					} else {
-						deckA.pause();
-						playbt.btimg = loadImage("controls_03BIG.png");
+						mixer.pause(0);
+						playbt.frame = iconPaused;
 					}
 				}
 				if(playbtB.mouseover) {
-					 if(deckB.paused) {
-						deckB.play();
-						playbtB.btimg = loadImage("controls_04BIG.png");
+					 if(!mixer.isPlaying(1)) {
+						mixer.play(1);
+						playbtB.frame = iconPlaying;
 					} else {
-						deckB.pause();
-						playbtB.btimg = loadImage("controls_03BIG.png");
+						mixer.pause(1);
+						playbtB.frame = iconPaused;
 					}
 				}
 				if(decbpmbt.mouseover) {
 					
 					if(deckA.getTempo()-1 >= 31) {
-						deckA.setTempo(deckA.getTempo()-1);
-						temposliderA.setValue(deckA.getTempo());						
+						mixer.setTempo(0, deckA.getTempo()-1);
+						temposliderA.setValue(deckA.getTempo()-1);						
 					}
 				}
 				if(incbpmbt.mouseover) {
 					if(deckA.getTempo()+1 <= 256) {
-						deckA.setTempo(deckA.getTempo()+1);
-						temposliderA.setValue(deckA.getTempo());
+						mixer.setTempo(0, deckA.getTempo()+1);
+						temposliderA.setValue(deckA.getTempo()+1);
 					}
 				}
 				if(decbpmbtB.mouseover) {
 					if(deckB.getTempo()-1 >= 31) {
-						deckB.setTempo(deckB.getTempo()-1);
-						temposliderB.setValue(deckB.getTempo());
+						mixer.setTempo(1, deckB.getTempo()-1);
+						temposliderB.setValue(deckB.getTempo()-1);
 					}	
 				}
 				if(incbpmbtB.mouseover) {
 					
 					if(deckB.getTempo()+1 <= 256) {
-						deckB.setTempo(deckB.getTempo()+1);
-						temposliderB.setValue(deckB.getTempo());
+						mixer.setTempo(1, deckB.getTempo()+1);
+						temposliderB.setValue(deckB.getTempo()+1);
 					}
 				}
 				if(cuebt.mouseover) {
@@ -1191,6 +1461,7 @@ public class Chipdisco6 extends PApplet {
 					if (loopcurrentsegment == false) {
 						loopcurrentsegment = true;
 						loopbt.override = true;
+						loopcaught = deckA.getCurrent_row();
 					} else {
 						loopcurrentsegment = false;
 						loopbt.override = false;
@@ -1200,20 +1471,21 @@ public class Chipdisco6 extends PApplet {
 					if (loopcurrentsegmentB == false) {
 						loopcurrentsegmentB = true;
 						loopbtB.override = true;
+						loopcaughtB = deckB.getCurrent_row();
 					} else {			
 						loopcurrentsegmentB = false;
 						loopbtB.override = false;
 					}
 				}
 				if(syncbt.mouseover) {
-					deckB.setTempo(deckA.getTempo());
+					mixer.setTempo(1, deckA.getTempo());
 					temposliderB.setValue(deckA.getTempo());
-					deckAslavesync = true;
+					mixer.sync.arm(0, syncboundary);
 				}
 				if(syncbtB.mouseover) {
-					deckA.setTempo(deckB.getTempo());
+					mixer.setTempo(0, deckB.getTempo());
 					temposliderA.setValue(deckB.getTempo());
-					deckBslavesync = true;
+					mixer.sync.arm(1, syncboundary);
 				}
 
 
@@ -1227,10 +1499,41 @@ public class Chipdisco6 extends PApplet {
 	}
 	
 	public void mouseDragged() {
-
+		playlistViewA.drag(mouseX, mouseY);
+		playlistViewB.drag(mouseX, mouseY);
+	}
+	
+	public void mouseReleased() {
+		// dragging an entry to somewhere else in its list moves it
+		if (playlistViewA.release(mouseX, mouseY)) {
+			placeChanged(0);
+		}
+		if (playlistViewB.release(mouseX, mouseY)) {
+			placeChanged(1);
+		}
+	}
+	
+	public void mouseWheel(processing.event.MouseEvent event) {
+		// over a loop button the wheel makes that deck's loop shorter (up) or longer (down)
+		if (loopbt.mouseover && event.getCount() != 0) {
+			stepLoopLength(0, event.getCount() > 0);
+		}
+		if (loopbtB.mouseover && event.getCount() != 0) {
+			stepLoopLength(1, event.getCount() > 0);
+		}
+		if (playlistViewA.contains(mouseX, mouseY)) {
+			playlistViewA.scroll(event.getCount());
+		}
+		if (playlistViewB.contains(mouseX, mouseY)) {
+			playlistViewB.scroll(event.getCount());
+		}
 	}
 	
 	public void keyPressed() {
+			// typing in the library search box mustn't fire slices and transport keys
+			if (librarySearch != null && librarySearch.isFocus()) {
+				return;
+			}
 			//println(key);
 			println(keyCode);
 			//all-purpose 'display some info' key for debugging stuff
@@ -1257,159 +1560,159 @@ public class Chipdisco6 extends PApplet {
 			//BLOCK 1 of 4
 				switch(keyCode) {
 				case 49:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[0], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[0], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[0], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[0], slicetriggerbehaviour);}
 					break;
 				case 50:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[1], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[1], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[1], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[1], slicetriggerbehaviour);}
 					break;
 				case 51:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[2], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[2], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[2], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[2], slicetriggerbehaviour);}
 					break;
 				case 52:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[3], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[3], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[3], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[3], slicetriggerbehaviour);}
 					break;
 				case 53:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[4], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[4], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[4], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[4], slicetriggerbehaviour);}
 					break;
 				case 54:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[5], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[5], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[5], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[5], slicetriggerbehaviour);}
 					break;
 				case 55:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[6], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[6], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[6], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[6], slicetriggerbehaviour);}
 					break;
 				case 56:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[7], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[7], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[7], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[7], slicetriggerbehaviour);}
 					break;
 				}
 			
 				//BOCK 2 of 4
 				switch(keyCode) {
 				case 81:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[8], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[8], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[8], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[8], slicetriggerbehaviour);}
 					break;
 				case 87:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[9], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[9], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[9], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[9], slicetriggerbehaviour);}
 					break;
 				case 69:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[10], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[10], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[10], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[10], slicetriggerbehaviour);}
 					break;
 				case 82:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[11], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[11], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[11], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[11], slicetriggerbehaviour);}
 					break;
 				case 84:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[12], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[12], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[12], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[12], slicetriggerbehaviour);}
 					break;
 				case 89:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[13], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[13], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[13], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[13], slicetriggerbehaviour);}
 					break;
 				case 85:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[14], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[14], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[14], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[14], slicetriggerbehaviour);}
 					break;
 				case 73:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[15], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[15], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[15], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[15], slicetriggerbehaviour);}
 					break;
 				}
 				
 				//BOCK 3 of 4
 				switch(keyCode) {
 				case 65:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[16], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[16], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[16], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[16], slicetriggerbehaviour);}
 					break;
 				case 83:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[17], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[17], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[17], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[17], slicetriggerbehaviour);}
 					break;
 				case 68:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[18], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[18], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[18], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[18], slicetriggerbehaviour);}
 					break;
 				case 70:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[19], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[19], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[19], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[19], slicetriggerbehaviour);}
 					break;
 				case 71:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[20], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[20], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[20], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[20], slicetriggerbehaviour);}
 					break;
 				case 72:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[21], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[21], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[21], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[21], slicetriggerbehaviour);}
 					break;
 				case 74:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[22], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[22], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[22], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[22], slicetriggerbehaviour);}
 					break;
 				case 75:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[23], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[23], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[23], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[23], slicetriggerbehaviour);}
 					break;
 				}
 				
 				//BOCK 4 of 4
 				switch(keyCode) {
 				case 90:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[24], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[24], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[24], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[24], slicetriggerbehaviour);}
 					break;
 				case 88:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[25], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[25], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[25], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[25], slicetriggerbehaviour);}
 					break;
 				case 67:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[26], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[26], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[26], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[26], slicetriggerbehaviour);}
 					break;
 				case 86:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[27], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[27], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[27], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[27], slicetriggerbehaviour);}
 					break;
 				case 66:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[28], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[28], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[28], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[28], slicetriggerbehaviour);}
 					break;
 				case 78:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[29], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[29], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[29], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[29], slicetriggerbehaviour);}
 					break;
 				case 77:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[30], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[30], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[30], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[30], slicetriggerbehaviour);}
 					break;
 				case 44:
-					if(shiftpressed) {deckA.setNext_sequence_index(slicetargets[31], slicetriggerbehaviour);}
-					else if(altpressed) {deckB.setNext_sequence_index(slicetargetsB[31], slicetriggerbehaviour);}
+					if(shiftpressed) {mixer.triggerSlice(0, slicetargets[31], slicetriggerbehaviour);}
+					else if(altpressed) {mixer.triggerSlice(1, slicetargetsB[31], slicetriggerbehaviour);}
 					break;
 				}
 			
 			// sync with spacebar!
 			if (keyCode == 32) {
 				//always row 0
-				deckA.setNext_row(0);
-				deckB.setNext_row(0);
+				mixer.setNextRow(0, 0);
+				mixer.setNextRow(1, 0);
 			}
 			//or separate row-0s with V and B
 			if (key == 'v') {
-				deckA.setNext_row(0);
+				mixer.setNextRow(0, 0);
 			}
 			if(key == 'b') {
-				deckB.setNext_row(0);
+				mixer.setNextRow(1, 0);
 			}
 			// Move crossfader from A to B [end]
 			if (keyCode == 35) {
@@ -1427,7 +1730,7 @@ public class Chipdisco6 extends PApplet {
 			if (key == '=') {
 				if (bpmvalue < 255) {
 					int tempoadjust = bpmvalue + 1;
-					deckA.setTempo(tempoadjust);
+					mixer.setTempo(0, tempoadjust);
 					bpmvalue = tempoadjust;
 				}
 			}
@@ -1435,7 +1738,7 @@ public class Chipdisco6 extends PApplet {
 			if (key == '-') {
 				if (bpmvalue > 32) {
 					int tempoadjust = bpmvalue - 1;
-					deckA.setTempo(tempoadjust);
+					mixer.setTempo(0, tempoadjust);
 					bpmvalue = tempoadjust;
 				}
 			}
@@ -1443,7 +1746,7 @@ public class Chipdisco6 extends PApplet {
 			if (key == '+') {
 				if (bpmvalueB < 255) {
 					int tempoadjust = bpmvalueB + 1;
-					deckB.setTempo(tempoadjust);
+					mixer.setTempo(1, tempoadjust);
 					bpmvalueB = tempoadjust;
 				}
 			}
@@ -1451,7 +1754,7 @@ public class Chipdisco6 extends PApplet {
 			if (key == '_') {
 				if (bpmvalueB > 32) {
 					int tempoadjust = bpmvalueB - 1;
-					deckB.setTempo(tempoadjust);
+					mixer.setTempo(1, tempoadjust);
 					bpmvalueB = tempoadjust;
 				}
 			}
@@ -1459,24 +1762,24 @@ public class Chipdisco6 extends PApplet {
 			if (key == 'o') {
 				if (paused == 1) {
 					paused = 0;
-					deckA.play();
-					playbt.btimg = loadImage("controls_04BIG.png");
+					mixer.play(0);
+					playbt.frame = iconPlaying;
 				} else {
 					paused = 1;
-					deckA.pause();
-					playbt.btimg = loadImage("controls_03BIG.png");
+					mixer.pause(0);
+					playbt.frame = iconPaused;
 				}
 			}
 			//pause Deck B
 			if (key == 'p') {
 				if (pausedB == 1) {
 					pausedB = 0;
-					deckB.play();
-					playbtB.btimg = loadImage("controls_04BIG.png");
+					mixer.play(1);
+					playbtB.frame = iconPlaying;
 				} else {
 					pausedB = 1;
-					deckB.pause();
-					playbtB.btimg = loadImage("controls_03BIG.png");
+					mixer.pause(1);
+					playbtB.frame = iconPaused;
 				}
 			}
 			// Deck A loopsegment
@@ -1527,11 +1830,11 @@ public class Chipdisco6 extends PApplet {
 			//Deck A muting
 			if (key == 'n') {
 				if (muted == true) {
-					deckA.mute();
+					mixer.setMuted(0, false);
 					muted = false;
 					//mutebt.override = true;
 				} else {
-					deckA.mute();
+					mixer.setMuted(0, true);
 					muted = true;
 					//mutebt.override = false;
 				}
@@ -1539,141 +1842,141 @@ public class Chipdisco6 extends PApplet {
 			//Deck B muting
 			if (key == 'm') {
 				if (mutedB == true) {
-					deckB.mute();
+					mixer.setMuted(1, false);
 					mutedB = false;
 					//mutebtB.override = true;
 				} else {
-					deckB.mute();
+					mixer.setMuted(1, true);
 					mutedB = true;
 					//mutebtB.override = false;
 				}
 			}
-			if (deckA.playing && !shiftpressed && !altpressed) {
+			if (mixer.isPlaying(0) && !shiftpressed && !altpressed) {
 				// Deck A channel-muting (chans 1-8)		
 				if (key == '1') {
 					if (!deckA.getChanmute(0)) {
-						deckA.setChanmute(0, true);
+						mixer.setChanmute(0, 0, true);
 					} else {
-						deckA.setChanmute(0, false);
+						mixer.setChanmute(0, 0, false);
 					}
 				}
 				if (key == '2') {
 					if (!deckA.getChanmute(1)) {
-						deckA.setChanmute(1, true);
+						mixer.setChanmute(0, 1, true);
 					} else {
-						deckA.setChanmute(1, false);
+						mixer.setChanmute(0, 1, false);
 					}
 				}
 				if (key == '3') {
 					if (!deckA.getChanmute(2)) {
-						deckA.setChanmute(2, true);
+						mixer.setChanmute(0, 2, true);
 					} else {
-						deckA.setChanmute(2, false);
+						mixer.setChanmute(0, 2, false);
 					}
 				}
 				if (key == '4') {
 					if (!deckA.getChanmute(3)) {
-						deckA.setChanmute(3, true);
+						mixer.setChanmute(0, 3, true);
 					} else {
-						deckA.setChanmute(3, false);
+						mixer.setChanmute(0, 3, false);
 					}
 				}
 				if (key == '5' && deckA.numchannels > 4) {
 					if (!deckA.getChanmute(4)) {
-						deckA.setChanmute(4, true);
+						mixer.setChanmute(0, 4, true);
 					} else {
-						deckA.setChanmute(4, false);
+						mixer.setChanmute(0, 4, false);
 					}
 				}
 				if (key == '6' && deckA.numchannels > 5) {
 					if (!deckA.getChanmute(5)) {
-						deckA.setChanmute(5, true);
+						mixer.setChanmute(0, 5, true);
 					} else {
-						deckA.setChanmute(5, false);
+						mixer.setChanmute(0, 5, false);
 					}
 				}
 				if (key == '7' && deckA.numchannels > 6) {
 					if (!deckA.getChanmute(6)) {
-						deckA.setChanmute(6, true);
+						mixer.setChanmute(0, 6, true);
 					} else {
-						deckA.setChanmute(6, false);
+						mixer.setChanmute(0, 6, false);
 					}
 				}
 				if (key == '8' && deckA.numchannels > 7) {
 					if (!deckA.getChanmute(7)) {
-						deckA.setChanmute(7, true);
+						mixer.setChanmute(0, 7, true);
 					} else {
-						deckA.setChanmute(7, false);
+						mixer.setChanmute(0, 7, false);
 					}
 				}
 			}
 			
-			if (deckB.playing && !shiftpressed && !altpressed) {
+			if (mixer.isPlaying(1) && !shiftpressed && !altpressed) {
 				if (key == 'q') {
 					if (!deckB.getChanmute(0)) {
-						deckB.setChanmute(0, true);
+						mixer.setChanmute(1, 0, true);
 					} else {
-						deckB.setChanmute(0, false);
+						mixer.setChanmute(1, 0, false);
 					}
 				}
 				if (key == 'w') {
 					if (!deckB.getChanmute(1)) {
-						deckB.setChanmute(1, true);
+						mixer.setChanmute(1, 1, true);
 					} else {
-						deckB.setChanmute(1, false);
+						mixer.setChanmute(1, 1, false);
 					}
 				}
 				if (key == 'e') {
 					if (!deckB.getChanmute(2)) {
-						deckB.setChanmute(2, true);
+						mixer.setChanmute(1, 2, true);
 					} else {
-						deckB.setChanmute(2, false);
+						mixer.setChanmute(1, 2, false);
 					}
 				}
 				if (key == 'r') {
 					if (!deckB.getChanmute(3)) {
-						deckB.setChanmute(3, true);
+						mixer.setChanmute(1, 3, true);
 					} else {
-						deckB.setChanmute(3, false);
+						mixer.setChanmute(1, 3, false);
 					}
 				}
 				if (key == 't' && deckB.numchannels > 4) {
 					if (!deckB.getChanmute(4)) {
-						deckB.setChanmute(4, true);
+						mixer.setChanmute(1, 4, true);
 					} else {
-						deckB.setChanmute(4, false);
+						mixer.setChanmute(1, 4, false);
 					}
 				}
 				if (key == 'y' && deckB.numchannels > 5) {
 					if (!deckB.getChanmute(5)) {
-						deckB.setChanmute(5, true);
+						mixer.setChanmute(1, 5, true);
 					} else {
-						deckB.setChanmute(5, false);
+						mixer.setChanmute(1, 5, false);
 					}
 				}
 				if (key == 'u' && deckB.numchannels > 6) {
 					if (!deckB.getChanmute(6)) {
-						deckB.setChanmute(6, true);
+						mixer.setChanmute(1, 6, true);
 					} else {
-						deckB.setChanmute(6, false);
+						mixer.setChanmute(1, 6, false);
 					}
 				}
 				if (key == 'i' && deckB.numchannels > 7) {
 					if (!deckB.getChanmute(7)) {
-						deckB.setChanmute(7, true);
+						mixer.setChanmute(1, 7, true);
 					} else {
-						deckB.setChanmute(7, false);
+						mixer.setChanmute(1, 7, false);
 					}
 				}
 			}
 			//hold!
 			if (key == 'h') {
-				deckA.setNext_row(deckA.getCurrent_row());
+				mixer.setNextRow(0, deckA.getCurrent_row());
 
 			}
 			if (key == 'j') {
 
-				deckB.setNext_row(deckB.getCurrent_row());
+				mixer.setNextRow(1, deckB.getCurrent_row());
 
 			}
 			if (key == '-') {
@@ -1707,8 +2010,22 @@ public class Chipdisco6 extends PApplet {
 			
 			
 			if (key == CODED) {				
+				// F9/F10 halve/double deck A's loop, F11/F12 deck B's
+				if(keyCode == 120) {
+					stepLoopLength(0, false);
+				}
+				if(keyCode == 121) {
+					stepLoopLength(0, true);
+				}
+				if(keyCode == 122) {
+					stepLoopLength(1, false);
+				}
+				if(keyCode == 123) {
+					stepLoopLength(1, true);
+				}
 				// F1
 				if(keyCode == 112) {
+					loopLength[0] = 0;
 					loopdivision = 4;					
 					loopcurrentsegment = true;
 					loopbt.override = true;
@@ -1716,6 +2033,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F2
 				if(keyCode == 113) {
+					loopLength[0] = 0;
 					loopdivision = 8;
 					loopcurrentsegment = true;
 					loopbt.override = true;
@@ -1723,6 +2041,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F3
 				if(keyCode == 114) {
+					loopLength[0] = 0;
 					loopdivision = 16;
 					loopcurrentsegment = true;
 					loopbt.override = true;
@@ -1730,6 +2049,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F4
 				if(keyCode == 115) {
+					loopLength[0] = 0;
 					loopdivision = 32;
 					loopcurrentsegment = true;
 					loopbt.override = true;
@@ -1738,6 +2058,7 @@ public class Chipdisco6 extends PApplet {
 				
 				// F5
 				if(keyCode == 116) {
+					loopLength[1] = 0;
 					b_loopdivision = 4;					
 					loopcurrentsegmentB = true;
 					loopbtB.override = true;
@@ -1745,6 +2066,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F6
 				if(keyCode == 117) {
+					loopLength[1] = 0;
 					b_loopdivision = 8;
 					loopcurrentsegmentB = true;
 					loopbtB.override = true;
@@ -1752,6 +2074,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F7
 				if(keyCode == 118) {
+					loopLength[1] = 0;
 					b_loopdivision = 16;
 					loopcurrentsegmentB = true;
 					loopbtB.override = true;
@@ -1759,6 +2082,7 @@ public class Chipdisco6 extends PApplet {
 				}
 				// F8
 				if(keyCode == 119) {
+					loopLength[1] = 0;
 					b_loopdivision = 32;
 					loopcurrentsegmentB = true;
 					loopbtB.override = true;
@@ -1900,32 +2224,21 @@ public class Chipdisco6 extends PApplet {
 									/ deckA.numchannels, height - 74 - 419,
 									infodisplayW / deckA.numchannels - 3,
 									//-(int)map(deckA.player.ibxm.channels[c].chanvolfinal, 0, 64, 0, infodisplayH));
-									(int) map(deckA.player.ibxm.channels[c]
-											.calculate_fakevol(), 0, 12288, 0,
-											-84));
+									(int) (mixer.meters.getChannelPeak(0, c) * -84));
 						}
 					}
 				}
+				drawDeckLevel(0, infodisplayX, infodisplayW);
 				//progress bar
 				fill(blockpalette[1], 30);
 				rect(infodisplayX, height-24 - 419, infodisplayW, 15);
 				fill(blockpalette[1]); //blue
 				rect(infodisplayX, height-24 - 419, infodisplayW/deckA.numpatterns * deckA.getCurrent_sequence_index(), 15);
 				
-				String[] infotext = new String[deckA.numinstruments - 1];				
-				for (int i = 0; i < (deckA.numinstruments - 1); i++) {
-					if (deckA.infotext[i] != null) {
-						if (debug == 1) {
-							println(deckA.infotext[i]);
-						}
-						infotext[i] = deckA.infotext[i];						
-					}
-				}																				
 				fill(foregroundcol);
-				return infotext;
+				return instrumentNames(0, deckA, debug);
 			} else {
-				String[] failure = { "No module loaded"};
-				return failure;
+				return NO_MODULE;
 			}
 		} else {
 			if (deckB.loadSuccess > 0) {
@@ -1962,52 +2275,109 @@ public class Chipdisco6 extends PApplet {
 									/ deckB.numchannels, height - 74 - 419,
 									b_infodisplayW / deckB.numchannels - 3,
 									//-(int)map(deckA.player.ibxm.channels[c].chanvolfinal, 0, 64, 0, infodisplayH));
-									(int) map(deckB.player.ibxm.channels[c]
-											.calculate_fakevol(), 0, 12288, 0,
-											-84));
+									(int) (mixer.meters.getChannelPeak(1, c) * -84));
 						}
 					}
 				}
+				drawDeckLevel(1, b_infodisplayX, b_infodisplayW);
 				//progress bar
 				fill(blockpalette[1], 30);
 				rect(b_infodisplayX, height-24 - 419, b_infodisplayW, 15);
 				fill(blockpalette[1]); //blue
 				rect(b_infodisplayX, height-24 - 419, b_infodisplayW/deckB.numpatterns * deckB.getCurrent_sequence_index(), 15);
 				
-				String[] infotext = new String[deckB.numinstruments - 1];
-				
-				for (int i = 0; i < (deckB.numinstruments - 1); i++) {
-					if (deckB.infotext[i] != null) {
-						if (debug == 1) {
-							println(deckB.infotext[i]);
-						}
-						infotext[i] = deckB.infotext[i];						
-					}
-				}	
-				
-				String[] infotextB = new String[deckB.numinstruments - 1];
-				for (int i = 0; i < (deckB.numinstruments - 1); i++) {
-					if (deckB.infotext[i] != null) {
-						if (debug == 1) {
-							println(deckB.infotext[i]);
-						}
-						infotextB[i] = deckB.infotext[i];
-					}
-				}
 				fill(foregroundcol);
 				//popMatrix();
-				return infotextB;
+				return instrumentNames(1, deckB, debug);
 			} else {
-				String[] failure = { "No module loaded"};
-				return failure;
+				return NO_MODULE;
+			}
+		}
+	}
+
+	// A strip between the mute blocks and the progress bar showing what the deck is really putting
+	// out, measured by the mixer before the faders: RMS filled in, the block's peak as a line and
+	// the held peak as a marker
+	void drawDeckLevel(int deck, int x, int w) {
+		float peak = mixer.meters.getDeckPeak(deck);
+		float rms = mixer.meters.getDeckRms(deck);
+		if (peak >= peakHold[deck]) {
+			peakHold[deck] = peak;
+			peakHeldAt[deck] = frameCount;
+		} else if (frameCount - peakHeldAt[deck] > PEAK_HOLD_FRAMES) {
+			peakHold[deck] = max(peak, peakHold[deck] - PEAK_FALL);
+		}
+		int y = height - 452;
+		noStroke();
+		fill(blockpalette[1], 30);
+		rect(x, y, w, 6);
+		fill(blockpalette[1]);
+		rect(x, y, w * rms, 6);
+		fill(foregroundcol);
+		rect(x + (w - 2) * peak, y, 1, 6);
+		fill(peakHold[deck] >= 0.99f ? color(255, 60, 40) : color(255));
+		rect(x + (w - 2) * peakHold[deck], y, 2, 6);
+		stroke(0);
+	}
+
+	// The deck's instrument names, copied once per module instead of on every frame
+	String[] instrumentNames(int deck, PortaMod mod, int debug) {
+		int count = max(0, mod.numinstruments - 1);
+		if (mod.infotext != instrumentSource[deck] || instrumentCache[deck].length != count) {
+			String[] names = new String[count];
+			for (int i = 0; i < count; i++) {
+				names[i] = mod.infotext[i];
 			}
+			instrumentSource[deck] = mod.infotext;
+			instrumentCache[deck] = names;
 		}
+		if (debug == 1) {
+			for (int i = 0; i < instrumentCache[deck].length; i++) {
+				if (instrumentCache[deck][i] != null) {
+					println(instrumentCache[deck][i]);
+				}
+			}
+		}
+		return instrumentCache[deck];
+	}
+
+	// The CHANS/POS/BPM/LEN line under a deck, only reformatted when one of those changes
+	void drawStatus(int deck, PortaMod mod, float x) {
+		int pos = mod.getCurrent_sequence_index();
+		int lenSeconds = round(mod.songLength % 60);
+		int lenMinutes = round(mod.songLength / 60);
+		int[] shown = statusShown[deck];
+		HudText line = statusText[deck];
+		if (line.length() == 0 || shown[0] != mod.numchannels || shown[1] != pos || shown[2] != mod.numpatterns
+				|| shown[3] != mod.initialtempo || shown[4] != lenMinutes || shown[5] != lenSeconds) {
+			shown[0] = mod.numchannels;
+			shown[1] = pos;
+			shown[2] = mod.numpatterns;
+			shown[3] = mod.initialtempo;
+			shown[4] = lenMinutes;
+			shown[5] = lenSeconds;
+			line.clear().append("CHANS:").append(mod.numchannels).append(" POS:").append(pos).append('/').append(mod.numpatterns)
+					.append("  INIT BPM:").append(mod.initialtempo).append("  LEN:").append(lenMinutes).append(':').append(lenSeconds);
+		}
+		line.draw(this, x, 225);
+	}
+
+	void drawLoading(int deck, float x) {
+		int stage = loadStage(deck);
+		if (stage == LOAD_NONE) {
+			return;
+		}
+		if (stage != loadingShown[deck]) {
+			loadingShown[deck] = stage;
+			loadingText[deck].clear().append(stage == LOAD_QUEUED ? "QUEUED" : "LOADING");
+		}
+		loadingText[deck].draw(this, x, 211);
 	}
 
 	//redundant, since Processing won't let you choose a target directory/file
 	public void savePlaylist(char deck) {
 		// TO DO
-		String[] listOut = new String[playlistCP5_a.getListBoxItems().length];		
+		String[] listOut = new String[playlistA.size()];		
 		if (deck == 'a') {
 
 		}
@@ -2033,16 +2403,16 @@ public class Chipdisco6 extends PApplet {
 			println("No output file selected...");
 		} else {
 			if (deck.charAt(deck.length()) == 'a') {
-				String[] linesoutA = new String[playlistCP5_a.getListBoxItems().length];
+				String[] linesoutA = new String[playlistA.size()];
 				for (int i=0 ; i < linesoutA.length; i++) {
-					linesoutA[i] = playlistCP5_a.getItem(i).getName();
+					linesoutA[i] = playlistA.pathAt(i);
 				}
 				saveStrings(savePath+"_deckA.m3u", linesoutA);
 			}
 			if (deck.charAt(deck.length()) == 'b') {
-				String[] linesoutB = new String[playlistCP5_b.getListBoxItems().length];
+				String[] linesoutB = new String[playlistB.size()];
 				for (int i=0 ; i < linesoutB.length; i++) {
-					linesoutB[i] = playlistCP5_b.getItem(i).getName();
+					linesoutB[i] = playlistB.pathAt(i);
 				}
 				saveStrings(savePath+"_deckB.m3u", linesoutB);
 			}
@@ -2060,27 +2430,45 @@ public class Chipdisco6 extends PApplet {
 		boolean mouseover;
 		boolean override;
 		boolean active;
-		PImage btimg;
+		ButtonAtlas.Frame frame;
 		int id;
+		// repainted every frame whether it changed or not
+		boolean live;
+		boolean dirty;
+		// how it looked when we last drew it
+		boolean drawnMouseover, drawnOverride;
+		ButtonAtlas.Frame drawnFrame;
+		DirtyRegions.Region region;
 		
 		ControlButton(String imgpath, int xpos, int ypos, int buttonID) {
-			btimg = loadImage(imgpath);
+			frame = atlas.get(imgpath);
 			btX = xpos;
 			btY = ypos;
 		}
-		void display() {
+		void checkMouseover() {
 			if(mouseX > btX && mouseX < btX+btW && mouseY > btY && mouseY < btY+btH) {
 				mouseover = true;
 			} else {
 				mouseover = false;
 			}
-			if(override || mouseover) {
-				image(btimg, btX, btY);
-			} else {
-				tint(255,180);
-				image(btimg, btX, btY);
-				noTint();
-			}			
+		}
+		boolean changed() {
+			checkMouseover();
+			return drawnFrame == null || mouseover != drawnMouseover || override != drawnOverride || frame != drawnFrame;
+		}
+		DirtyRegions.Region region() {
+			if (region == null) {
+				region = layers.region(btX, btY, max(btW, frame.width), max(btH, frame.height));
+			}
+			return region;
+		}
+		void display() {
+			checkMouseover();
+			// idle buttons are pre-dimmed in the atlas - same as the old tint(255,180)
+			frame.draw(Chipdisco6.this, btX, btY, !(override || mouseover));			
+			drawnMouseover = mouseover;
+			drawnOverride = override;
+			drawnFrame = frame;
 		}
 	}
 	
@@ -2095,15 +2483,15 @@ public class Chipdisco6 extends PApplet {
 		if (deck == 'a') {
 			if ((mouseX > 18 && mouseX < 413)
 					&& (mouseY < 209 && mouseY > 191)
-					&& (deckA.playing == true)) {
-				deckA.setNext_sequence_index(round(map(mouseX, 20, 411, 0, deckA.numpatterns)), 0);			
+					&& mixer.isPlaying(0)) {
+				mixer.setNextSequence(0, round(map(mouseX, 20, 411, 0, deckA.numpatterns)), 0);			
 			}
 		}
 		if (deck == 'b') {
 			if ((mouseX > 875 && mouseX < 1268)
 					&& (mouseY < 209 && mouseY > 191)
-					&& (deckB.playing == true)) {
-				deckB.setNext_sequence_index(round(map(mouseX, 875, 1268, 0, deckB.numpatterns)), 0);
+					&& mixer.isPlaying(1)) {
+				mixer.setNextSequence(1, round(map(mouseX, 875, 1268, 0, deckB.numpatterns)), 0);
 			}
 		}
 		cueFix();
@@ -2118,21 +2506,18 @@ public class Chipdisco6 extends PApplet {
 		//translate(0, 300);
 		if(theEvent.isFile() && theEvent.file().exists()) {
 			println("file seems to exist");
-			println("X: " + playlistCP5_a.getPosition().x + " Y: " + playlistCP5_a.getPosition().y);
-			println("Width: " + playlistCP5_a.getWidth() + " Height: " + ((int)playlistCP5_a.getPosition().y + 195));
+			println("X: " + playlistViewA.x + " Y: " + playlistViewA.y);
+			println("Width: " + playlistViewA.w + " Height: " + playlistViewA.h);
 			println("MouseX: " + mouseX + "    MouseY: " + mouseY);
 			//FIX THIS! Use dimensiosn for playlists
 			//if (mouseX > playlistCP5_a.getPosition().x && mouseX < playlistCP5_a.getPosition().x + playlistCP5_a.getWidth() && mouseY > playlistCP5_a.getPosition().y && mouseY < ((int)playlistCP5_a.getPosition().y + 195.0)) {
 			if(mouseX < width/2) {
 				println("File was dropped in playlist A: " + theEvent.filePath());
-				String ext = theEvent.filePath().substring(theEvent.filePath().length()-3, theEvent.filePath().length());
-				if (ext.equalsIgnoreCase("m3u")){
+				if (PlaylistImporter.isPlaylist(theEvent.filePath())) {
 					loadm3uPlaylist('a', theEvent.filePath());
 				} else {
 					if(deckA.headerCheck(theEvent.filePath())) {
-						String tempname = theEvent.filePath().substring(theEvent.filePath().lastIndexOf('/')).substring(1);
-						playlistCP5_a.addItem(theEvent.filePath(), playlistCP5_a.getListBoxItems().length);
-						playlistCP5_a.getItem(theEvent.filePath()).setText(tempname);
+						addLater(0, theEvent.filePath());
 					}
 				}					
 
@@ -2141,14 +2526,11 @@ public class Chipdisco6 extends PApplet {
 			//if (mouseX > playlistCP5_b.getPosition().x && mouseX < playlistCP5_b.getPosition().x + playlistCP5_b.getWidth() && mouseY > playlistCP5_b.getPosition().y && mouseY < ((int)playlistCP5_b.getPosition().y + 195.0)) {
 			if(mouseX > width/2 && mouseX < width) {	
 				println("File was dropped in playlist B");
-				String ext2 = theEvent.filePath().substring(theEvent.filePath().length()-3, theEvent.filePath().length());
-				if (ext2.equalsIgnoreCase("m3u")){
+				if (PlaylistImporter.isPlaylist(theEvent.filePath())) {
 					loadm3uPlaylist('b', theEvent.filePath());
 				} else {
 					if(deckB.headerCheck(theEvent.filePath())) {
-						String tempname = theEvent.filePath().substring(theEvent.filePath().lastIndexOf('/')).substring(1);
-						playlistCP5_b.addItem(theEvent.filePath(), playlistCP5_b.getListBoxItems().length);
-						playlistCP5_b.getItem(theEvent.filePath()).setText(tempname);
+						addLater(1, theEvent.filePath());
 					}
 				}					
 
@@ -2161,49 +2543,20 @@ public class Chipdisco6 extends PApplet {
 	
 	
 	public void cuedeck(char deck, boolean activate) {
-		// MONO LEFT output is for FRONT OF HOUSE. MONO RIGHT output is for HEADPHONES.
-		// This means that CUE MIX ACTIVE = HEADPHONES = 255 PAN! 
+		// LEFT output is for FRONT OF HOUSE. RIGHT output is for HEADPHONES.
+		// The mixer does the split now, so all we have to do is flip the flag and recalculate the gains.
 		// CUE MIX ACTIVE also means speaker icon should NOT be illuminated 
 		if (deck == 'a') {					
-			if(activate) {
-				for (int i=0; i < deckA.numchannels; i++) {
-					deckA.mono = 2;
-					deckA.player.ibxm.channels[i].set_panning(255);
-					
-				}				
-				deckAcue = true;		
-				doVolume();
-			} else {
-				for (int i=0; i < deckA.numchannels; i++) {
-					deckA.mono = 1;
-					deckA.player.ibxm.channels[i].set_panning(0);
-				}				
-				deckAcue = false;
-				doVolume();
-			}
-
+			deckAcue = activate;
 		}
 		if (deck == 'b') {
-			if(activate) {
-				for (int i=0; i < deckB.numchannels; i++) {
-					deckB.mono = 2;
-					deckB.player.ibxm.channels[i].set_panning(255);
-				}				
-				deckBcue = true;
-				doVolume();
-			} else {					
-				for (int i=0; i < deckB.numchannels; i++) {
-					deckB.mono = 1;
-					deckB.player.ibxm.channels[i].set_panning(0);
-				}
-				deckBcue = false;
-				doVolume();				
-			}
+			deckBcue = activate;
 		}
-
+		doVolume();
 	}
 	
 	public void controllerChange(int channel, int number, int value) {
+		mixer.midiEvent();
 
 		print("\nCC: "+number + "   Value: " +value + "  ");
 		
@@ -2266,13 +2619,13 @@ public class Chipdisco6 extends PApplet {
 			if(value == 127) {
 				if (paused == 1) {
 					paused = 0;
-					deckA.play();
-					playbt.btimg = loadImage("controls_04BIG.png");
+					mixer.play(0);
+					playbt.frame = iconPlaying;
 					println("[Deck A Play]");
 				} else {
 					paused = 1;
-					deckA.pause();
-					playbt.btimg = loadImage("controls_03BIG.png");
+					mixer.pause(0);
+					playbt.frame = iconPaused;
 					println("[Deck A Pause]");
 				}
 			}
@@ -2284,13 +2637,13 @@ public class Chipdisco6 extends PApplet {
 			if(value == 127) {
 			if (paused == 1) {
 				paused = 0;
-				deckB.play();
-				playbtB.btimg = loadImage("controls_04BIG.png");
+				mixer.play(1);
+				playbtB.frame = iconPlaying;
 				println("[Deck B Play]");
 			} else {
 				paused = 1;
-				deckB.pause();
-				playbtB.btimg = loadImage("controls_03BIG.png");
+				mixer.pause(1);
+				playbtB.frame = iconPaused;
 				println("[Deck B Pause]");
 			}
 			}
@@ -2302,8 +2655,8 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccSyncA && altbutton) {
 			if (value == 127) {
 				if(deckA.getTempo()+1 <= 255) {
-					deckA.setTempo(deckA.getTempo()+1);
-					temposliderA.setValue(deckA.getTempo());
+					mixer.setTempo(0, deckA.getTempo()+1);
+					temposliderA.setValue(deckA.getTempo()+1);
 				}
 			}
 			println("[Deck A Tempo Nudge Up]");
@@ -2312,8 +2665,8 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccPauseA && altbutton) {
 			if (value == 127) {
 				if(deckA.getTempo()-1 >= 32) {
-					deckA.setTempo(deckA.getTempo()-1);
-					temposliderA.setValue(deckA.getTempo());
+					mixer.setTempo(0, deckA.getTempo()-1);
+					temposliderA.setValue(deckA.getTempo()-1);
 				}
 				println("[Deck A Tempo Nudge Down]");
 			}
@@ -2324,8 +2677,8 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccSyncB && altbutton) {
 			if (value == 127) {
 				if(deckB.getTempo()+1 <= 256) {
-					deckB.setTempo(deckB.getTempo()+1);
-					temposliderB.setValue(deckB.getTempo());
+					mixer.setTempo(1, deckB.getTempo()+1);
+					temposliderB.setValue(deckB.getTempo()+1);
 				}
 			}
 			println("[Deck B Tempo Nudge Up]");
@@ -2334,8 +2687,8 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccPauseB && altbutton) {
 			if (value == 127) {
 				if(deckB.getTempo()-1 >= 31) {
-					deckB.setTempo(deckB.getTempo()-1);
-					temposliderB.setValue(deckB.getTempo());
+					mixer.setTempo(1, deckB.getTempo()-1);
+					temposliderB.setValue(deckB.getTempo()-1);
 				}
 			}
 			println("[Deck B Tempo Nudge Down]");
@@ -2343,24 +2696,24 @@ public class Chipdisco6 extends PApplet {
 		
 		// MATCH TEMPO AND SLAVE-SYNC DECK B TO NEXT DECK A ROW0 
 		if( number == ccSyncA && !altbutton && value == 127) {
-			deckB.setTempo(deckA.getTempo());	
+			mixer.setTempo(1, deckA.getTempo());	
 			temposliderB.setValue(deckA.getTempo());
-			deckAslavesync = true;
+			mixer.sync.arm(0, syncboundary);
 			println("[Sync-Lock Deck B (Slave) to Deck A (Master)]");
 		}
 		// MATCH TEMPO AND SLAVE-SYNC DECK A TO NEXT DECK B ROW0
 		if( number == ccSyncB && !altbutton && value == 127) {
-			deckA.setTempo(deckB.getTempo());
+			mixer.setTempo(0, deckB.getTempo());
 			temposliderA.setValue(deckB.getTempo());
-			deckBslavesync = true;
+			mixer.sync.arm(1, syncboundary);
 			println("[Sync-Lock Deck A (Slave) to Deck B (Master)]");
 		}
 		
 		//SYNC DECKS
 		if ( number == ccForcesync) {
 			if(value == 127) {
-				deckA.setNext_row(0);
-				deckB.setNext_row(0);
+				mixer.setNextRow(0, 0);
+				mixer.setNextRow(1, 0);
 			}
 			println("[Force-Sync Decks To Row 0]");
 		}
@@ -2373,7 +2726,7 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccTempoA && altbutton == false){
 			if (tempoknoblock == false){
 				int tempoadjust = constrain((int)map(value, 0, 127, 32, 255), 32, 255);
-				deckA.setTempo(tempoadjust);
+				mixer.setTempo(0, tempoadjust);
 				bpmvalue = tempoadjust;
 				temposliderA.setValue(tempoadjust);
 				println("[Deck A Tempo]");
@@ -2390,10 +2743,10 @@ public class Chipdisco6 extends PApplet {
 		//DECK A SCAN/SEEK PATTERN
 		if ( number == ccSeekA) {
 			if (value == 127){
-				deckA.setNext_sequence_index(deckA.getCurrent_sequence_index()+1, 0);
+				mixer.setNextSequence(0, deckA.getCurrent_sequence_index()+1, 0);
 			}
 			if (value == 0 && (deckA.getNext_row() - 4 > 0)) {
-				deckA.setNext_sequence_index(deckA.getCurrent_sequence_index()-1, 0);
+				mixer.setNextSequence(0, deckA.getCurrent_sequence_index()-1, 0);
 			}
 			println("[Deck A Seek Pattern]");
 		}
@@ -2405,7 +2758,7 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccTempoB && altbutton == false){
 			if (tempoknoblockB == false){
 				int tempoadjustB = constrain((int)map(value, 0, 127, 32, 255), 32, 255);
-				deckB.setTempo(tempoadjustB);
+				mixer.setTempo(1, tempoadjustB);
 				temposliderB.setValue(tempoadjustB);
 				//bpmvalueB = deckB.initialtempo; // Should this be here? I don't think so...
 				println("[Deck B Tempo]");
@@ -2422,22 +2775,22 @@ public class Chipdisco6 extends PApplet {
 		//DECK B SCAN/SEEK PATTERN
 		if ( number == ccSeekB) {
 			if (value == 127){
-				deckB.setNext_sequence_index(deckB.getCurrent_sequence_index()+1, 0);
+				mixer.setNextSequence(1, deckB.getCurrent_sequence_index()+1, 0);
 			}
 			if (value == 0 && (deckA.getNext_row() - 4 > 0)) {
-				deckB.setNext_sequence_index(deckB.getCurrent_sequence_index()-1, 0);
+				mixer.setNextSequence(1, deckB.getCurrent_sequence_index()-1, 0);
 			}
 			println("[Deck B Seek Pattern]");
 		}
 		
 		// Deck A Transpose
 		if(number == ccTransposeA) {
-			deckA.setTranspose(-1, (int)map(value, 0, 127, -12, 12));
+			mixer.setTranspose(0, (int)map(value, 0, 127, -12, 12));
 			translideA.setValue(map(value, 0, 127, -12, 12)+12);
 		}
 		// Deck B Transpose
 		if(number == ccTransposeB) {
-			deckB.setTranspose(-1, (int)map(value, 0, 127, -12, 12));
+			mixer.setTranspose(1, (int)map(value, 0, 127, -12, 12));
 			translideB.setValue(map(value, 0, 127, -12, 12)+12);
 		}
 		// AVAILABLE
@@ -2452,12 +2805,12 @@ public class Chipdisco6 extends PApplet {
 		
 		//RESET BPM TEMPO
 		if ( number == ccResetTempoA && !altbutton) {
-			deckA.setTempo(deckA.initialtempo);	
+			mixer.setTempo(0, deckA.initialtempo);	
 			temposliderA.setValue(deckA.initialtempo);
 			println("[Deck A Reset Tempo]");
 		}
 		if ( number == ccResetTempoB && !altbutton) {
-			deckB.setTempo(deckB.initialtempo);
+			mixer.setTempo(1, deckB.initialtempo);
 			temposliderB.setValue(deckB.initialtempo);
 			println("[Deck B Reset Tempo]");
 		}
@@ -2494,6 +2847,14 @@ public class Chipdisco6 extends PApplet {
 
 		
 
+		// Loop length knobs: 1, 2, 4 ... 128 rows across the travel
+		if (number == ccLoopLengthA && !altbutton) {
+			setLoopLength(0, 1 << (value / 16));
+		}
+		if (number == ccLoopLengthB && !altbutton) {
+			setLoopLength(1, 1 << (value / 16));
+		}
+
 		// Deck B loopsegment TRIGGER
 		if ( number == ccPattLoopTrigB && !altbutton){
 			if (loopcurrentsegmentB == true){
@@ -2526,35 +2887,35 @@ public class Chipdisco6 extends PApplet {
 		// Deck A and B Channel Volume (chans 1-4 for each)
 		
 		if ( number == ccChanvolA1) {
-			deckA.setChanvol(0, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(0, 0, (int)map(value, 0, 127, 0, 48));
 			println("[Deck A Channel 1 Volume]");
 		}
 		if ( number == ccChanvolA2) {
-			deckA.setChanvol(1, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(0, 1, (int)map(value, 0, 127, 0, 48));
 			println("[Deck A Channel 2 Volume]");
 		}
 		if ( number == ccChanvolA3) {
-			deckA.setChanvol(2, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(0, 2, (int)map(value, 0, 127, 0, 48));
 			println("[Deck A Channel 3 Volume]");
 		}
 		if ( number == ccChanvolA4) {
-			deckA.setChanvol(3, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(0, 3, (int)map(value, 0, 127, 0, 48));
 			println("[Deck A Channel 4 Volume]");
 		}
 		if ( number == ccChanvolB1) {
-			deckB.setChanvol(0, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(1, 0, (int)map(value, 0, 127, 0, 48));
 			println("[Deck B Channel 1 Volume]");
 		}
 		if ( number == ccChanvolB2) {
-			deckB.setChanvol(1, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(1, 1, (int)map(value, 0, 127, 0, 48));
 			println("[Deck B Channel 2 Volume]");
 		}
 		if ( number == ccChanvolB3) {
-			deckB.setChanvol(2, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(1, 2, (int)map(value, 0, 127, 0, 48));
 			println("[Deck B Channel 3 Volume]");
 		}
 		if ( number == ccChanvolB4) {
-			deckB.setChanvol(3, (int)map(value, 0, 127, 0, 48));
+			mixer.setChanvol(1, 3, (int)map(value, 0, 127, 0, 48));
 			println("[Deck B Channel 4 Volume]");
 		}
 		
@@ -2563,44 +2924,44 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccChanmuteA1 && !altbutton) {
 
 			if (value == 0) {
-				deckA.setChanmute(0, false);
+				mixer.setChanmute(0, 0, false);
 			}
 
 			if (value == 127) {
-				deckA.setChanmute(0, true);
+				mixer.setChanmute(0, 0, true);
 			}
 
 		}
 		if ( number == ccChanmuteA2 && !altbutton) {
 
 			if (value == 0) {
-				deckA.setChanmute(1, false);
+				mixer.setChanmute(0, 1, false);
 			}
 
 			if (value == 127) {
-				deckA.setChanmute(1, true);
+				mixer.setChanmute(0, 1, true);
 			}
 
 		}
 		if ( number == ccChanmuteA3 && !altbutton) {
 
 			if (value == 0) {
-				deckA.setChanmute(2, false);
+				mixer.setChanmute(0, 2, false);
 			}
 
 			if (value == 127) {
-				deckA.setChanmute(2, true);
+				mixer.setChanmute(0, 2, true);
 			}
 
 		}
 		if ( number == ccChanmuteA4 && !altbutton) {
 
 			if (value == 0) {
-				deckA.setChanmute(3, false);
+				mixer.setChanmute(0, 3, false);
 			}
 
 			if (value == 127) {
-				deckA.setChanmute(3, true);
+				mixer.setChanmute(0, 3, true);
 			}
 
 		}
@@ -2610,44 +2971,44 @@ public class Chipdisco6 extends PApplet {
 		if ( number == ccChanmuteB1 && !altbutton) {
 
 			if (value == 0) {
-				deckB.setChanmute(0, false);
+				mixer.setChanmute(1, 0, false);
 			}
 
 			if (value == 127) {
-				deckB.setChanmute(0, true);
+				mixer.setChanmute(1, 0, true);
 			}
 
 		}
 		if ( number == ccChanmuteB2 && !altbutton) {
 
 			if (value == 0) {
-				deckB.setChanmute(1, false);
+				mixer.setChanmute(1, 1, false);
 			}
 
 			if (value == 127) {
-				deckB.setChanmute(1, true);
+				mixer.setChanmute(1, 1, true);
 			}
 
 		}
 		if ( number == ccChanmuteB3 && !altbutton) {
 
 			if (value == 0) {
-				deckB.setChanmute(2, false);
+				mixer.setChanmute(1, 2, false);
 			}
 
 			if (value == 127) {
-				deckB.setChanmute(2, true);
+				mixer.setChanmute(1, 2, true);
 			}
 
 		}
 		if ( number == ccChanmuteB4 && !altbutton) {
 
 			if (value == 0) {
-				deckB.setChanmute(3, false);
+				mixer.setChanmute(1, 3, false);
 			}
 
 			if (value == 127) {
-				deckB.setChanmute(3, true);
+				mixer.setChanmute(1, 3, true);
 			}
 
 		}
@@ -2656,90 +3017,273 @@ public class Chipdisco6 extends PApplet {
 		if(number == 33 && altbutton && value == 127) {
 				if(playlistposA - 1 >= 0) {
 					currentsong = playlistposA-1;
-					modLoader(playlistCP5_a.getItem(playlistposA-1).getName(), true,volumelocal, 0, playlistposA-1);				
+					modLoaderAsync(playlistA.pathAt(playlistposA-1), true, 0, playlistposA-1);				
 					//println("Now playing: " + tempentry.content);
-					if (deckA.loadSuccess > 0) {
-						displayInfo(1, 'a');
-						temposliderA.setValue(deckA.initialtempo);
-						translideA.setValue(12);
-					}
-					playbt.btimg = loadImage("controls_04BIG.png");
+					playbt.frame = iconPlaying;
 				}
 		}
 		// DECK A NEXT MODULE
 		if(number == 34 && altbutton && value == 127) {
-			if(playlistposA+1 < playlistCP5_a.getListBoxItems().length) {
+			if(playlistposA+1 < playlistA.size()) {
 				currentsong = playlistposA+1;
-				modLoader(playlistCP5_a.getItem(playlistposA+1).getName(), true,volumelocal, 0, playlistposA+1);				
+				modLoaderAsync(playlistA.pathAt(playlistposA+1), true, 0, playlistposA+1);				
 				//println("Now playing: " + tempentry.content);
-				if (deckA.loadSuccess > 0) {
-					displayInfo(1, 'a');
-					temposliderA.setValue(deckA.initialtempo);
-					translideA.setValue(12);
-				}
-				playbt.btimg = loadImage("controls_04BIG.png");
+				playbt.frame = iconPlaying;
 			}
 		}
 		// DECK B PREV MODULE
 		if(number == 37 && altbutton && value == 127) {
 				if(playlistposB - 1 >= 0) {
 					currentsongB = playlistposB-1;
-					modLoader(playlistCP5_b.getItem(playlistposB-1).getName(), true,volumelocalB, 1, playlistposB-1);				
+					modLoaderAsync(playlistB.pathAt(playlistposB-1), true, 1, playlistposB-1);				
 					//println("Now playing: " + tempentry.content);
-					if (deckB.loadSuccess > 0) {
-						displayInfo(1, 'b');
-						temposliderB.setValue(deckB.initialtempo);
-						translideB.setValue(12);
-					}
-					playbtB.btimg = loadImage("controls_04BIG.png");
+					playbtB.frame = iconPlaying;
 				}
 		}
 		if(number == 38 && altbutton && value == 127) {
-			if(playlistposB+1 < playlistCP5_b.getListBoxItems().length) {
+			if(playlistposB+1 < playlistB.size()) {
 				currentsongB = playlistposB+1;
-				modLoader(playlistCP5_b.getItem(playlistposB+1).getName(), true,volumelocalB, 1, playlistposB+1);				
+				modLoaderAsync(playlistB.pathAt(playlistposB+1), true, 1, playlistposB+1);				
 				//println("Now playing: " + tempentry.content);
-				if (deckB.loadSuccess > 0) {
-					displayInfo(1, 'b');
-					temposliderB.setValue(deckB.initialtempo);
-					translideB.setValue(12);
-				}
-				playbtB.btimg = loadImage("controls_04BIG.png");
+				playbtB.frame = iconPlaying;
 			}
 		}
 		
 		cueFix();
 	}
 
-	public void modLoader(String path, boolean autostart, int volume, int deck, int listpos) {
+	public void modLoader(String path, boolean autostart, int deck, int listpos) {
 		// 0 == deckA, 1 == deckB
+		// Never autostart PortaMod's own player - the master mixer does the playing. Global volume stays
+		// at full since the deck level is applied by the mixer.
+		PortaMod target = (deck < 1) ? deckA : deckB;
+		long started = System.nanoTime();
+		mixer.pause(deck);
+		// if the standby already has this one loaded, swap it in whole rather than loading here
+		PortaMod ready = standby[deck].swap(path, target);
+		if (ready != null) {
+			installDeck(deck, ready);
+		} else {
+			// shares the other deck's module if it has this one, loads the file if not
+			ModuleShare.loadInto(mixer.getDeck(1 - deck), path, target);
+		}
+		mixer.metrics.moduleLoad.recordNanos(System.nanoTime() - started);
+		deckLoaded(path, autostart, deck, listpos);
+	}
+	
+	/**
+	 * Like modLoader(), but returns straight away. The file is read and parsed on the deck's
+	 * standby thread while the deck carries on playing what it has; draw() swaps the new module
+	 * in once it's completely ready. Asking for another load on the same deck cancels this one.
+	 */
+	public ModLoad modLoaderAsync(String path, boolean autostart, int deck, int listpos) {
+		ModLoad load = standby[deck].load(path, mixer, 1 - deck);
+		synchronized (loadLock) {
+			loading[deck] = load;
+			loadAutostart[deck] = autostart;
+			loadListpos[deck] = listpos;
+		}
+		return load;
+	}
+	
+	// Animation thread: swap in any async loads that have finished
+	public void checkLoads() {
+		for (int deck = 0; deck < 2; deck++) {
+			ModLoad load;
+			boolean autostart;
+			int listpos;
+			synchronized (loadLock) {
+				load = loading[deck];
+				if (load == null || !load.isDone()) {
+					continue;
+				}
+				loading[deck] = null;
+				autostart = loadAutostart[deck];
+				listpos = loadListpos[deck];
+			}
+			if (!load.succeeded()) {
+				if (load.getError() != null) {
+					println("Couldn't load " + load.path + ": " + load.getError());
+				}
+				continue;
+			}
+			mixer.metrics.moduleLoad.recordNanos(load.getElapsedNanos());
+			PortaMod ready = standby[deck].take(load, (deck < 1) ? deckA : deckB);
+			if (ready == null) {
+				continue;
+			}
+			mixer.pause(deck);
+			installDeck(deck, ready);
+			deckLoaded(load.path, autostart, deck, listpos);
+			loadFinished(deck);
+		}
+	}
+	
+	// Where deck's pending async load has got to. PortaMod doesn't report progress through
+	// a load, so that's just whether it's waiting its turn or under way.
+	public int loadStage(int deck) {
+		synchronized (loadLock) {
+			if (loading[deck] == null) {
+				return LOAD_NONE;
+			}
+			return loading[deck].isStarted() ? LOAD_RUNNING : LOAD_QUEUED;
+		}
+	}
+	
+	void installDeck(int deck, PortaMod ready) {
+		if (deck < 1) {
+			deckA = ready;
+		} else {
+			deckB = ready;
+		}
+		mixer.setDeck(deck, ready);
+	}
+	
+	// The bookkeeping every load ends with, whichever way the module got there
+	void deckLoaded(String path, boolean autostart, int deck, int listpos) {
+		PortaMod target = (deck < 1) ? deckA : deckB;
+		moduleIndex.record(path, target);
 		if(deck < 1) {
-			deckA.doModLoad(path, autostart, volume);			
 			playlistposA = listpos;
-			if(deckAcue) {
-				for (int i=0; i < deckA.numchannels; i++) {
-					deckA.player.ibxm.channels[i].set_panning(255);
-				}
-			} else {
-				for (int i=0; i < deckA.numchannels; i++) {
-					deckA.player.ibxm.channels[i].set_panning(0);
-				}
-			}
 		} else {
-			deckB.doModLoad(path, autostart, volume);
 			playlistposB = listpos;
-			if(deckBcue) {
-				for (int i=0; i < deckB.numchannels; i++) {
-					deckB.player.ibxm.channels[i].set_panning(255);
-				}
-			} else {
-				for (int i=0; i < deckB.numchannels; i++) {
-					deckB.player.ibxm.channels[i].set_panning(0);
-				}
+		}
+		playingEntry[deck] = playlist(deck).idAt(listpos);
+		playlistView(deck).setPlaying(playingEntry[deck]);
+		doVolume();
+		if(autostart && target.loadSuccess > 0) {
+			mixer.play(deck);
+		}
+		preloadNext(deck, listpos);
+	}
+	
+	// What the playlist and MIDI next/prev do once their new module is on the deck
+	public void loadFinished(int deck) {
+		if (deck < 1) {
+			if (deckA.loadSuccess > 0) {
+				displayInfo(1, 'a');
+				temposliderA.setValue(deckA.initialtempo);
+				translideA.setValue(12);
+			}
+		} else {
+			if (deckB.loadSuccess > 0) {
+				displayInfo(1, 'b');
+				temposliderB.setValue(deckB.initialtempo);
+				translideB.setValue(12);
+			}
+		}
+	}
+	
+	Playlist playlist(int deck) {
+		return (deck < 1) ? playlistA : playlistB;
+	}
+	
+	PlaylistView playlistView(int deck) {
+		return (deck < 1) ? playlistViewA : playlistViewB;
+	}
+	
+	// A click on a playlist: select the entry, or load it on a left double click
+	void playlistPressed(int deck, int id) {
+		if (id == Playlist.NONE || mouseEvent.getClickCount() != 2 || mouseButton != LEFT) {
+			return;
+		}
+		int pos = playlist(deck).positionOf(id);
+		modLoaderAsync(playlist(deck).getPath(id), true, deck, pos);
+		if (deck < 1) {
+			currentsong = pos;
+			playbt.frame = iconPlaying;
+		} else {
+			currentsongB = pos;
+			playbtB.frame = iconPlaying;
+		}
+	}
+	
+	// Get the entry after listpos loading into the deck's standby, ready for next-module
+	public void preloadNext(int deck, int listpos) {
+		String next = playlist(deck).pathAt(listpos + 1);
+		if(next != null) {
+			standby[deck].preload(next);
+		}
+	}
+	
+	// Fills in the text of a playlist's entries for a module once the analyser has been through it
+	public void showAnalysis(ModuleAnalyser.Result r) {
+		Playlist list = playlist(r.deck == 'a' ? 0 : 1);
+		String name = r.path.substring(r.path.lastIndexOf('/') + 1);
+		int bpm = round(r.info.effectiveTempo > 0 ? r.info.effectiveTempo : r.info.initialtempo);
+		String text = name + "  " + r.info.numchannels + "CH " + bpm + "BPM " + (int) (r.info.songLength / 60) + ":" + nf((int) (r.info.songLength % 60), 2);
+		for (int id = list.firstWith(r.path); id != Playlist.NONE; id = list.nextWith(id)) {
+			list.setText(id, text);
+		}
+	}
+	
+	public void searchLibrary(String query) {
+		librarySearched = query;
+		libraryResults = library.search(query, LIBRARY_RESULTS);
+		int n = libraryResults.size();
+		librarySearch.setCaptionLabel((n < LIBRARY_RESULTS ? "" + n : n + "+") + " found" + (library.isScanning() ? " so far" : ""));
+	}
+	
+	// Appends whatever the last library search found to a deck's playlist
+	public void addLibraryResults(char deck) {
+		Playlist list = playlist(deck == 'a' ? 0 : 1);
+		List<String> found = new ArrayList<String>();
+		for (int i = 0; i < libraryResults.size(); i++) {
+			MusicLibrary.Track t = libraryResults.get(i);
+			list.add(t.path, t.name);
+			found.add(t.path);
+		}
+		analyser.analyse(deck, found);
+	}
+	
+	// A module came or went in deckAdir/deckBdir (or under them) while we were running
+	public void folderChanged(FolderWatcher.Change c) {
+		Playlist list = playlist(c.deck);
+		if (c.added) {
+			list.add(c.path, new File(c.path).getName());
+			analyser.analyse(c.deck < 1 ? 'a' : 'b', Collections.singletonList(c.path));
+		} else {
+			int id;
+			while ((id = list.firstWith(c.path)) != Playlist.NONE) {
+				removeEntry(c.deck, id);
 			}
 		}
 	}
 	
+	// Takes an entry out of a deck's playlist. If it's the one playing, the deck's place moves
+	// back one so next still goes to the entry that followed it.
+	void removeEntry(int deck, int id) {
+		Playlist list = playlist(deck);
+		int pos = list.positionOf(id);
+		if (pos == Playlist.NONE) {
+			return;
+		}
+		if (id == playingEntry[deck]) {
+			playingEntry[deck] = list.idAt(pos - 1);
+		}
+		list.remove(id);
+		placeChanged(deck);
+	}
+	
+	// Positions go stale when the playlist changes underneath them; the playing entry's id doesn't
+	void placeChanged(int deck) {
+		int id = playingEntry[deck];
+		int pos = (id == Playlist.NONE) ? -1 : playlist(deck).positionOf(id);
+		playlistView(deck).setPlaying(id);
+		if (deck < 1) {
+			playlistposA = pos;
+			currentsong = pos;
+		} else {
+			playlistposB = pos;
+			currentsongB = pos;
+		}
+	}
+	
+	// headerCheck, but answered from the module index when the file hasn't changed since we last looked
+	public boolean isModule(String path) {
+		return moduleIndex.check(deckA, path);
+	}
+	
 	public String[] listFileNames(String dir) {
 		File file = new File(dir);
 		if (file.isDirectory()) {
@@ -2752,6 +3296,7 @@ public class Chipdisco6 extends PApplet {
 	}
 			
 	public void noteOn(int channel, int pitch, int velocity, String bus_name) {
+		mixer.midiEvent();
 		println("NoteBusname: " + NoteBusname + "    bus_name: " + bus_name);
 		if(bus_name == NoteBusname) {
 			println("NoteOn - Pitch: " + pitch + " Velocity: " + velocity);
@@ -2775,6 +3320,7 @@ public class Chipdisco6 extends PApplet {
 	}
 
 	public void noteOff(int channel, int pitch, int velocity, String bus_name) {
+		mixer.midiEvent();
 		if(bus_name == NoteBusname) {
 			println("NoteOff - Pitch: " + pitch + " Velocity: " + velocity);
 			if(liveinstrument[0]>=0) {
@@ -2818,10 +3364,8 @@ public class Chipdisco6 extends PApplet {
 				
 		midi2.setColorForeground(foregroundcol);
 		midi3.setColorForeground(foregroundcol);		
-		playlistCP5_a.setColorForeground(foregroundcol);
-		playlistCP5_a.setColorActive(foreshadecol);
-		playlistCP5_b.setColorForeground(foregroundcol);
-		playlistCP5_b.setColorActive(foreshadecol);		
+		playlistViewA.setColours(foregroundcol, foreshadecol);
+		playlistViewB.setColours(foregroundcol, foreshadecol);		
 		midi2.setColorActive(foregroundcol);
 		midi3.setColorActive(foregroundcol);		
 		
@@ -2831,10 +3375,8 @@ public class Chipdisco6 extends PApplet {
 	public void doListAadd(File selection) {
 		if(selection!= null) {
 			String loadpath = selection.getAbsolutePath();
-			if(deckA.headerCheck(loadpath)) {
-				String tempname = loadpath.substring(loadpath.lastIndexOf('/')).substring(1);
-				playlistCP5_a.addItem(loadpath, playlistCP5_a.getListBoxItems().length);
-				playlistCP5_a.getItem(loadpath).setText(tempname);
+			if(isModule(loadpath)) {
+				addLater(0, loadpath);
 			}
 		}
 						
@@ -2843,15 +3385,19 @@ public class Chipdisco6 extends PApplet {
 	public void doListBadd(File selection) {
 		if(selection!= null) {
 			String loadpath = selection.getAbsolutePath();
-			if(deckB.headerCheck(loadpath)) {
-				String tempname = loadpath.substring(loadpath.lastIndexOf('/')).substring(1);
-				playlistCP5_b.addItem(loadpath, playlistCP5_b.getListBoxItems().length);
-				playlistCP5_b.getItem(loadpath).setText(tempname);
+			if(isModule(loadpath)) {
+				addLater(1, loadpath);
 			}
 		}
 						
 	}
 	
+	// Drops and file choosers call us on their own threads, and the playlists are only touched
+	// from draw(), so the module waits there for the next frame
+	void addLater(int deck, String path) {
+		added.add(new PlaylistImporter.Entry(deck, path, new File(path).getName()));
+	}
+	
 	public void doLoadPlaylistA(File selection) {
 		loadm3uPlaylist('a', selection.getAbsolutePath());
 	}
@@ -2862,50 +3408,10 @@ public class Chipdisco6 extends PApplet {
 	
 	public void controlEvent(ControlEvent theEvent) {
 		cueFix();
-		//println(theEvent.name());
-		if(theEvent.isGroup() && theEvent.getName().equals("playlist_a")){
-			// CHECK FOR DOUBLE-CLICK!
-			if (mouseEvent.getClickCount() == 2) {
-				if (mouseButton == LEFT) {
-					//deckA.doModLoad(playlistCP5_a.getItem((int)theEvent.group().value()).getgetName(), true, volumelocal);
-					modLoader(playlistCP5_a.getItem((int) theEvent.getGroup().getValue()).getName(), true,volumelocal, 0, (int) theEvent.getGroup().getValue());
-					currentsong = (int) theEvent.getGroup().getValue();
-					//println("Now playing: " + tempentry.content);
-					if (deckA.loadSuccess > 0) {
-						displayInfo(1, 'a');
-						temposliderA.setValue(deckA.initialtempo);
-						translideA.setValue(12);
-					}
-					playbt.btimg = loadImage("controls_04BIG.png");
-				} 
-			} else {
-				selectedTuneA = playlistCP5_a.getItem((int) theEvent.getGroup().getValue()).getName();
-			}
-			
-			
-		}
-		
-		if(theEvent.isGroup() && theEvent.getName() == "playlist_b") {
-			// CHECK FOR DOUBLE-CLICK!
-			if (mouseEvent.getClickCount() == 2) {
-				//deckB.doModLoad(playlistCP5_b.getItem((int)theEvent.group().value()).getName(), true, volumelocalB);
-				modLoader(playlistCP5_b.getItem((int)theEvent.getGroup().getValue()).getName(), true, volumelocalB, 1, (int)theEvent.getGroup().getValue());
-				currentsongB = (int)theEvent.getGroup().getValue();
-				//println("Now playing: " + tempentry.content);
-				if (deckB.loadSuccess > 0) {
-					displayInfo(1, 'b');
-					temposliderB.setValue(deckB.initialtempo);
-					translideB.setValue(12);
-				}
-				playbtB.btimg = loadImage("controls_04BIG.png");
-			}
-			 else {
-					selectedTuneB = playlistCP5_b.getItem((int) theEvent.getGroup().getValue()).getName();
-				}
+		if (layers != null) {
+			layers.invalidate();
 		}
-		
-
-		
+		//println(theEvent.name());
 		if(theEvent.getName() == "listAadd") {						
 			
 			selectInput("Choose a MOD, S3M or XM file to add to Deck A's playlist...", "doListAadd");
@@ -2918,29 +3424,38 @@ public class Chipdisco6 extends PApplet {
 
 
 		if(theEvent.getName() == "listAloadm3u") {			
-			selectInput("Choose an m3u playlist file to load", "doLoadPlaylistA");			
+			selectInput("Choose an m3u or pls playlist file to load", "doLoadPlaylistA");			
 		}
 		if(theEvent.getName() == "listBloadm3u") {
-			selectInput("Choose an m3u playlist file to load", "doLoadPlaylistB");
+			selectInput("Choose an m3u or pls playlist file to load", "doLoadPlaylistB");
 		}
 		if(theEvent.getName() == "listAsavem3u") {
 			savePlaylistToFile('a');
 		}
+		if(theEvent.getName() == "librarySearch") {
+			searchLibrary(theEvent.getStringValue());
+		}
+		if(theEvent.getName() == "libraryToA") {
+			addLibraryResults('a');
+		}
+		if(theEvent.getName() == "libraryToB") {
+			addLibraryResults('b');
+		}
 		if(theEvent.getName() == "listBsavem3u") {
 			savePlaylistToFile('b');
 		}
 		
 		if(theEvent.getName() == "intTransposeA") {
-			if(deckA.loadSuccess > 0 && deckA.playing) {
-				deckA.setTranspose(-1, (int)map(theEvent.getValue(), 0, 24, -12, 12));
+			if(deckA.loadSuccess > 0 && mixer.isPlaying(0)) {
+				mixer.setTranspose(0, (int)map(theEvent.getValue(), 0, 24, -12, 12));
 				transpose = (int)map(theEvent.getValue(), 0, 24, -12, 12);
 				transpose = (int)map(theEvent.getValue(), 0, 24, -12, 12);
-				deckA.setTranspose(-1, transpose);
+				mixer.setTranspose(0, transpose);
 			}
 		}
 		if(theEvent.getName() == "intTransposeB") {
-			if(deckB.loadSuccess > 0 && deckB.playing) {
-				deckB.setTranspose(-1, (int)map(theEvent.getValue(), 0, 24, -12, 12));
+			if(deckB.loadSuccess > 0 && mixer.isPlaying(1)) {
+				mixer.setTranspose(1, (int)map(theEvent.getValue(), 0, 24, -12, 12));
 				transposeB = (int)map(theEvent.getValue(), 0, 24, -12, 12);
 			}
 		}
@@ -2957,17 +3472,17 @@ public class Chipdisco6 extends PApplet {
 		}
 		
 		if(theEvent.getName() == "listAremove") {
-
+			removeEntry(0, playlistViewA.getSelected());
 		}
 		if(theEvent.getName() == "listBremove") {
-
+			removeEntry(1, playlistViewB.getSelected());
 		}
 		
 		if(theEvent.getName() == "intTempoA") {
-			if(deckA.loadSuccess > 0) {deckA.setTempo((int)theEvent.getValue());}
+			if(deckA.loadSuccess > 0) {mixer.setTempo(0, (int)theEvent.getValue());}
 		}
 		if(theEvent.getName() == "intTempoB") {
-			if(deckB.loadSuccess > 0) {deckB.setTempo((int)theEvent.getValue());}
+			if(deckB.loadSuccess > 0) {mixer.setTempo(1, (int)theEvent.getValue());}
 		}
 		
 		if(theEvent.getName() == "intCrossfade") {
@@ -3023,7 +3538,12 @@ public class Chipdisco6 extends PApplet {
 		
 		if(theEvent.getName() == "slicebehaviour") {
 			try {
-				slicetriggerbehaviour = (int)theEvent.getGroup().getValue();
+				int slicechoice = (int)theEvent.getGroup().getValue();
+				if (slicechoice >= 10) {
+					mixer.slices.setQuantize(slicechoice - 10);
+				} else {
+					slicetriggerbehaviour = slicechoice;
+				}
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -3034,79 +3554,26 @@ public class Chipdisco6 extends PApplet {
 	}
 	
 	public void doVolume(){
-		if (deckA.loadSuccess > 0 && deckB.loadSuccess > 0) {
-			
-			int deckAoverallVol = (int) volumesliderA.getValue(); // between 0 and 48
-			int deckBoverallVol = (int) volumesliderB.getValue(); // between 0 and 48
-			int crossfaderposition = (int) crossfadeslider.getValue(); // 0 and 96: 0-64 for deck A, 24-96 for deck B.
-			
-			if (crossbehaviour == 0) {
-				// I'll have to check for crossfader behaviour here and adjust the calculations accordingly
-				if (crossfaderposition > 48) { // deckA volume should fall off to zero beyond 64; deckB should be 100%
-					deckAoverallVol = (int) map(crossfaderposition, 48, 96,
-							(int) volumesliderA.getValue(), 0);
-				}
-				if (crossfaderposition < 48) { // Crossfader
-					deckBoverallVol = (int) map(crossfaderposition, 48, 0,
-							(int) volumesliderB.getValue(), 0);
-				}
-			}
-			
-			if (crossbehaviour == 1) {
-				// BEATMATCH behaviour - e.g. A scales from 100% at the left to 0% at the right
-				float inputvalA = map(crossfaderposition, 0, 96, 0, 1);
-				float inputvalB = map(crossfaderposition, 96, 0, 0, 1);
-				float inputlogA = log(1-inputvalA);
-				float inputlogB = log(1-inputvalB);
-				deckAoverallVol = (int) map(inputlogA, 0f, -4f, 48, 0);				
-				deckBoverallVol = (int) map(inputlogB, 0f, -4f, 48, 0);
-			}
-						
-			
-			if (crossbehaviour == 2) {
-				// A-BIAS CUT
-				if (crossfaderposition > 8) { // deckA volume should fall off to zero beyond 64; deckB should be 100%
-					deckBoverallVol = (int) volumesliderB.getValue();
-					deckAoverallVol = 0;					
-				} else {
-					deckAoverallVol = (int) volumesliderA.getValue();
-					deckBoverallVol = 0;
-				}				
-			}
-			
-			if (crossbehaviour == 3) {
-				// B-BIAS CUT
-				if (crossfaderposition > 88) { // deckA volume should fall off to zero beyond 64; deckB should be 100%
-					deckBoverallVol = (int) volumesliderB.getValue();
-					deckAoverallVol = 0;
-				} else {
-					deckAoverallVol = (int) volumesliderA.getValue();
-					deckBoverallVol = 0;					
-				}
-			}
-			
-			if (crossbehaviour == 4) {
-				// I'll have to check for crossfader behaviour here and adjust the calculations accordingly
-
-					deckAoverallVol = (int) map(crossfaderposition, 0, 96,
-							(int) volumesliderA.getValue(), 0);
-
-					deckBoverallVol = (int) map(crossfaderposition, 96, 0,
-							(int) volumesliderB.getValue(), 0);
-			}
-			
-			if (!deckAcue) {
-				deckA.setGlobvol(deckAoverallVol);
-				volumelocal = deckAoverallVol; // We set this so that subsequent modLoads can init at the same volume
-			} else {
-				deckA.setGlobvol(cuevolume);
-			}
-			if (!deckBcue) {
-				deckB.setGlobvol(deckBoverallVol);
-				volumelocalB = deckBoverallVol; // We set this so that subsequent modLoads can init at the same volume
-			} else {
-				deckB.setGlobvol(cuevolume);
-			}
+		// Works out each deck's level from its fader, the crossfader and the curve, then hands it to the mixer.
+		// The mixer ramps to the new gains over one block, so this is cheap to call as often as we like.
+		
+		// called from both the animation and MIDI threads, so the levels stay local
+		int[] decklevels = new int[2];
+		Crossfader.levels(crossbehaviour, (int) crossfadeslider.getValue(), (int) volumesliderA.getValue(), (int) volumesliderB.getValue(), decklevels);
+		int deckAoverallVol = decklevels[0]; // between 0 and 48
+		int deckBoverallVol = decklevels[1];
+		
+		if (!deckAcue) {
+			mixer.setGains(0, deckAoverallVol / 64f, 0f);
+			volumelocal = deckAoverallVol;
+		} else {
+			mixer.setGains(0, 0f, cuevolume / 64f);
+		}
+		if (!deckBcue) {
+			mixer.setGains(1, deckBoverallVol / 64f, 0f);
+			volumelocalB = deckBoverallVol;
+		} else {
+			mixer.setGains(1, 0f, cuevolume / 64f);
 		}
 		
 	}
@@ -3125,41 +3592,9 @@ public class Chipdisco6 extends PApplet {
 		}		
 	}
 		
+	// m3u, m3u8 or pls: read and checked in the background, entries turn up in draw() as they're found
 	public void loadm3uPlaylist(char deck, String path) {
-			if (deck == 'a') {
-				if (loadStrings(path) != null) {
-					String m3ulines[] = loadStrings(path);
-						for (int i = 0; i < m3ulines.length; i++) {
-							if (match(m3ulines[i], "#") == null) {
-								//continue - we only want lines with no hashes at the beginning
-								String temppath = StringEscapeUtils.escapeJava(m3ulines[i]);
-								String tempname = temppath.substring(temppath.lastIndexOf('/')).substring(1);
-								if (deckA.headerCheck(temppath)) {
-									playlistCP5_a.addItem(temppath, playlistCP5_a.getListBoxItems().length);
-									playlistCP5_a.getItem(temppath).setText(tempname);									
-								}
-							} 						
-					}
-				}
-			}
-			if (deck == 'b') {
-				if (loadStrings(path) != null) {
-					String m3ulines[] = loadStrings(path);
-						for (int i = 0; i < m3ulines.length; i++) {
-							if (match(m3ulines[i], "#") == null) {
-								//continue - we only want lines with no hashes at the beginning
-								String temppath = StringEscapeUtils.escapeJava(m3ulines[i]);
-								String tempname = temppath.substring(temppath.lastIndexOf('/')).substring(1);
-								if (deckB.headerCheck(temppath)) {
-									playlistCP5_b.addItem(temppath, playlistCP5_b.getListBoxItems().length);
-									playlistCP5_b.getItem(temppath).setText(tempname);									
-								}
-							} 						
-					}
-				}
-			}
-
-		
+		importer.start(deck == 'a' ? 0 : 1, path);
 	}
 
 	
@@ -3181,19 +3616,16 @@ public class Chipdisco6 extends PApplet {
 		public char currentdeck;
 
 		ChipdiscoDropListenerA() {
-			setTargetRect(playlistCP5_a.getPosition().x, playlistCP5_a.getPosition().y, playlistCP5_a.getPosition().x + playlistCP5_a.getWidth(), (playlistCP5_a.getPosition().y + 195));
+			setTargetRect(playlistViewA.x, playlistViewA.y, playlistViewA.x + playlistViewA.w, playlistViewA.y + playlistViewA.h);
 		}
 
 		public void dropEvent(DropEvent theEvent) {
 			println("File was dropped in playlist A: " + theEvent.filePath());
-			String ext = theEvent.filePath().substring(theEvent.filePath().length()-3, theEvent.filePath().length());
-			if (ext.equalsIgnoreCase("m3u")){
+			if (PlaylistImporter.isPlaylist(theEvent.filePath())) {
 				loadm3uPlaylist('a', theEvent.filePath());
 			} else {
-				if(deckA.headerCheck(theEvent.filePath())) {
-					String tempname = theEvent.filePath().substring(theEvent.filePath().lastIndexOf('/')).substring(1);
-					playlistCP5_a.addItem(theEvent.filePath(), playlistCP5_a.getListBoxItems().length);
-					playlistCP5_a.getItem(theEvent.filePath()).setText(tempname);
+				if(isModule(theEvent.filePath())) {
+					addLater(0, theEvent.filePath());
 				}
 			}	
 		}
@@ -3204,18 +3636,15 @@ public class Chipdisco6 extends PApplet {
 		public char currentdeck;
 
 		ChipdiscoDropListenerB() {
-			setTargetRect(playlistCP5_b.getPosition().x, playlistCP5_b.getPosition().y, playlistCP5_b.getPosition().x + playlistCP5_b.getWidth(), (playlistCP5_b.getPosition().y + 195));
+			setTargetRect(playlistViewB.x, playlistViewB.y, playlistViewB.x + playlistViewB.w, playlistViewB.y + playlistViewB.h);
 		}
 
 		public void dropEvent(DropEvent theEvent) {
-			String ext2 = theEvent.filePath().substring(theEvent.filePath().length()-3, theEvent.filePath().length());
-			if (ext2.equalsIgnoreCase("m3u")){
+			if (PlaylistImporter.isPlaylist(theEvent.filePath())) {
 				loadm3uPlaylist('b', theEvent.filePath());
 			} else {
-				if(deckB.headerCheck(theEvent.filePath())) {
-					String tempname = theEvent.filePath().substring(theEvent.filePath().lastIndexOf('/')).substring(1);
-					playlistCP5_b.addItem(theEvent.filePath(), playlistCP5_b.getListBoxItems().length);
-					playlistCP5_b.getItem(theEvent.filePath()).setText(tempname);
+				if(isModule(theEvent.filePath())) {
+					addLater(1, theEvent.filePath());
 				}
 			}	
 		}
@@ -3223,6 +3652,18 @@ public class Chipdisco6 extends PApplet {
 	
 	
 	public void stop() {
+		if (spectrum != null) {
+			spectrum.stop();
+		}
+		mixer.metrics.stop();
+		mixer.stop();
+		analyser.shutdown();
+		importer.shutdown();
+		library.stop();
+		watcher.stop();
+		standby[0].shutdown();
+		standby[1].shutdown();
+		moduleIndex.save();
 		deckA.stop();
 		deckB.stop();
 		super.stop();
@@ -0,0 +1,74 @@
+/**
+ * The crossfader curves, pulled out of doVolume() so they don't need the sliders (or a PApplet)
+ * to work. Everything is in the UI's units: deck faders run 0-48, the crossfader 0-96 with A on
+ * the left, and the results are deck levels 0-48.
+ */
+public class Crossfader {
+
+	public static final int CENTRE = 48;
+	public static final int RANGE = 96;
+
+	/**
+	 * Works out both decks' levels for the given curve (the X-CURVE menu / xcurve config value),
+	 * crossfader position and deck faders. out[0] is deck A, out[1] is deck B.
+	 */
+	public static void levels(int curve, int position, int faderA, int faderB, int[] out) {
+		int deckAoverallVol = faderA;
+		int deckBoverallVol = faderB;
+
+		if (curve == 0) {
+			if (position > CENTRE) { // deckA volume falls off to zero past the middle; deckB stays at 100%
+				deckAoverallVol = (int) map(position, CENTRE, RANGE, faderA, 0);
+			}
+			if (position < CENTRE) {
+				deckBoverallVol = (int) map(position, CENTRE, 0, faderB, 0);
+			}
+		}
+
+		if (curve == 1) {
+			// BEATMATCH behaviour - e.g. A scales from 100% at the left to 0% at the right
+			float inputvalA = map(position, 0, RANGE, 0, 1);
+			float inputvalB = map(position, RANGE, 0, 0, 1);
+			float inputlogA = (float) Math.log(1 - inputvalA);
+			float inputlogB = (float) Math.log(1 - inputvalB);
+			deckAoverallVol = (int) map(inputlogA, 0f, -4f, 48, 0);
+			deckBoverallVol = (int) map(inputlogB, 0f, -4f, 48, 0);
+		}
+
+		if (curve == 2) {
+			// A-BIAS CUT
+			if (position > 8) {
+				deckBoverallVol = faderB;
+				deckAoverallVol = 0;
+			} else {
+				deckAoverallVol = faderA;
+				deckBoverallVol = 0;
+			}
+		}
+
+		if (curve == 3) {
+			// B-BIAS CUT
+			if (position > 88) {
+				deckBoverallVol = faderB;
+				deckAoverallVol = 0;
+			} else {
+				deckAoverallVol = faderA;
+				deckBoverallVol = 0;
+			}
+		}
+
+		if (curve == 4) {
+			// FADE
+			deckAoverallVol = (int) map(position, 0, RANGE, faderA, 0);
+			deckBoverallVol = (int) map(position, RANGE, 0, faderB, 0);
+		}
+
+		out[0] = deckAoverallVol;
+		out[1] = deckBoverallVol;
+	}
+
+	// same as PApplet.map(), without dragging the applet class in
+	static float map(float value, float start1, float stop1, float start2, float stop2) {
+		return start2 + (stop2 - start2) * ((value - start1) / (stop1 - start1));
+	}
+}
@@ -0,0 +1,119 @@
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer/single-consumer ring of deck commands.
+ *
+ * Each thread that wants to poke a deck (the animation thread, the MIDI bus, etc.) gets its own
+ * queue from the MasterMixer, and the mixer's audio thread is the only consumer. Commands are
+ * four ints packed into parallel arrays, so posting one never allocates or takes a lock.
+ * Each also carries the time it was posted - or, for a MIDI thread, when the MIDI event that
+ * caused it arrived - so the mixer can measure how long commands take to reach the decks.
+ */
+public class DeckCommandQueue {
+
+	// command types
+	public static final int TEMPO = 1;			// a = bpm
+	public static final int TRANSPOSE = 2;		// a = semitones
+	public static final int NEXT_SEQUENCE = 3;	// a = sequence index, b = 1 to restart from row 0, 0 to continue
+	public static final int NEXT_ROW = 4;		// a = row
+	public static final int CHANVOL = 5;		// a = channel, b = volume (0-64)
+	public static final int CHANMUTE = 6;		// a = channel, b = 1 muted, 0 unmuted
+	public static final int SLICE = 7;			// as NEXT_SEQUENCE, but quantized by the SliceScheduler
+	public static final int CANCEL_SLICE = 8;	// drop the deck's held slice trigger, if any
+
+	final int capacity;
+	final int mask;
+	final int[] types;
+	final int[] decks;
+	final int[] argsA;
+	final int[] argsB;
+	final long[] stamps;
+
+	// the thread posting to us, only looked at by the mixer when it's handing out queues
+	WeakReference<Thread> owner = new WeakReference<Thread>(null);
+
+	// producer only: set by beginEvent() on a MIDI thread, stamped on everything posted until the next
+	volatile boolean midi = false;
+	long eventNanos = 0;
+	// consumer only: stamp of the command poll() last returned
+	long polledNanos;
+
+	// head is only written by the consumer, tail only by the producer
+	final AtomicLong head = new AtomicLong(0);
+	final AtomicLong tail = new AtomicLong(0);
+
+	long dropped = 0;
+
+	public DeckCommandQueue(int size) {
+		// round up to a power of two so wrapping is a mask
+		int c = 1;
+		while (c < size) {
+			c <<= 1;
+		}
+		capacity = c;
+		mask = c - 1;
+		types = new int[c];
+		decks = new int[c];
+		argsA = new int[c];
+		argsB = new int[c];
+		stamps = new long[c];
+	}
+
+	// From now on thread is the producer. The last one must be dead, so nothing else writes tail
+	void handOver(Thread thread) {
+		owner = new WeakReference<Thread>(thread);
+		midi = false;
+		eventNanos = 0;
+	}
+
+	// Producer side: commands from here on come from a MIDI event that arrived at nanos
+	public void beginEvent(long nanos) {
+		midi = true;
+		eventNanos = nanos;
+	}
+
+	/**
+	 * Producer side. Returns false (and counts a drop) if the audio thread has fallen a whole
+	 * ring behind, which would mean it has stalled altogether.
+	 */
+	public boolean offer(int type, int deck, int a, int b) {
+		long t = tail.get();
+		if (t - head.get() >= capacity) {
+			dropped++;
+			return false;
+		}
+		int i = (int) t & mask;
+		types[i] = type;
+		decks[i] = deck;
+		argsA[i] = a;
+		argsB[i] = b;
+		stamps[i] = midi ? eventNanos : System.nanoTime();
+		// publishes the slot writes above to the consumer
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side. Copies the next command into out as {type, deck, a, b} and returns true,
+	 * or returns false if the queue is empty.
+	 */
+	public boolean poll(int[] out) {
+		long h = head.get();
+		if (h >= tail.get()) {
+			return false;
+		}
+		int i = (int) h & mask;
+		out[0] = types[i];
+		out[1] = decks[i];
+		out[2] = argsA[i];
+		out[3] = argsB[i];
+		polledNanos = stamps[i];
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,90 @@
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * Retained-mode background for draw(): the bits of the screen that never change are painted
+ * once into an offscreen layer, and each frame we only put back the regions we're about to
+ * draw over, instead of filling and repainting all 1280x630 of it.
+ *
+ * Regions are fixed rectangles (a deck's meters, a button) with their patch of the static
+ * layer cut out up front, so restoring one is a single blit with no allocation. The whole
+ * layer still goes back down now and then: for a couple of frames after any click, key or
+ * mouse move (ControlP5 draws dropdowns and tooltips wherever it likes, and we don't want their
+ * ghosts left behind), and every FULL_EVERY frames anyway as a safety net. So the saving is
+ * while the mouse is still - which, mid-set, is most of the time.
+ */
+public class DirtyRegions {
+
+	// about a second at the sketch's frame rate
+	static final int FULL_EVERY = 30;
+	// frames of full redraws after an input event
+	static final int SETTLE_FRAMES = 2;
+
+	final PApplet p;
+	final PGraphics base;
+	int fullFrames = SETTLE_FRAMES;
+	int sinceFull = 0;
+	int lastMouseX = -1, lastMouseY = -1;
+
+	public class Region {
+		final int x, y, w, h;
+		final PImage patch;
+
+		Region(int x, int y, int w, int h) {
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+			patch = base.get(x, y, w, h);
+		}
+
+		public void restore() {
+			p.image(patch, x, y);
+		}
+
+		public boolean overlaps(Region r) {
+			return x < r.x + r.w && r.x < x + w && y < r.y + r.h && r.y < y + h;
+		}
+	}
+
+	/**
+	 * base must be fully drawn (and endDraw()n) before regions are cut from it.
+	 */
+	public DirtyRegions(PApplet p, PGraphics base) {
+		this.p = p;
+		this.base = base;
+	}
+
+	public Region region(int x, int y, int w, int h) {
+		return new Region(x, y, w, h);
+	}
+
+	// Something happened that might have drawn outside our regions - repaint everything for a bit
+	public void invalidate() {
+		fullFrames = SETTLE_FRAMES;
+	}
+
+	/**
+	 * Call at the top of draw(). Returns true if this is a full frame, in which case the static
+	 * layer has been put down and everything should be drawn.
+	 */
+	public boolean beginFrame() {
+		if (p.mousePressed || p.keyPressed || p.mouseX != lastMouseX || p.mouseY != lastMouseY) {
+			fullFrames = SETTLE_FRAMES;
+		}
+		lastMouseX = p.mouseX;
+		lastMouseY = p.mouseY;
+		boolean full = fullFrames > 0 || sinceFull >= FULL_EVERY;
+		if (full) {
+			p.image(base, 0, 0);
+			sinceFull = 0;
+			if (fullFrames > 0) {
+				fullFrames--;
+			}
+		} else {
+			sinceFull++;
+		}
+		return full;
+	}
+}
@@ -0,0 +1,279 @@
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Keeps the playlists in step with deckAdir and deckBdir while the set is on: copy new tunes
+ * into either folder (or a subfolder) and they turn up at the end of that deck's playlist,
+ * delete or rename one and its entry goes.
+ *
+ * A WatchService thread watches every folder under each root. Files being written fire a run
+ * of events, so a path only gets looked at once it has been quiet for SETTLE_MS; then it's
+ * headerChecked here, through the ModuleIndex, and queued as an add or a remove for whoever
+ * owns the playlist to pick up with poll(). A rename is a remove and an add. New subfolders
+ * are watched as they appear, and anything already in them counts as added.
+ *
+ * Only the paths that changed are ever checked - nothing is rescanned. If the OS drops events
+ * (OVERFLOW) we say so rather than guess.
+ */
+public class FolderWatcher implements Runnable {
+
+	// how long a path has to go without events before we believe it's finished changing
+	static final long SETTLE_MS = 750;
+
+	public static class Change {
+		// 0 for deck A, 1 for deck B
+		public final int deck;
+		public final boolean added;
+		public final String path;
+
+		Change(int deck, boolean added, String path) {
+			this.deck = deck;
+			this.added = added;
+			this.path = path;
+		}
+	}
+
+	final ModuleIndex index;
+	final PortaMod probe;
+	// also told about every change, if there is one
+	final MusicLibrary library;
+	WatchService service;
+
+	// watcher thread only
+	final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	// each deck's folder as configured, which is how its playlist spells paths, and in full
+	final String[] given = new String[2];
+	final String[] roots = new String[2];
+	// every module we know is under a root - valid ones only, so a file that was half copied when
+	// it was first checked still counts as new once it's whole - and so a folder moved away can
+	// take its modules with it
+	final TreeSet<String> known = new TreeSet<String>();
+	// path -> when it last had an event, oldest first
+	final LinkedHashMap<Path, Long> pending = new LinkedHashMap<Path, Long>();
+
+	final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+	volatile boolean running = false;
+	Thread thread;
+
+	public FolderWatcher(PApplet host, ModuleIndex index, MusicLibrary library) {
+		this.index = index;
+		this.library = library;
+		probe = new PortaMod(host);
+	}
+
+	/**
+	 * Watch dir, and everything under it, for deck 0 or 1. Call before start().
+	 */
+	public void watch(int deck, String dir) {
+		if (dir != null && dir.length() > 0 && new File(dir).isDirectory()) {
+			given[deck] = dir;
+			roots[deck] = Paths.get(dir).toAbsolutePath().normalize().toString();
+		}
+	}
+
+	public void start() {
+		if (roots[0] == null && roots[1] == null) {
+			return;
+		}
+		try {
+			service = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			System.err.println("FolderWatcher: no watch service here (" + e + "), playlist folders won't update");
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "Chipdisco folder watcher");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (service != null) {
+			try {
+				service.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * The next change for the playlists, or null if there isn't one.
+	 */
+	public Change poll() {
+		return changes.poll();
+	}
+
+	public void run() {
+		for (int d = 0; d < roots.length; d++) {
+			if (roots[d] != null) {
+				register(new File(roots[d]), null);
+			}
+		}
+		index.save();
+		while (running) {
+			WatchKey key;
+			try {
+				// with nothing waiting to settle we can sleep until something happens
+				key = pending.isEmpty() ? service.take() : service.poll(SETTLE_MS / 4, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// ClosedWatchServiceException from stop()
+				return;
+			}
+			if (key != null) {
+				events(key);
+			}
+			settle();
+		}
+	}
+
+	void events(WatchKey key) {
+		Path dir = keys.get(key);
+		long now = System.currentTimeMillis();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				System.err.println("FolderWatcher: missed some changes under " + dir + ", rescan to catch up");
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE && child.toFile().isDirectory()) {
+				// a new folder, probably with tunes in it already - watch it and take what's there
+				List<File> found = new ArrayList<File>();
+				register(child.toFile(), found);
+				for (int i = 0; i < found.size(); i++) {
+					pending.remove(found.get(i).toPath());
+					pending.put(found.get(i).toPath(), now);
+				}
+				continue;
+			}
+			// moved to the back, so pending stays oldest first
+			pending.remove(child);
+			pending.put(child, now);
+		}
+		if (!key.reset()) {
+			// the folder's gone; its files will have sent their own deletes
+			keys.remove(key);
+		}
+	}
+
+	// Everything that has been quiet long enough: check it, and queue the change for each deck it's under
+	void settle() {
+		long now = System.currentTimeMillis();
+		boolean checked = false;
+		for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, Long> e = it.next();
+			if (now - e.getValue() < SETTLE_MS) {
+				break;
+			}
+			it.remove();
+			File f = e.getKey().toFile();
+			String full = f.getPath();
+			if (f.isDirectory()) {
+				continue;
+			}
+			if (f.isFile()) {
+				// new, or one we had that changed: only news if it came or went as far as headerCheck goes
+				if (index.check(probe, full)) {
+					if (known.add(full)) {
+						changed(full, true);
+					}
+				} else if (known.remove(full)) {
+					changed(full, false);
+				}
+				checked = true;
+			} else if (known.remove(full)) {
+				changed(full, false);
+			} else {
+				// not a file we knew, so maybe a folder that was moved or deleted: its files go too
+				List<String> under = new ArrayList<String>(known.subSet(full + File.separator, full + File.separator + Character.MAX_VALUE));
+				for (int i = 0; i < under.size(); i++) {
+					known.remove(under.get(i));
+					changed(under.get(i), false);
+				}
+			}
+		}
+		if (checked) {
+			index.save();
+		}
+	}
+
+	// Tell each deck the file's under, and the library, using the deck's own spelling of the path
+	void changed(String full, boolean added) {
+		for (int d = 0; d < roots.length; d++) {
+			if (roots[d] == null || !full.startsWith(roots[d] + File.separator)) {
+				continue;
+			}
+			String path = new File(given[d], full.substring(roots[d].length() + 1)).getPath();
+			changes.add(new Change(d, added, path));
+			if (library != null) {
+				if (added) {
+					library.added(new File(path));
+				} else {
+					library.removed(path);
+				}
+			}
+		}
+	}
+
+	// Watch dir and every folder under it. The files already there go in found if it isn't null,
+	// to be checked once they've settled, otherwise the modules among them are known straight away
+	void register(File dir, List<File> found) {
+		List<File> dirs = new ArrayList<File>();
+		dirs.add(dir);
+		while (!dirs.isEmpty()) {
+			File d = dirs.remove(dirs.size() - 1);
+			try {
+				Path p = d.toPath();
+				keys.put(p.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), p);
+			} catch (IOException e) {
+				System.err.println("FolderWatcher: couldn't watch " + d + " (" + e + ")");
+				continue;
+			}
+			File[] files = d.listFiles();
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].isDirectory()) {
+					dirs.add(files[i]);
+				} else if (found != null) {
+					found.add(files[i]);
+				} else if (index.check(probe, files[i].getAbsolutePath())) {
+					known.add(files[i].getAbsolutePath());
+				}
+			}
+		}
+	}
+}
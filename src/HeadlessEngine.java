@@ -0,0 +1,848 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import processing.core.PApplet;
+import themidibus.MidiBus;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Chipdisco with no window: both decks, the crossfader, playlists and the MIDI map, and none
+ * of ControlP5, the fonts or the images. For a small box sat next to the mixer, or a CI machine
+ * with no display.
+ *
+ * It reads the same chipdisco_config.txt and chipdisco_midimap.txt as the GUI. Playlists come
+ * from deckAdir/deckBdir (or directories and m3u/pls files on the command line), and it's played
+ * from MIDI - the same mapping as the GUI, apart from the pattern loops and live instrument -
+ * or with one-line text commands on stdin or a local socket:
+ *
+ *   play a | pause a | next a | prev a | select a 3 | load a /path/to.mod | add a dir-or-m3u
+ *   tempo a 125 | transpose a -2 | jump a 4 | volume a 48 | cue a on|off | cuevolume 40
+ *   sync b [row|beat|pattern] | row0 | loop a 8 | loop a off | slice a 12 | quantize 0-3
+ *   crossfade 0-96 | curve 0-4 | search query | pull a query | remove a 3 | move a 3 0
+ *   list a | status | help | quit
+ *
+ * Text commands all run on one control thread, in the order they arrive, so the mixer only ever
+ * sees that thread and the MIDI thread posting to it. search and pull go to the MusicLibrary
+ * built over deckAdir, deckBdir and the command line folders, and take its query syntax. Those
+ * folders are watched too, so modules copied in or deleted mid-set come and go from the
+ * playlists. PortaMod wants a PApplet to hang off; HeadlessHost gives it one that needs no
+ * display, so this runs on a box with java.awt.headless=true.
+ *
+ * Usage: HeadlessEngine [-port n] [-nomidi] [-nostdin] [dirOrM3uA [dirOrM3uB]]
+ */
+public class HeadlessEngine {
+
+	static final int DECKS = 2;
+	// most results search or pull will give back at once
+	static final int SEARCH_LIMIT = 200;
+
+	final PApplet host = HeadlessHost.create();
+	final MasterMixer mixer;
+	final PortaMod[] decks = new PortaMod[DECKS];
+	final StandbyDeck[] standby = new StandbyDeck[DECKS];
+	// headerCheck() only, so the playing decks are never locked for it
+	final PortaMod probe = new PortaMod(host);
+	final ModuleIndex index = new ModuleIndex(ModuleIndex.defaultFile());
+	final MusicLibrary library = new MusicLibrary(host, index);
+	final FolderWatcher watcher = new FolderWatcher(host, index, library);
+	final PlaylistImporter importer = new PlaylistImporter(host, index);
+
+	final Playlist[] playlists = new Playlist[DECKS];
+	// the entry each deck last loaded from its playlist, by id
+	final int[] playingEntry = { Playlist.NONE, Playlist.NONE };
+	final String[] deckPath = new String[DECKS];
+
+	// what the GUI keeps in its sliders and buttons
+	int curve = 0;
+	int crossfade = Crossfader.CENTRE;
+	final int[] faders = { 48, 48 };
+	final boolean[] cued = new boolean[DECKS];
+	int cueVolume = 48;
+	int syncBoundary = SyncScheduler.PATTERN;
+	final int[] levels = new int[DECKS];
+
+	final Properties props = new Properties();
+	final Map<String, Integer> midimap = new HashMap<String, Integer>();
+	boolean alt = false;
+	MidiBus bus;
+
+	final ExecutorService control = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Chipdisco control");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	final CountDownLatch stopped = new CountDownLatch(1);
+	ServerSocket server;
+
+	public HeadlessEngine() {
+		for (int d = 0; d < DECKS; d++) {
+			decks[d] = new PortaMod(host);
+			standby[d] = new StandbyDeck(new PortaMod(host), d == 0 ? "A" : "B");
+			playlists[d] = new Playlist();
+		}
+		mixer = new MasterMixer(decks[0], decks[1]);
+		index.load();
+	}
+
+	// Config and MIDI map from the home directory, same as the GUI. Missing files just mean defaults.
+	public void configure() {
+		String home = System.getProperty("user.home");
+		try {
+			FileInputStream in = new FileInputStream(home + "/chipdisco_config.txt");
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("HeadlessEngine: no chipdisco_config.txt, using defaults");
+		}
+		curve = intProp(props, "xcurve", 0);
+		syncBoundary = intProp(props, "syncBoundary", SyncScheduler.PATTERN);
+		mixer.sync.setRowsPerBeat(intProp(props, "rowsPerBeat", 4));
+		mixer.slices.setRowsPerBeat(intProp(props, "rowsPerBeat", 4));
+		library.setRowsPerBeat(intProp(props, "rowsPerBeat", 4));
+		mixer.slices.setQuantize(intProp(props, "sliceQuantize", SliceScheduler.NOW));
+		mixer.setLatencyBounds(intProp(props, "minLatency", 43), intProp(props, "maxLatency", 171));
+
+		Properties map = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(home + "/chipdisco_midimap.txt");
+			try {
+				map.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("HeadlessEngine: no chipdisco_midimap.txt, MIDI control surface unmapped");
+		}
+		for (String name : map.stringPropertyNames()) {
+			try {
+				midimap.put(name, Integer.valueOf(map.getProperty(name).trim()));
+			} catch (NumberFormatException e) {
+				System.err.println("HeadlessEngine: ignoring MIDI mapping " + name + "=" + map.getProperty(name));
+			}
+		}
+	}
+
+	static int intProp(Properties p, String name, int fallback) {
+		try {
+			return Integer.parseInt(p.getProperty(name, "" + fallback).trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+
+	public void start(boolean midi) throws Exception {
+		mixer.start();
+		applyLevels();
+		if (midi && props.getProperty("midiInput1") != null) {
+			try {
+				bus = new MidiBus(this, intProp(props, "midiInput1", 0), -1);
+			} catch (Exception e) {
+				System.err.println("HeadlessEngine: couldn't open MIDI input (" + e + ")");
+			}
+		}
+	}
+
+	public void stop() {
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		mixer.stop();
+		library.stop();
+		watcher.stop();
+		importer.shutdown();
+		for (int d = 0; d < DECKS; d++) {
+			standby[d].shutdown();
+		}
+		index.save();
+		control.shutdownNow();
+		stopped.countDown();
+	}
+
+	// ---- playlists and loading ----
+
+	/**
+	 * Add a module, a directory of them or an m3u/pls to a deck's playlist. Returns how many
+	 * modules went in; playlists are imported in the background, so they count as none here and
+	 * their modules follow.
+	 */
+	public synchronized int add(int deck, String path) {
+		File f = new File(path);
+		List<String> found = new ArrayList<String>();
+		if (f.isDirectory()) {
+			File[] files = f.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				for (int i = 0; i < files.length; i++) {
+					if (files[i].isFile() && index.check(probe, files[i].getPath())) {
+						found.add(files[i].getPath());
+					}
+				}
+			}
+		} else if (PlaylistImporter.isPlaylist(path)) {
+			importer.start(deck, path);
+		} else if (index.check(probe, path)) {
+			found.add(path);
+		}
+		for (int i = 0; i < found.size(); i++) {
+			playlists[deck].add(found.get(i), new File(found.get(i)).getName());
+		}
+		index.save();
+		return found.size();
+	}
+
+	/**
+	 * Append everything in the library matching query to a deck's playlist. Returns how many
+	 * went in.
+	 */
+	public int pull(int deck, String query) {
+		List<MusicLibrary.Track> found = library.search(query, SEARCH_LIMIT);
+		synchronized (this) {
+			for (int i = 0; i < found.size(); i++) {
+				playlists[deck].add(found.get(i).path, found.get(i).name);
+			}
+		}
+		return found.size();
+	}
+
+	String search(String query) {
+		List<MusicLibrary.Track> found = library.search(query, SEARCH_LIMIT);
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < found.size(); i++) {
+			MusicLibrary.Track t = found.get(i);
+			s.append(t.format).append(' ');
+			if (t.hasInfo()) {
+				s.append(t.getChannels()).append("ch ").append(Math.round(t.getTempo())).append("bpm ");
+			}
+			s.append(t.path);
+			if (t.title.length() > 0) {
+				s.append(" (").append(t.title).append(')');
+			}
+			s.append('\n');
+		}
+		s.append(found.size()).append(found.size() == SEARCH_LIMIT ? "+" : "").append(" found");
+		if (library.isScanning()) {
+			s.append(" so far, ").append(library.size()).append(" scanned");
+		}
+		return s.toString();
+	}
+
+	// Changes from the FolderWatcher and modules from playlist imports, applied on the control
+	// thread like any other command
+	void followFolders() {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (stopped.getCount() > 0) {
+					final List<PlaylistImporter.Entry> entries = new ArrayList<PlaylistImporter.Entry>();
+					PlaylistImporter.Entry entry;
+					while ((entry = importer.poll()) != null) {
+						entries.add(entry);
+					}
+					if (!entries.isEmpty()) {
+						control.execute(new Runnable() {
+							public void run() {
+								imported(entries);
+							}
+						});
+					}
+					final FolderWatcher.Change c = watcher.poll();
+					if (c == null) {
+						try {
+							Thread.sleep(250);
+						} catch (InterruptedException e) {
+							return;
+						}
+						continue;
+					}
+					control.execute(new Runnable() {
+						public void run() {
+							folderChanged(c);
+						}
+					});
+				}
+			}
+		}, "Chipdisco folder changes");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	synchronized void imported(List<PlaylistImporter.Entry> entries) {
+		for (int i = 0; i < entries.size(); i++) {
+			playlists[entries.get(i).deck].add(entries.get(i).path, entries.get(i).text);
+		}
+	}
+
+	// A module came or went under a deck's folder
+	synchronized void folderChanged(FolderWatcher.Change c) {
+		Playlist list = playlists[c.deck];
+		if (c.added) {
+			list.add(c.path, new File(c.path).getName());
+			System.out.println("Deck " + (c.deck == 0 ? "A" : "B") + ": added " + c.path);
+			return;
+		}
+		int id;
+		while ((id = list.firstWith(c.path)) != Playlist.NONE) {
+			remove(c.deck, id);
+			System.out.println("Deck " + (c.deck == 0 ? "A" : "B") + ": removed " + c.path);
+		}
+	}
+
+	// Take an entry out of a deck's playlist. If it's the one playing, the deck's place moves
+	// back one so next still goes to the entry that followed it.
+	synchronized void remove(int deck, int id) {
+		Playlist list = playlists[deck];
+		if (id == playingEntry[deck]) {
+			playingEntry[deck] = list.idAt(list.positionOf(id) - 1);
+		}
+		list.remove(id);
+	}
+
+	/**
+	 * Put path on deck, swapping in the standby's copy if it has it, sharing the other deck's if
+	 * that's the same module, and loading the file otherwise. Control thread only.
+	 */
+	boolean load(int deck, String path, int listpos, boolean autostart) {
+		PortaMod target = decks[deck];
+		long started = System.nanoTime();
+		mixer.pause(deck);
+		PortaMod ready = standby[deck].swap(path, target);
+		if (ready != null) {
+			decks[deck] = ready;
+			mixer.setDeck(deck, ready);
+			target = ready;
+		} else {
+			ModuleShare.loadInto(decks[1 - deck], path, target);
+		}
+		mixer.metrics.moduleLoad.recordNanos(System.nanoTime() - started);
+		boolean ok = target.loadSuccess > 0;
+		deckPath[deck] = ok ? path : null;
+		index.record(path, target);
+		synchronized (this) {
+			Playlist list = playlists[deck];
+			playingEntry[deck] = list.idAt(listpos);
+			if (listpos >= 0 && listpos + 1 < list.size()) {
+				standby[deck].preload(list.pathAt(listpos + 1));
+			}
+		}
+		if (ok) {
+			mixer.setTempo(deck, target.initialtempo);
+			mixer.setTranspose(deck, 0);
+			if (autostart) {
+				mixer.play(deck);
+			}
+		}
+		applyLevels();
+		return ok;
+	}
+
+	// Where the deck is in its playlist: -1 before the first entry
+	synchronized int position(int deck) {
+		return playlists[deck].positionOf(playingEntry[deck]);
+	}
+
+	// Load playlist entry pos onto deck. Control thread only.
+	boolean select(int deck, int pos) {
+		String path;
+		synchronized (this) {
+			path = playlists[deck].pathAt(pos);
+			if (path == null) {
+				return false;
+			}
+		}
+		return load(deck, path, pos, true);
+	}
+
+	// ---- levels ----
+
+	// doVolume() without the sliders: deck levels from the faders, crossfader and curve, cued decks to the cue side
+	synchronized void applyLevels() {
+		Crossfader.levels(curve, crossfade, faders[0], faders[1], levels);
+		for (int d = 0; d < DECKS; d++) {
+			if (!cued[d]) {
+				mixer.setGains(d, levels[d] / 64f, 0f);
+			} else {
+				mixer.setGains(d, 0f, cueVolume / 64f);
+			}
+		}
+	}
+
+	// ---- text control ----
+
+	/**
+	 * Run one text command on the control thread and wait for its reply.
+	 */
+	public String submit(final String line) {
+		try {
+			return control.submit(new Callable<String>() {
+				public String call() {
+					return command(line);
+				}
+			}).get();
+		} catch (Exception e) {
+			return "error " + e;
+		}
+	}
+
+	// Control thread only
+	String command(String line) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) {
+			return "";
+		}
+		String[] parts = line.split("\\s+", 3);
+		String c = parts[0].toLowerCase();
+		try {
+			if (c.equals("help")) {
+				return "play|pause|next|prev|list <deck>, select <deck> n, load|add <deck> path, tempo|transpose|jump|volume <deck> n, "
+						+ "cue <deck> on|off, sync <deck> [row|beat|pattern], loop <deck> rows|off, slice <deck> n, quantize 0-3, row0, crossfade 0-96, curve 0-4, "
+						+ "cuevolume 0-48, search query, pull <deck> query, remove <deck> n, move <deck> from to, status, quit";
+			}
+			if (c.equals("status")) {
+				return status();
+			}
+			if (c.equals("quit")) {
+				new Thread(new Runnable() {
+					public void run() {
+						stop();
+					}
+				}).start();
+				return "ok bye";
+			}
+			if (c.equals("search")) {
+				return search(line.substring(c.length()).trim());
+			}
+			if (c.equals("row0")) {
+				mixer.setNextRow(0, 0);
+				mixer.setNextRow(1, 0);
+				return "ok";
+			}
+			if (c.equals("quantize")) {
+				mixer.slices.setQuantize(Integer.parseInt(parts[1]));
+				return "ok";
+			}
+			if (c.equals("crossfade") || c.equals("curve") || c.equals("cuevolume")) {
+				int v = Integer.parseInt(parts[1]);
+				synchronized (this) {
+					if (c.equals("crossfade")) {
+						crossfade = Math.max(0, Math.min(Crossfader.RANGE, v));
+					} else if (c.equals("curve")) {
+						curve = v;
+					} else {
+						cueVolume = Math.max(0, Math.min(48, v));
+					}
+				}
+				applyLevels();
+				return "ok";
+			}
+			if (parts.length < 2) {
+				return "error expected a deck (a or b) after " + c;
+			}
+			int deck = parseDeck(parts[1]);
+			if (deck < 0) {
+				return "error no deck '" + parts[1] + "'";
+			}
+			String arg = parts.length > 2 ? parts[2] : null;
+			if (c.equals("play")) {
+				mixer.play(deck);
+			} else if (c.equals("pause")) {
+				mixer.pause(deck);
+			} else if (c.equals("next") || c.equals("prev")) {
+				int pos;
+				synchronized (this) {
+					pos = position(deck) + (c.equals("next") ? 1 : -1);
+				}
+				return select(deck, pos) ? "ok " + deckPath[deck] : "error nothing there";
+			} else if (c.equals("select")) {
+				return select(deck, Integer.parseInt(arg)) ? "ok " + deckPath[deck] : "error couldn't load entry " + arg;
+			} else if (c.equals("load")) {
+				return load(deck, arg, -1, false) ? "ok" : "error couldn't load " + arg;
+			} else if (c.equals("add")) {
+				int added = add(deck, arg);
+				return PlaylistImporter.isPlaylist(arg) ? "ok importing " + arg : "ok " + added + " added";
+			} else if (c.equals("list")) {
+				return list(deck);
+			} else if (c.equals("remove")) {
+				synchronized (this) {
+					int id = playlists[deck].idAt(Integer.parseInt(arg));
+					if (id == Playlist.NONE) {
+						return "error no entry " + arg;
+					}
+					remove(deck, id);
+				}
+			} else if (c.equals("move")) {
+				String[] to = arg.split("\\s+");
+				synchronized (this) {
+					int id = playlists[deck].idAt(Integer.parseInt(to[0]));
+					if (id == Playlist.NONE) {
+						return "error no entry " + to[0];
+					}
+					playlists[deck].move(id, Integer.parseInt(to[1]));
+				}
+			} else if (c.equals("pull")) {
+				return "ok " + pull(deck, arg == null ? "" : arg) + " added";
+			} else if (c.equals("tempo")) {
+				mixer.setTempo(deck, Math.max(32, Math.min(255, Integer.parseInt(arg))));
+			} else if (c.equals("transpose")) {
+				mixer.setTranspose(deck, Integer.parseInt(arg));
+			} else if (c.equals("jump")) {
+				mixer.setNextSequence(deck, Integer.parseInt(arg), 0);
+			} else if (c.equals("volume")) {
+				synchronized (this) {
+					faders[deck] = Math.max(0, Math.min(48, Integer.parseInt(arg)));
+				}
+				applyLevels();
+			} else if (c.equals("slice")) {
+				// continue from the same row, like the GUI's default
+				mixer.triggerSlice(deck, Integer.parseInt(arg), 0);
+			} else if (c.equals("loop")) {
+				if (arg == null || arg.equalsIgnoreCase("off")) {
+					mixer.loops.clear(deck);
+				} else {
+					mixer.loops.loopRows(deck, Integer.parseInt(arg));
+				}
+			} else if (c.equals("cue")) {
+				synchronized (this) {
+					cued[deck] = arg == null || arg.equalsIgnoreCase("on");
+				}
+				applyLevels();
+			} else if (c.equals("sync")) {
+				// the deck named is the one that follows
+				int boundary = syncBoundary;
+				if (arg != null) {
+					boundary = arg.equals("row") ? SyncScheduler.ROW : (arg.equals("beat") ? SyncScheduler.BEAT : SyncScheduler.PATTERN);
+				}
+				mixer.setTempo(deck, decks[1 - deck].getTempo());
+				mixer.sync.arm(1 - deck, boundary);
+			} else {
+				return "error unknown command '" + c + "' (try help)";
+			}
+			return "ok";
+		} catch (NumberFormatException e) {
+			return "error bad number in '" + line + "'";
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return "error missing argument in '" + line + "'";
+		} catch (NullPointerException e) {
+			return "error missing argument in '" + line + "'";
+		}
+	}
+
+	static int parseDeck(String s) {
+		if (s.equalsIgnoreCase("a")) {
+			return 0;
+		}
+		if (s.equalsIgnoreCase("b")) {
+			return 1;
+		}
+		return -1;
+	}
+
+	synchronized String list(int deck) {
+		StringBuilder s = new StringBuilder();
+		Playlist list = playlists[deck];
+		for (int i = 0; i < list.size(); i++) {
+			int id = list.idAt(i);
+			s.append(id == playingEntry[deck] ? "> " : "  ").append(i).append(' ').append(list.getPath(id));
+			if (i + 1 < list.size()) {
+				s.append('\n');
+			}
+		}
+		return list.size() == 0 ? "(empty)" : s.toString();
+	}
+
+	String status() {
+		StringBuilder s = new StringBuilder();
+		for (int d = 0; d < DECKS; d++) {
+			PortaMod mod = decks[d];
+			s.append(d == 0 ? "A: " : "B: ");
+			if (deckPath[d] == null) {
+				s.append("empty\n");
+				continue;
+			}
+			s.append(mixer.isPlaying(d) ? "playing " : "paused ").append(deckPath[d]);
+			s.append(" bpm ").append(mod.getTempo()).append(" pos ").append(mod.getCurrent_sequence_index()).append('/').append(mod.numpatterns);
+			synchronized (this) {
+				if (mixer.loops.isLooping(d)) {
+				s.append(" loop ").append(mixer.loops.getLoopRows(d)).append(" rows from ").append(mixer.loops.getLoopStart(d));
+			}
+			s.append(" vol ").append(faders[d]).append(cued[d] ? " cued" : "").append('\n');
+			}
+		}
+		synchronized (this) {
+			s.append("crossfade ").append(crossfade).append(" curve ").append(curve);
+		}
+		if (mixer.buffer != null) {
+			s.append(" latency ").append(Math.round(mixer.buffer.getTargetMillis())).append("ms");
+		}
+		s.append(" underruns ").append(mixer.metrics.getUnderruns());
+		return s.toString();
+	}
+
+	// stdin, one command per line. Running out of input (a service with no terminal) just stops reading.
+	void readStdin() {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						String reply = submit(line);
+						if (reply.length() > 0) {
+							System.out.println(reply);
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("HeadlessEngine: stdin closed (" + e + ")");
+				}
+			}
+		}, "Chipdisco stdin");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// Same commands over TCP, on the loopback interface only
+	void listen(int port) throws IOException {
+		server = new ServerSocket(port, 4, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						final Socket s = server.accept();
+						Thread client = new Thread(new Runnable() {
+							public void run() {
+								serve(s);
+							}
+						}, "Chipdisco client " + s.getPort());
+						client.setDaemon(true);
+						client.start();
+					} catch (IOException e) {
+						// closed by stop(), or the client went away
+					}
+				}
+			}
+		}, "Chipdisco socket");
+		t.setDaemon(true);
+		t.start();
+		System.out.println("HeadlessEngine: listening on 127.0.0.1:" + port);
+	}
+
+	void serve(Socket s) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.println(submit(line));
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+
+	// ---- MIDI: called by the MidiBus ----
+
+	boolean cc(String name, int number) {
+		Integer n = midimap.get(name);
+		return n != null && n.intValue() == number;
+	}
+
+	static int scale(int value, int lo, int hi) {
+		return lo + value * (hi - lo) / 127;
+	}
+
+	/**
+	 * The GUI's controllerChange() minus the widgets. Loads are handed to the control thread so
+	 * the MIDI thread never waits on a file.
+	 */
+	public void controllerChange(int channel, int number, int value) {
+		mixer.midiEvent();
+		boolean levelsChanged = false;
+		synchronized (this) {
+			if (cc("mccAlt", number)) {
+				alt = value == 127;
+			}
+			if (cc("mccCrossfader", number)) {
+				crossfade = scale(value, 0, Crossfader.RANGE);
+				levelsChanged = true;
+			}
+			if (cc("mccCuemixvol", number)) {
+				cueVolume = scale(value, 0, 48);
+				levelsChanged = true;
+			}
+			if (cc("mccVolA", number)) {
+				faders[0] = scale(value, 0, 48);
+				levelsChanged = true;
+			}
+			if (cc("mccVolB", number)) {
+				faders[1] = scale(value, 0, 48);
+				levelsChanged = true;
+			}
+			if (!alt && value == 127 && cc("mccCuemixA", number)) {
+				cued[0] = !cued[0];
+				levelsChanged = true;
+			}
+			if (!alt && value == 127 && cc("mccCuemixB", number)) {
+				cued[1] = !cued[1];
+				levelsChanged = true;
+			}
+		}
+		if (levelsChanged) {
+			applyLevels();
+		}
+		for (int d = 0; d < DECKS; d++) {
+			String x = d == 0 ? "A" : "B";
+			PortaMod mod = decks[d];
+			if (cc("mccPause" + x, number) && value == 127) {
+				if (!alt) {
+					if (mixer.isPlaying(d)) {
+						mixer.pause(d);
+					} else {
+						mixer.play(d);
+					}
+				} else if (mod.getTempo() - 1 >= 32) {
+					mixer.setTempo(d, mod.getTempo() - 1);
+				}
+			}
+			if (cc("mccSync" + x, number) && value == 127) {
+				if (alt) {
+					if (mod.getTempo() + 1 <= 255) {
+						mixer.setTempo(d, mod.getTempo() + 1);
+					}
+				} else {
+					// sync the other deck to this one
+					mixer.setTempo(1 - d, mod.getTempo());
+					mixer.sync.arm(d, syncBoundary);
+				}
+			}
+			if (cc("mccTempo" + x, number) && !alt) {
+				mixer.setTempo(d, scale(value, 32, 255));
+			}
+			if (cc("mccResetTempo" + x, number) && !alt) {
+				mixer.setTempo(d, mod.initialtempo);
+			}
+			if (cc("mccTranspose" + x, number)) {
+				mixer.setTranspose(d, scale(value, -12, 12));
+			}
+			if (cc("mccSeek" + x, number)) {
+				if (value == 127) {
+					mixer.setNextSequence(d, mod.getCurrent_sequence_index() + 1, 0);
+				} else if (value == 0 && mod.getCurrent_sequence_index() > 0) {
+					mixer.setNextSequence(d, mod.getCurrent_sequence_index() - 1, 0);
+				}
+			}
+			for (int ch = 0; ch < 4; ch++) {
+				if (cc("mccChanvol" + x + (ch + 1), number)) {
+					mixer.setChanvol(d, ch, scale(value, 0, 48));
+				}
+				if (!alt && cc("mccChanmute" + x + (ch + 1), number) && (value == 0 || value == 127)) {
+					mixer.setChanmute(d, ch, value == 127);
+				}
+			}
+		}
+		if (cc("mccForcesync", number) && value == 127) {
+			mixer.setNextRow(0, 0);
+			mixer.setNextRow(1, 0);
+		}
+		// prev/next module are fixed on the alt layer in the GUI too: 33/34 for A, 37/38 for B
+		if (alt && value == 127 && (number == 33 || number == 34 || number == 37 || number == 38)) {
+			final int deck = number < 37 ? 0 : 1;
+			final int step = (number == 34 || number == 38) ? 1 : -1;
+			control.execute(new Runnable() {
+				public void run() {
+					int pos;
+					synchronized (HeadlessEngine.this) {
+						pos = position(deck) + step;
+					}
+					select(deck, pos);
+				}
+			});
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = -1;
+		boolean midi = true;
+		boolean stdin = true;
+		List<String> lists = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-nomidi")) {
+				midi = false;
+			} else if (args[i].equals("-nostdin")) {
+				stdin = false;
+			} else {
+				lists.add(args[i]);
+			}
+		}
+
+		final HeadlessEngine engine = new HeadlessEngine();
+		engine.configure();
+		for (int d = 0; d < DECKS; d++) {
+			String source = d < lists.size() ? lists.get(d) : engine.props.getProperty(d == 0 ? "deckAdir" : "deckBdir", "");
+			if (source.length() > 0) {
+				int added = engine.add(d, source);
+				if (PlaylistImporter.isPlaylist(source)) {
+					System.out.println("Deck " + (d == 0 ? "A" : "B") + ": importing " + source);
+				} else {
+					System.out.println("Deck " + (d == 0 ? "A" : "B") + ": " + added + " modules from " + source);
+				}
+				if (new File(source).isDirectory()) {
+					engine.library.addRoot(source);
+					engine.watcher.watch(d, source);
+				}
+			}
+		}
+		engine.library.start();
+		engine.watcher.start();
+		engine.followFolders();
+		engine.start(midi);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				if (engine.stopped.getCount() > 0) {
+					engine.stop();
+				}
+			}
+		}));
+		if (port > 0) {
+			engine.listen(port);
+		}
+		if (stdin) {
+			engine.readStdin();
+		}
+		System.out.println("Chipdisco headless - type help for commands");
+		engine.stopped.await();
+		System.exit(0);
+	}
+}
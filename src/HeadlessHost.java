@@ -0,0 +1,57 @@
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+import processing.core.PApplet;
+import sun.reflect.ReflectionFactory;
+
+/**
+ * A PApplet for PortaMod and the rest to hang off when there's no display.
+ *
+ * PApplet is a java.applet.Applet, and Applet's constructor throws HeadlessException when
+ * there's no display or java.awt.headless is set - which is exactly where HeadlessEngine,
+ * OfflineRender and ReplayBenchmark are meant to run, so new PApplet() won't do there. What
+ * they use a host for doesn't touch AWT: registering dispose(), sketchPath, createInput(),
+ * millis(). So create() makes the PApplet the way deserialization does, without running
+ * Applet's constructor or PApplet's, and sets up by hand the fields PApplet's constructor
+ * would have that those calls need. The window ones are left alone. It's never started,
+ * shown or drawn into, and nothing should try to.
+ */
+public class HeadlessHost {
+
+	public static PApplet create() {
+		try {
+			Constructor<?> bare = ReflectionFactory.getReflectionFactory()
+				.newConstructorForSerialization(PApplet.class, Object.class.getDeclaredConstructor());
+			PApplet host = (PApplet) bare.newInstance();
+			set(host, "millisOffset", System.currentTimeMillis());
+			set(host, "frameRate", 10f);
+			set(host, "frameRateTarget", 60f);
+			set(host, "frameRatePeriod", 16666666L);
+			set(host, "pauseObject", new Object());
+			set(host, "registerMap", new HashMap<Object, Object>());
+			set(host, "perlin_octaves", 4);
+			set(host, "perlin_amp_falloff", 0.5f);
+			set(host, "requestImageMax", 4);
+			set(host, "cursorVisible", true);
+			Constructor<?> events = Class.forName("processing.core.PApplet$InternalEventQueue")
+				.getDeclaredConstructor(PApplet.class);
+			events.setAccessible(true);
+			set(host, "eventQueue", events.newInstance(host));
+			host.sketchPath = new File("").getAbsolutePath();
+			return host;
+		} catch (Exception e) {
+			// a JVM without ReflectionFactory, or a core.jar laid out differently: the real thing
+			// still works wherever there's a display
+			System.err.println("HeadlessHost: falling back to new PApplet() (" + e + ")");
+			return new PApplet();
+		}
+	}
+
+	static void set(PApplet host, String name, Object value) throws Exception {
+		Field f = PApplet.class.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(host, value);
+	}
+}
@@ -0,0 +1,75 @@
+import processing.core.PApplet;
+
+/**
+ * A line of on-screen text that doesn't make garbage. It's formatted into a char buffer that's
+ * reused for the life of the sketch and drawn straight from there with text(char[], ...), so
+ * redrawing it every frame allocates nothing.
+ *
+ * The owner decides when the text needs rebuilding - usually by keeping the values it was last
+ * built from and comparing - then does clear() and a run of appends. Anything that doesn't fit
+ * in the buffer is dropped rather than grown.
+ */
+public class HudText {
+
+	final char[] chars;
+	int length = 0;
+
+	public HudText(int capacity) {
+		chars = new char[capacity];
+	}
+
+	public HudText clear() {
+		length = 0;
+		return this;
+	}
+
+	public HudText append(char c) {
+		if (length < chars.length) {
+			chars[length++] = c;
+		}
+		return this;
+	}
+
+	public HudText append(String s) {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			append(s.charAt(i));
+		}
+		return this;
+	}
+
+	public HudText append(int v) {
+		if (v < 0) {
+			append('-');
+			// careful with MIN_VALUE, which has no positive twin
+			if (v == Integer.MIN_VALUE) {
+				return append("2147483648");
+			}
+			v = -v;
+		}
+		int start = length;
+		do {
+			append((char) ('0' + v % 10));
+			v /= 10;
+		} while (v > 0);
+		// digits went in backwards
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			char t = chars[i];
+			chars[i] = chars[j];
+			chars[j] = t;
+		}
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void draw(PApplet p, float x, float y) {
+		p.text(chars, 0, length, x, y);
+	}
+
+	public String toString() {
+		return new String(chars, 0, length);
+	}
+}
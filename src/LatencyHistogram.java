@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, cheap enough to record into from the audio thread.
+ *
+ * Values are bucketed by microseconds: exactly below 16us, then four buckets per power of two,
+ * so a percentile is never more than about 19% out. Recording is an index calculation and a
+ * couple of atomic adds - no locks and no allocation. Percentiles are worked out when read,
+ * and give the upper edge of the bucket they land in.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	static final int LINEAR = 16;
+	static final int SUB_BITS = 2;
+	static final int SUB = 1 << SUB_BITS;
+	// up to 2^40us, which is over twelve days
+	static final int BUCKETS = LINEAR + (40 - 4) * SUB;
+
+	public final String name;
+	final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong total = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public void recordNanos(long nanos) {
+		recordMicros(nanos / 1000);
+	}
+
+	public void recordMicros(long us) {
+		if (us < 0) {
+			us = 0;
+		}
+		buckets.incrementAndGet(bucket(us));
+		count.incrementAndGet();
+		total.addAndGet(us);
+		long m = max.get();
+		while (us > m && !max.compareAndSet(m, us)) {
+			m = max.get();
+		}
+	}
+
+	static int bucket(long us) {
+		if (us < LINEAR) {
+			return (int) us;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(us);
+		int sub = (int) (us >>> (exp - SUB_BITS)) & (SUB - 1);
+		return Math.min(BUCKETS - 1, LINEAR + (exp - 4) * SUB + sub);
+	}
+
+	// largest value that lands in bucket b
+	static long upperEdge(int b) {
+		if (b < LINEAR) {
+			return b;
+		}
+		int exp = (b - LINEAR) / SUB + 4;
+		int sub = (b - LINEAR) % SUB;
+		return ((long) (SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p / 100.0 * n);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets.get(b);
+			if (seen >= rank) {
+				return Math.min(upperEdge(b), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getP50Micros() {
+		return percentile(50);
+	}
+
+	public long getP90Micros() {
+		return percentile(90);
+	}
+
+	public long getP99Micros() {
+		return percentile(99);
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return n > 0 ? (double) total.get() / n : 0;
+	}
+
+	// Not atomic with respect to recorders, but near enough for starting a fresh look
+	public void reset() {
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets.set(b, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public String summary() {
+		return name + " n=" + getCount() + " p50=" + getP50Micros() + "us p90=" + getP90Micros() + "us p99=" + getP99Micros()
+				+ "us max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * What JMX sees of a LatencyHistogram. All times are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+
+	long getCount();
+
+	long getP50Micros();
+
+	long getP90Micros();
+
+	long getP99Micros();
+
+	long getMaxMicros();
+
+	double getMeanMicros();
+
+	void reset();
+}
@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * Peak and RMS levels for each deck and peak levels for each of its channels, worked out by the
+ * mixer on the audio thread and published once per block for the UI to read.
+ *
+ * Deck levels come from the deck's real output - the mono fold the mixer actually plays,
+ * before the fader and crossfader - so they show exactly what the module is putting out.
+ * IBXM only ever gives us the finished mix, so channel levels are the replayer's own channel
+ * volume estimate, sampled every quantum while the mixer holds the deck's lock rather than
+ * read off the live channels from the animation thread.
+ *
+ * Everything is 0..1. The published values sit in one AtomicIntegerArray (floats as bits), so
+ * the UI never blocks the audio thread and nothing is allocated after construction.
+ */
+public class LevelMeters {
+
+	public static final int MAX_CHANNELS = 32;
+	// calculate_fakevol() for a channel playing flat out
+	static final float FAKEVOL_FULL = 12288f;
+
+	// published layout per deck: deck peak, deck RMS, channel peaks
+	static final int DECK_PEAK = 0;
+	static final int DECK_RMS = 1;
+	static final int CHANNEL_PEAK = 2;
+	static final int STRIDE = CHANNEL_PEAK + MAX_CHANNELS;
+
+	final int numDecks;
+	final AtomicIntegerArray published;
+
+	// audio thread only: running totals for the block in progress
+	final int[] deckPeak;
+	final double[] deckSumSq;
+	final int[] deckFrames;
+	final float[][] channelPeak;
+	final int[] channels;
+
+	public LevelMeters(int numDecks) {
+		this.numDecks = numDecks;
+		published = new AtomicIntegerArray(numDecks * STRIDE);
+		deckPeak = new int[numDecks];
+		deckSumSq = new double[numDecks];
+		deckFrames = new int[numDecks];
+		channelPeak = new float[numDecks][MAX_CHANNELS];
+		channels = new int[numDecks];
+	}
+
+	// Audio thread: one sample of a deck's mono output, before any gain
+	void addSample(int deck, int s) {
+		int a = s < 0 ? -s : s;
+		if (a > deckPeak[deck]) {
+			deckPeak[deck] = a;
+		}
+		deckSumSq[deck] += (double) s * s;
+		deckFrames[deck]++;
+	}
+
+	// Audio thread, with the deck's lock held: note where each channel is at this quantum
+	void sampleChannels(int deck, PortaMod mod) {
+		int n = Math.min(mod.numchannels, MAX_CHANNELS);
+		channels[deck] = n;
+		for (int c = 0; c < n; c++) {
+			float v = mod.player.ibxm.channels[c].calculate_fakevol() / FAKEVOL_FULL;
+			if (v > 1f) {
+				v = 1f;
+			}
+			if (v > channelPeak[deck][c]) {
+				channelPeak[deck][c] = v;
+			}
+		}
+	}
+
+	// Audio thread, end of each block: publish and start again. Decks that didn't play read as silence.
+	void publish() {
+		for (int d = 0; d < numDecks; d++) {
+			int base = d * STRIDE;
+			float rms = deckFrames[d] > 0 ? (float) Math.sqrt(deckSumSq[d] / deckFrames[d]) / 32768f : 0f;
+			published.lazySet(base + DECK_PEAK, Float.floatToIntBits(deckPeak[d] / 32768f));
+			published.lazySet(base + DECK_RMS, Float.floatToIntBits(rms));
+			for (int c = 0; c < MAX_CHANNELS; c++) {
+				float peak = c < channels[d] ? channelPeak[d][c] : 0f;
+				published.lazySet(base + CHANNEL_PEAK + c, Float.floatToIntBits(peak));
+				channelPeak[d][c] = 0f;
+			}
+			deckPeak[d] = 0;
+			deckSumSq[d] = 0;
+			deckFrames[d] = 0;
+			channels[d] = 0;
+		}
+	}
+
+	float get(int deck, int index) {
+		return Float.intBitsToFloat(published.get(deck * STRIDE + index));
+	}
+
+	public float getDeckPeak(int deck) {
+		return get(deck, DECK_PEAK);
+	}
+
+	public float getDeckRms(int deck) {
+		return get(deck, DECK_RMS);
+	}
+
+	public float getChannelPeak(int deck, int channel) {
+		return channel < MAX_CHANNELS ? get(deck, CHANNEL_PEAK + channel) : 0f;
+	}
+}
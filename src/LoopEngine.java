@@ -0,0 +1,181 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * Pattern loops, run inside the replay loop like SyncScheduler instead of polled from draw().
+ *
+ * A loop is a start position (sequence index and row) and a length in rows - anything from a
+ * single row to several patterns. The mixer tells us about every row change it sees, quantum by
+ * quantum, and we count rows played since the loop start. On the loop's last row the jump back
+ * goes straight to the replayer, to take effect as that row ends, so the wrap is exact and no
+ * tempo is fast enough to step over it.
+ *
+ * The UI and MIDI side only post requests (start N rows from here, start the 1/division segment
+ * of the pattern we're in, make the running loop N rows long, stop); the audio thread picks them up on its next quantum and owns
+ * everything else. A loop that wraps to the row it's already on shows no row change, so for
+ * those we go by the row's measured length instead.
+ */
+public class LoopEngine {
+
+	// request kinds, packed as kind << 24 | argument
+	static final int ROWS = 1;
+	static final int SEGMENT = 2;
+	static final int OFF = 3;
+	static final int RESIZE = 4;
+	static final int ARG_MASK = (1 << 24) - 1;
+
+	final int decks;
+	final AtomicIntegerArray requests;
+	// segment requests can say which row they were made on; -1 for wherever the deck is
+	final AtomicIntegerArray requestRows;
+
+	// audio thread only
+	final int[] loopSeq, loopRow, loopRows, count;
+	final boolean[] repeatPending;
+
+	// what the UI sees: length in rows (0 = not looping) and start row
+	final AtomicIntegerArray shownRows;
+	final AtomicIntegerArray shownStart;
+
+	public LoopEngine(int decks) {
+		this.decks = decks;
+		requests = new AtomicIntegerArray(decks);
+		requestRows = new AtomicIntegerArray(decks);
+		loopSeq = new int[decks];
+		loopRow = new int[decks];
+		loopRows = new int[decks];
+		count = new int[decks];
+		repeatPending = new boolean[decks];
+		shownRows = new AtomicIntegerArray(decks);
+		shownStart = new AtomicIntegerArray(decks);
+	}
+
+	/**
+	 * Loop the next rows rows, starting from the row the deck is on when the mixer picks this up.
+	 */
+	public void loopRows(int deck, int rows) {
+		requestRows.set(deck, -1);
+		requests.set(deck, ROWS << 24 | Math.max(1, Math.min(ARG_MASK, rows)));
+	}
+
+	/**
+	 * Loop the 1/division of the current pattern that row falls in (the old loop button
+	 * behaviour). row -1 means wherever the deck is.
+	 */
+	public void loopSegment(int deck, int division, int row) {
+		requestRows.set(deck, row);
+		requests.set(deck, SEGMENT << 24 | Math.max(1, Math.min(ARG_MASK, division)));
+	}
+
+	/**
+	 * Make the running loop rows long, keeping where it starts, for halving and doubling a loop
+	 * mid-phrase. If nothing is looping, start one here as loopRows() does.
+	 */
+	public void setLoopRows(int deck, int rows) {
+		requestRows.set(deck, -1);
+		requests.set(deck, RESIZE << 24 | Math.max(1, Math.min(ARG_MASK, rows)));
+	}
+
+	public void clear(int deck) {
+		requests.set(deck, OFF << 24);
+	}
+
+	public boolean isLooping(int deck) {
+		return shownRows.get(deck) > 0;
+	}
+
+	public int getLoopRows(int deck) {
+		return shownRows.get(deck);
+	}
+
+	public int getLoopStart(int deck) {
+		return shownStart.get(deck);
+	}
+
+	// Audio thread, every quantum the deck plays: pick up requests and catch same-row wraps
+	void tick(MasterMixer mixer, int d, PortaMod mod, long frame) {
+		int req = requests.getAndSet(d, 0);
+		if (req != 0) {
+			start(mixer, d, mod, req >>> 24, req & ARG_MASK);
+		}
+		MasterMixer.MixerDeck deck = mixer.decks[d];
+		if (loopRows[d] > 0 && repeatPending[d] && deck.rowFrames > 0 && frame - deck.rowStartFrame >= deck.rowFrames) {
+			// we sent it back to the row it was on, so current_row never changed - the row's length tells us it has
+			deck.rowStartFrame += deck.rowFrames;
+			rowChanged(mixer, d, mod, deck.lastRow);
+		}
+	}
+
+	// Audio thread, while the deck isn't playing: a stop can happen now, anything else waits for play
+	void idle(int d) {
+		if (requests.get(d) == OFF << 24 && requests.compareAndSet(d, OFF << 24, 0)) {
+			loopRows[d] = 0;
+			repeatPending[d] = false;
+			shownRows.set(d, 0);
+		}
+	}
+
+	void start(MasterMixer mixer, int d, PortaMod mod, int kind, int arg) {
+		repeatPending[d] = false;
+		if (kind == OFF) {
+			loopRows[d] = 0;
+			shownRows.set(d, 0);
+			return;
+		}
+		int row = mod.player.ibxm.current_row;
+		int seq = mod.getCurrent_sequence_index();
+		if (kind == RESIZE && loopRows[d] > 0) {
+			loopRows[d] = arg;
+			shownRows.set(d, arg);
+			// if we're already past the new end, back to the start as this row ends
+			check(mixer, d, mod, seq, row);
+			return;
+		}
+		if (kind == SEGMENT) {
+			int caught = requestRows.get(d);
+			int total = mod.player.ibxm.total_rows > 0 ? mod.player.ibxm.total_rows : 64;
+			int len = Math.max(1, total / arg);
+			int from = caught >= 0 ? caught : row;
+			loopRow[d] = Math.min(total - 1, from / len * len);
+			loopRows[d] = len;
+			count[d] = row >= loopRow[d] ? row - loopRow[d] : 0;
+		} else {
+			loopRow[d] = row;
+			loopRows[d] = arg;
+			count[d] = 0;
+		}
+		loopSeq[d] = seq;
+		shownStart.set(d, loopRow[d]);
+		shownRows.set(d, loopRows[d]);
+		// we're on a row of the loop right now, so it might be the last one already
+		check(mixer, d, mod, seq, row);
+	}
+
+	// Audio thread: the mixer calls this whenever a deck's current row changes
+	void rowChanged(MasterMixer mixer, int d, PortaMod mod, int row) {
+		if (loopRows[d] <= 0) {
+			return;
+		}
+		int seq = mod.getCurrent_sequence_index();
+		if (seq == loopSeq[d] && row == loopRow[d]) {
+			count[d] = 0;
+		} else {
+			count[d]++;
+		}
+		check(mixer, d, mod, seq, row);
+	}
+
+	void check(MasterMixer mixer, int d, PortaMod mod, int seq, int row) {
+		repeatPending[d] = false;
+		if (count[d] < loopRows[d] - 1) {
+			return;
+		}
+		// last row of the loop: send it back to the start as this row ends
+		if (seq != loopSeq[d] || row >= mod.player.ibxm.total_rows - 1) {
+			mixer.apply(DeckCommandQueue.NEXT_SEQUENCE, d, loopSeq[d], 0);
+		}
+		mixer.apply(DeckCommandQueue.NEXT_ROW, d, loopRow[d], 0);
+		repeatPending[d] = seq == loopSeq[d] && row == loopRow[d];
+	}
+}
@@ -0,0 +1,486 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * One audio clock for both decks.
+ *
+ * Instead of each PortaMod running its own player thread and output line, the mixer pulls
+ * fixed-size blocks straight out of both decks' IBXM replayers, folds each deck down to mono
+ * and writes a single stereo line: LEFT is front of house, RIGHT is the cue/headphone mix.
+ * That's the same split the old hard-panning trick in cuedeck() gave us, except the decks can
+ * no longer drift apart and XM/S3M pan commands don't leak into the wrong side any more.
+ *
+ * Gains are set from the UI/MIDI side and ramped per sample over one quantum, so fader moves
+ * don't zipper. Everything else that changes a deck (tempo, jumps, channel volume/mute) is posted
+ * into a per-thread DeckCommandQueue and applied here, between quanta, so the replayer is only
+ * ever touched from the audio thread.
+ */
+public class MasterMixer implements Runnable {
+
+	// IBXM's player runs at 48kHz, 16-bit stereo little-endian - we keep the same format
+	public static final int SAMPLE_RATE = 48000;
+	// frames per write to the line: ~21ms at 48kHz
+	public static final int BLOCK_FRAMES = 1024;
+	// how many blocks we start out keeping queued in the line; AdaptiveBuffer moves it from there
+	public static final int LINE_BLOCKS = 3;
+	// default latency bounds, in blocks: ~43ms to ~171ms
+	public static final int MIN_LINE_BLOCKS = 2;
+	public static final int MAX_LINE_BLOCKS = 8;
+	// frames rendered between command checks: ~1.3ms, well inside one IBXM tick
+	public static final int QUANTUM_FRAMES = 64;
+	// one queue per live thread that talks to the decks: animation thread, MIDI control bus, MIDI
+	// note bus, spare. A thread that has died gives its queue up to the next one that asks
+	public static final int MAX_PRODUCERS = 4;
+	public static final int QUEUE_SIZE = 256;
+
+	public static final int DECK_A = 0;
+	public static final int DECK_B = 1;
+
+	MixerDeck[] decks = { new MixerDeck(), new MixerDeck() };
+
+	SourceDataLine line;
+	int minLineBlocks = MIN_LINE_BLOCKS;
+	int maxLineBlocks = MAX_LINE_BLOCKS;
+	// made by start()
+	public AdaptiveBuffer buffer;
+	Thread thread;
+	volatile boolean running = false;
+
+	// preallocated so the audio path never allocates
+	byte[] deckbuf = new byte[BLOCK_FRAMES * 4];
+	int[] fohmix = new int[BLOCK_FRAMES];
+	int[] cuemix = new int[BLOCK_FRAMES];
+	byte[] outbuf = new byte[BLOCK_FRAMES * 4];
+	// each deck's pre-fader mono, kept for the spectrum tap
+	int[][] deckmono = new int[2][BLOCK_FRAMES];
+
+	long framesRendered = 0;
+
+	volatile DeckCommandQueue[] queues = new DeckCommandQueue[0];
+	ThreadLocal<DeckCommandQueue> producerQueue = new ThreadLocal<DeckCommandQueue>();
+	int[] command = new int[4];
+
+	public final SyncScheduler sync = new SyncScheduler();
+	public final LevelMeters meters = new LevelMeters(2);
+	public final Metrics metrics = new Metrics();
+	public final LoopEngine loops = new LoopEngine(2);
+	public final SliceScheduler slices = new SliceScheduler();
+	// set if something wants the raw signals for analysis; null costs nothing
+	volatile SpectrumAnalyser.Tap tap;
+
+	static class MixerDeck {
+		int index;
+		// swapped by setDeck() when a standby deck takes over, so always read it once into a local
+		volatile PortaMod mod;
+		// written by the UI/MIDI side
+		volatile boolean playing = false;
+		volatile boolean muted = false;
+		volatile float fohGain = 0f;
+		volatile float cueGain = 0f;
+		// audio-thread copies, ramped towards the targets above
+		float fohCurrent = 0f;
+		float cueCurrent = 0f;
+		// row tracking, audio thread only: where the current row started and how long the last one lasted
+		int lastRow = -1;
+		long rowStartFrame = 0;
+		int rowFrames = 0;
+		// time spent in the replayer this block
+		long renderNanos = 0;
+	}
+
+	public MasterMixer(PortaMod a, PortaMod b) {
+		decks[DECK_A].mod = a;
+		decks[DECK_B].mod = b;
+		decks[DECK_A].index = DECK_A;
+		decks[DECK_B].index = DECK_B;
+	}
+
+	public void start() throws LineUnavailableException {
+		AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
+		line = AudioSystem.getSourceDataLine(format);
+		buffer = new AdaptiveBuffer(minLineBlocks, maxLineBlocks, LINE_BLOCKS);
+		// room for the most we'd ever queue; how much we actually keep in it is buffer's call
+		line.open(format, BLOCK_FRAMES * 4 * buffer.maxBlocks);
+		line.start();
+		running = true;
+		thread = new Thread(this, "Chipdisco master mixer");
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			try {
+				thread.join(500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (line != null) {
+			// drop whatever's still queued rather than letting it drain out as a glitch on quit
+			line.flush();
+			line.stop();
+			line.close();
+		}
+	}
+
+	/**
+	 * Latency the output may range over, in milliseconds. Rounded to the nearest whole block
+	 * (21.33ms, so the defaults of 43 and 171 are two and eight), and never less than two. Takes
+	 * effect at start().
+	 */
+	public void setLatencyBounds(int minMillis, int maxMillis) {
+		minLineBlocks = Math.max(2, millisToBlocks(minMillis));
+		maxLineBlocks = Math.max(minLineBlocks, millisToBlocks(maxMillis));
+	}
+
+	// worked out in frames, since a block isn't a whole number of milliseconds
+	static int millisToBlocks(int millis) {
+		return (int) Math.round(millis * (double) SAMPLE_RATE / (1000.0 * BLOCK_FRAMES));
+	}
+
+	public void run() {
+		int blockBytes = BLOCK_FRAMES * 4;
+		long blockNanos = 1000000000L * BLOCK_FRAMES / SAMPLE_RATE;
+		boolean primed = false;
+		while (running) {
+			mix(outbuf, BLOCK_FRAMES);
+			int size = line.getBufferSize();
+			int queued = size - line.available();
+			// an empty line buffer once we've a block ready means the card has been playing silence
+			if (primed && queued <= 0) {
+				metrics.underrun();
+				buffer.trouble(AdaptiveBuffer.UNDERRUN);
+			}
+			// hold the block back until the line is down to the target, so that's the latency we run at
+			while (running && queued > (buffer.getTargetBlocks() - 1) * blockBytes) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+				queued = size - line.available();
+			}
+			long t = System.nanoTime();
+			line.write(outbuf, 0, blockBytes);
+			// there was room, so a write that takes longer than a block means the device has stopped taking audio
+			if (primed && System.nanoTime() - t > blockNanos) {
+				metrics.underrun();
+				buffer.trouble(AdaptiveBuffer.STALL);
+			} else if (primed) {
+				buffer.clean();
+			}
+			primed = true;
+		}
+	}
+
+	/**
+	 * Render one block of the master mix into out as 16-bit little-endian stereo,
+	 * left = FOH, right = cue. Doesn't touch the sound card, so it can be driven by
+	 * anything that wants the mix. frames must not be more than BLOCK_FRAMES.
+	 */
+	public void mix(byte[] out, int frames) {
+		long started = System.nanoTime();
+		decks[DECK_A].renderNanos = 0;
+		decks[DECK_B].renderNanos = 0;
+		for (int i = 0; i < frames; i++) {
+			fohmix[i] = 0;
+			cuemix[i] = 0;
+			deckmono[DECK_A][i] = 0;
+			deckmono[DECK_B][i] = 0;
+		}
+		for (int pos = 0; pos < frames; pos += QUANTUM_FRAMES) {
+			int count = Math.min(QUANTUM_FRAMES, frames - pos);
+			applyCommands();
+			for (int d = 0; d < decks.length; d++) {
+				mixDeck(decks[d], pos, count);
+				trackRow(d, framesRendered + pos + count);
+			}
+		}
+		int o = 0;
+		for (int i = 0; i < frames; i++) {
+			int l = clip(fohmix[i]);
+			int r = clip(cuemix[i]);
+			out[o++] = (byte) (l & 0xFF);
+			out[o++] = (byte) (l >> 8);
+			out[o++] = (byte) (r & 0xFF);
+			out[o++] = (byte) (r >> 8);
+		}
+		meters.publish();
+		SpectrumAnalyser.Tap t = tap;
+		if (t != null) {
+			t.write(deckmono[DECK_A], deckmono[DECK_B], fohmix, frames);
+		}
+		framesRendered += frames;
+		metrics.audioDeck[DECK_A].recordNanos(decks[DECK_A].renderNanos);
+		metrics.audioDeck[DECK_B].recordNanos(decks[DECK_B].renderNanos);
+		metrics.audioBlock.recordNanos(System.nanoTime() - started);
+	}
+
+	void mixDeck(MixerDeck deck, int pos, int frames) {
+		float fohTarget = deck.fohGain;
+		float cueTarget = deck.cueGain;
+		PortaMod mod = deck.mod;
+		if (!deck.playing || mod == null) {
+			// nothing to pull, but keep the ramps in step so the next play doesn't click
+			deck.fohCurrent = fohTarget;
+			deck.cueCurrent = cueTarget;
+			return;
+		}
+		synchronized (mod) {
+			// swapped out while we waited for the lock - it may already be preloading the next tune
+			if (mod != deck.mod || mod.loadSuccess <= 0) {
+				return;
+			}
+			long t = System.nanoTime();
+			mod.player.ibxm.get_audio(deckbuf, frames);
+			deck.renderNanos += System.nanoTime() - t;
+			meters.sampleChannels(deck.index, mod);
+		}
+		if (deck.muted) {
+			fohTarget = 0f;
+			cueTarget = 0f;
+		}
+		float foh = deck.fohCurrent;
+		float cue = deck.cueCurrent;
+		float fohStep = (fohTarget - foh) / frames;
+		float cueStep = (cueTarget - cue) / frames;
+		int b = 0;
+		for (int i = pos; i < pos + frames; i++) {
+			int l = (deckbuf[b] & 0xFF) | (deckbuf[b + 1] << 8);
+			int r = (deckbuf[b + 2] & 0xFF) | (deckbuf[b + 3] << 8);
+			b += 4;
+			int mono = (l + r) >> 1;
+			meters.addSample(deck.index, mono);
+			deckmono[deck.index][i] = mono;
+			foh += fohStep;
+			cue += cueStep;
+			fohmix[i] += (int) (mono * foh);
+			cuemix[i] += (int) (mono * cue);
+		}
+		deck.fohCurrent = fohTarget;
+		deck.cueCurrent = cueTarget;
+	}
+
+	void trackRow(int d, long frame) {
+		MixerDeck deck = decks[d];
+		PortaMod mod = deck.mod;
+		if (!deck.playing || mod == null || mod.loadSuccess <= 0) {
+			deck.lastRow = -1;
+			loops.idle(d);
+			slices.cancel(d);
+			return;
+		}
+		loops.tick(this, d, mod, frame);
+		int row = mod.player.ibxm.current_row;
+		if (row == deck.lastRow) {
+			return;
+		}
+		if (deck.lastRow >= 0) {
+			deck.rowFrames = (int) (frame - deck.rowStartFrame);
+		}
+		deck.rowStartFrame = frame;
+		deck.lastRow = row;
+		sync.rowChanged(this, d, row, frame);
+		loops.rowChanged(this, d, mod, row);
+		slices.rowChanged(this, d, row);
+	}
+
+	void applyCommands() {
+		DeckCommandQueue[] q = queues;
+		for (int i = 0; i < q.length; i++) {
+			while (q[i].poll(command)) {
+				apply(command[0], command[1], command[2], command[3]);
+				(q[i].midi ? metrics.midiLatency : metrics.commandLatency).recordNanos(System.nanoTime() - q[i].polledNanos);
+			}
+		}
+	}
+
+	void apply(int type, int deck, int a, int b) {
+		if (type == DeckCommandQueue.SLICE) {
+			slices.trigger(this, deck, a, b, decks[deck].playing ? decks[deck].lastRow : -1);
+			return;
+		}
+		if (type == DeckCommandQueue.CANCEL_SLICE) {
+			slices.cancel(deck);
+			return;
+		}
+		PortaMod mod = decks[deck].mod;
+		if (mod == null) {
+			return;
+		}
+		synchronized (mod) {
+			if (mod.loadSuccess <= 0) {
+				return;
+			}
+			switch (type) {
+			case DeckCommandQueue.TEMPO:
+				mod.setTempo(a);
+				break;
+			case DeckCommandQueue.TRANSPOSE:
+				mod.setTranspose(-1, a);
+				break;
+			case DeckCommandQueue.NEXT_SEQUENCE:
+				mod.setNext_sequence_index(a, b);
+				break;
+			case DeckCommandQueue.NEXT_ROW:
+				mod.setNext_row(a);
+				break;
+			case DeckCommandQueue.CHANVOL:
+				mod.setChanvol(a, b);
+				break;
+			case DeckCommandQueue.CHANMUTE:
+				mod.setChanmute(a, b != 0);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queue a command from whichever thread we're on. The first post from a new thread hands
+	 * it its own queue; after that, posting is lock-free and allocation-free.
+	 */
+	public boolean post(int type, int deck, int a, int b) {
+		DeckCommandQueue q = producerQueue.get();
+		if (q == null) {
+			q = registerProducer();
+			if (q == null) {
+				return false;
+			}
+		}
+		if (!q.offer(type, deck, a, b)) {
+			metrics.droppedCommand();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Call at the top of a MIDI callback: whatever this thread posts from now on is timed from
+	 * this moment, and counts towards the MIDI latency figures.
+	 */
+	public void midiEvent() {
+		long now = System.nanoTime();
+		DeckCommandQueue q = producerQueue.get();
+		if (q == null) {
+			q = registerProducer();
+			if (q == null) {
+				return;
+			}
+		}
+		q.beginEvent(now);
+	}
+
+	synchronized DeckCommandQueue registerProducer() {
+		Thread me = Thread.currentThread();
+		// picking another MIDI device makes a new MidiBus with new threads, and the old ones are gone:
+		// take over one of their queues. Whatever it still holds is theirs and gets played as usual
+		for (int i = 0; i < queues.length; i++) {
+			Thread owner = queues[i].owner.get();
+			if (owner == null || !owner.isAlive()) {
+				queues[i].handOver(me);
+				producerQueue.set(queues[i]);
+				return queues[i];
+			}
+		}
+		if (queues.length >= MAX_PRODUCERS) {
+			System.err.println("MasterMixer: too many threads posting deck commands, ignoring " + Thread.currentThread().getName());
+			return null;
+		}
+		DeckCommandQueue q = new DeckCommandQueue(QUEUE_SIZE);
+		q.handOver(me);
+		DeckCommandQueue[] grown = new DeckCommandQueue[queues.length + 1];
+		System.arraycopy(queues, 0, grown, 0, queues.length);
+		grown[queues.length] = q;
+		queues = grown;
+		producerQueue.set(q);
+		return q;
+	}
+
+	public void setTempo(int deck, int bpm) {
+		post(DeckCommandQueue.TEMPO, deck, bpm, 0);
+	}
+
+	public void setTranspose(int deck, int semitones) {
+		post(DeckCommandQueue.TRANSPOSE, deck, semitones, 0);
+	}
+
+	public void setNextSequence(int deck, int index, int behaviour) {
+		post(DeckCommandQueue.NEXT_SEQUENCE, deck, index, behaviour);
+	}
+
+	// A slice jump: straight away, or on the next beat/bar/pattern if slices are quantized
+	public void triggerSlice(int deck, int index, int behaviour) {
+		post(DeckCommandQueue.SLICE, deck, index, behaviour);
+	}
+
+	public void setNextRow(int deck, int row) {
+		post(DeckCommandQueue.NEXT_ROW, deck, row, 0);
+	}
+
+	public void setChanvol(int deck, int channel, int volume) {
+		post(DeckCommandQueue.CHANVOL, deck, channel, volume);
+	}
+
+	public void setChanmute(int deck, int channel, boolean muted) {
+		post(DeckCommandQueue.CHANMUTE, deck, channel, muted ? 1 : 0);
+	}
+
+	static int clip(int s) {
+		if (s > 32767) {
+			return 32767;
+		}
+		if (s < -32768) {
+			return -32768;
+		}
+		return s;
+	}
+
+	// Hand a deck over to another PortaMod. Pause the deck first; the old one is left alone once this returns.
+	public void setDeck(int deck, PortaMod mod) {
+		decks[deck].mod = mod;
+		// a trigger held for the old module means nothing in the new one
+		post(DeckCommandQueue.CANCEL_SLICE, deck, 0, 0);
+	}
+
+	public PortaMod getDeck(int deck) {
+		return decks[deck].mod;
+	}
+
+	// Gains are 0..1, where 1 is the module's full volume. The UI keeps them within 48/64 for headroom.
+	public void setGains(int deck, float foh, float cue) {
+		decks[deck].fohGain = foh;
+		decks[deck].cueGain = cue;
+	}
+
+	public void play(int deck) {
+		decks[deck].playing = true;
+	}
+
+	public void pause(int deck) {
+		decks[deck].playing = false;
+	}
+
+	public boolean isPlaying(int deck) {
+		return decks[deck].playing;
+	}
+
+	public void setMuted(int deck, boolean muted) {
+		decks[deck].muted = muted;
+	}
+
+	// Feed a spectrum analyser from the audio thread, or stop with null
+	public void setTap(SpectrumAnalyser.Tap t) {
+		tap = t;
+	}
+
+	public long getFramesRendered() {
+		return framesRendered;
+	}
+}
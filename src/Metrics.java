@@ -0,0 +1,174 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Numbers for working out why a set glitched, where the only clue used to be println().
+ *
+ * Timings are LatencyHistograms: the whole audio block and each deck's share of it (recorded by
+ * the mixer on the audio thread), draw() frame time, MIDI event to mixer apply, other deck
+ * commands, and module loads. There are counters for underruns and dropped commands, and a
+ * background sampler works out the heap allocation rate from the JVM's per-thread totals.
+ *
+ * register() puts it all up under "chipdisco:" for jconsole/VisualVM. With a log interval set,
+ * the sampler also prints dump() every so often, so a set can be looked at afterwards.
+ */
+public class Metrics implements MetricsMBean {
+
+	static final String DOMAIN = "chipdisco";
+
+	public final LatencyHistogram audioBlock = new LatencyHistogram("audioBlock");
+	public final LatencyHistogram[] audioDeck = { new LatencyHistogram("audioDeckA"), new LatencyHistogram("audioDeckB") };
+	public final LatencyHistogram frame = new LatencyHistogram("frame");
+	public final LatencyHistogram midiLatency = new LatencyHistogram("midiToApply");
+	public final LatencyHistogram commandLatency = new LatencyHistogram("commandToApply");
+	public final LatencyHistogram moduleLoad = new LatencyHistogram("moduleLoad");
+	final LatencyHistogram[] histograms = { audioBlock, audioDeck[0], audioDeck[1], frame, midiLatency, commandLatency, moduleLoad };
+
+	final AtomicLong underruns = new AtomicLong();
+	final AtomicLong droppedCommands = new AtomicLong();
+
+	volatile double allocationRate = -1;
+	Thread sampler;
+	volatile boolean running = false;
+	int logSeconds = 0;
+
+	// sampler thread only: what each live thread had allocated at the last sample
+	final Map<Long, Long> allocatedAt = new HashMap<Long, Long>();
+	long lastSampleNanos = 0;
+
+	public void underrun() {
+		underruns.incrementAndGet();
+	}
+
+	public void droppedCommand() {
+		droppedCommands.incrementAndGet();
+	}
+
+	/**
+	 * Register the beans with the platform MBean server. Failing that just means no JMX -
+	 * the numbers are still kept and logged.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName(DOMAIN + ":type=Metrics"));
+			for (int i = 0; i < histograms.length; i++) {
+				server.registerMBean(histograms[i], new ObjectName(DOMAIN + ":type=Latency,name=" + histograms[i].name));
+			}
+		} catch (Exception e) {
+			System.err.println("Metrics: couldn't register with JMX (" + e + ")");
+		}
+	}
+
+	/**
+	 * Start sampling the allocation rate once a second, and print dump() every logSeconds
+	 * (0 for never).
+	 */
+	public void start(int logSeconds) {
+		this.logSeconds = logSeconds;
+		running = true;
+		sampler = new Thread(new Runnable() {
+			public void run() {
+				int ticks = 0;
+				while (running) {
+					sampleAllocation();
+					if (Metrics.this.logSeconds > 0 && ++ticks >= Metrics.this.logSeconds) {
+						ticks = 0;
+						System.out.println(dump());
+					}
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "Chipdisco metrics");
+		sampler.setDaemon(true);
+		sampler.setPriority(Thread.MIN_PRIORITY);
+		sampler.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (sampler != null) {
+			sampler.interrupt();
+		}
+	}
+
+	// Bytes allocated since the last sample, summed over live threads (new threads count from zero)
+	void sampleAllocation() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+		if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) {
+			return;
+		}
+		long[] ids = sun.getAllThreadIds();
+		long[] bytes = sun.getThreadAllocatedBytes(ids);
+		long now = System.nanoTime();
+		long delta = 0;
+		Map<Long, Long> seen = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] < 0) {
+				continue;
+			}
+			Long before = allocatedAt.get(ids[i]);
+			delta += bytes[i] - (before != null ? before : 0L);
+			seen.put(ids[i], bytes[i]);
+		}
+		if (lastSampleNanos != 0) {
+			allocationRate = delta / ((now - lastSampleNanos) / 1e9) / (1024 * 1024);
+		}
+		allocatedAt.clear();
+		allocatedAt.putAll(seen);
+		lastSampleNanos = now;
+	}
+
+	public long getUnderruns() {
+		return underruns.get();
+	}
+
+	public long getDroppedCommands() {
+		return droppedCommands.get();
+	}
+
+	public double getAllocationRateMBPerSecond() {
+		return allocationRate;
+	}
+
+	public long getHeapUsedMB() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+	}
+
+	public long getModulesLoaded() {
+		return moduleLoad.getCount();
+	}
+
+	public String dump() {
+		StringBuilder s = new StringBuilder("[Metrics]");
+		for (int i = 0; i < histograms.length; i++) {
+			s.append("\n  ").append(histograms[i].summary());
+		}
+		s.append("\n  underruns=").append(getUnderruns()).append(" droppedCommands=").append(getDroppedCommands());
+		s.append("\n  heap=").append(getHeapUsedMB()).append("MB alloc=");
+		s.append(allocationRate < 0 ? "n/a" : String.format("%.2fMB/s", allocationRate));
+		return s.toString();
+	}
+
+	public void reset() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i].reset();
+		}
+		underruns.set(0);
+		droppedCommands.set(0);
+	}
+}
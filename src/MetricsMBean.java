@@ -0,0 +1,21 @@
+/**
+ * The counters and gauges side of Metrics, for JMX. The timings are separate LatencyHistogram beans.
+ */
+public interface MetricsMBean {
+
+	long getUnderruns();
+
+	long getDroppedCommands();
+
+	double getAllocationRateMBPerSecond();
+
+	long getHeapUsedMB();
+
+	long getModulesLoaded();
+
+	// everything, as one line per metric
+	String dump();
+
+	// clears the histograms and counters
+	void reset();
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.CountDownLatch;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * Handle on one module load running in the background - a poor man's Future.
+ *
+ * PortaMod reads and parses the file into a spare replayer in one go, off the UI thread, so a
+ * slow USB stick or network share only holds up the standby thread. It only loads from a path
+ * and doesn't say how far it's got, so all there is to show is whether the load is still
+ * queued or under way. Nothing reaches a deck until the caller takes the finished load, so a
+ * cancelled or failed one never touches what's playing.
+ */
+public class ModLoad {
+
+	public final String path;
+	// where to find the other deck when the load runs, in case it has this module to share
+	// (see ModuleShare); null to always load the file
+	final MasterMixer mixer;
+	final int otherDeck;
+
+	volatile boolean started = false;
+	volatile boolean cancelled = false;
+	volatile boolean done = false;
+	volatile boolean ok = false;
+	volatile String error = null;
+	volatile long startedNanos = 0;
+	volatile long finishedNanos = 0;
+	final CountDownLatch finished = new CountDownLatch(1);
+
+	ModLoad(String path, MasterMixer mixer, int otherDeck) {
+		this.path = path;
+		this.mixer = mixer;
+		this.otherDeck = otherDeck;
+	}
+
+	// Loader thread: load the module into target unless we've been cancelled
+	void run(PortaMod target) {
+		startedNanos = System.nanoTime();
+		started = true;
+		try {
+			if (cancelled) {
+				return;
+			}
+			// whatever the other deck has now, not when the load was asked for - shareInto checks
+			// it's still this module
+			PortaMod twin = mixer != null ? mixer.getDeck(otherDeck) : null;
+			if (twin != null && ModuleShare.shareInto(twin, path, target)) {
+				ok = !cancelled;
+				return;
+			}
+			ModuleShare.loadFile(target, path);
+			ok = !cancelled && target.loadSuccess > 0;
+			if (!ok && !cancelled) {
+				error = "not a module PortaMod could load";
+			}
+		} catch (RuntimeException e) {
+			// malformed modules can get past headerCheck and then throw from the loader
+			error = e.toString();
+		} finally {
+			finishedNanos = System.nanoTime();
+			done = true;
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Stop the load if it hasn't started yet. One that's already running finishes, but its
+	 * result is thrown away.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	// finished, not cancelled, and the module loaded
+	public boolean succeeded() {
+		return done && ok && !cancelled;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	// false while still queued behind another load on the standby thread
+	public boolean isStarted() {
+		return started;
+	}
+
+	// how long the read and parse took, once done (not counting time queued behind another load)
+	public long getElapsedNanos() {
+		return done ? finishedNanos - startedNanos : 0;
+	}
+
+	public void await() throws InterruptedException {
+		finished.await();
+	}
+}
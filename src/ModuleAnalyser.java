@@ -0,0 +1,189 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Works out the song info for whole playlists in the background, spread over every core.
+ *
+ * Hand it the paths a directory scan or m3u has just added and it forks them out across a
+ * ForkJoinPool. Each worker has its own private PortaMod, loads the module into it and reads off
+ * the channel and pattern counts, initial tempo, duration and instrument names. It also plays
+ * a few rows silently to measure the effective tempo, since speed commands mean the initial
+ * BPM often isn't what you hear. Modules the ModuleIndex already has full info for are
+ * answered from there without loading anything.
+ *
+ * Results are queued as they complete, in whatever order they finish. The UI thread picks
+ * them up with poll() and updates the playlist, so nothing here touches ControlP5.
+ */
+public class ModuleAnalyser {
+
+	// paths per leaf task - small, since one module can take a while on its own
+	static final int BATCH = 4;
+	// rows timed to measure the effective tempo, and the most audio we'll render to find them
+	static final int MEASURE_ROWS = 16;
+	static final int MEASURE_MAX_FRAMES = MasterMixer.SAMPLE_RATE * 20;
+
+	public static class Result {
+		public final char deck;
+		public final String path;
+		public final ModuleIndex.Entry info;
+
+		Result(char deck, String path, ModuleIndex.Entry info) {
+			this.deck = deck;
+			this.path = path;
+			this.info = info;
+		}
+	}
+
+	final PApplet host;
+	final ModuleIndex index;
+	final ForkJoinPool pool;
+	final ConcurrentLinkedQueue<Result> done = new ConcurrentLinkedQueue<Result>();
+	volatile int rowsPerBeat = 4;
+
+	// one replayer per worker, reused for every module that worker picks up
+	final ThreadLocal<PortaMod> probe = new ThreadLocal<PortaMod>() {
+		protected PortaMod initialValue() {
+			return new PortaMod(host);
+		}
+	};
+	final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[MasterMixer.QUANTUM_FRAMES * 4];
+		}
+	};
+
+	public ModuleAnalyser(PApplet host, ModuleIndex index) {
+		this.host = host;
+		this.index = index;
+		pool = new ForkJoinPool();
+	}
+
+	/**
+	 * One that keeps to threads workers at the given priority, for work nobody is waiting on
+	 * (the library's first scan) that shouldn't compete with the audio thread.
+	 */
+	public ModuleAnalyser(PApplet host, ModuleIndex index, int threads, final int priority) {
+		this.host = host;
+		this.index = index;
+		pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+				t.setPriority(priority);
+				return t;
+			}
+		}, null, false);
+	}
+
+	public void setRowsPerBeat(int rows) {
+		if (rows > 0) {
+			rowsPerBeat = rows;
+		}
+	}
+
+	/**
+	 * Queue a batch of paths for deck 'a' or 'b'. Returns straight away.
+	 */
+	public void analyse(char deck, List<String> paths) {
+		if (paths.isEmpty()) {
+			return;
+		}
+		pool.execute(new Batch(deck, paths.toArray(new String[paths.size()]), 0, paths.size()));
+	}
+
+	/**
+	 * The next finished result, or null if there isn't one yet.
+	 */
+	public Result poll() {
+		return done.poll();
+	}
+
+	public boolean isBusy() {
+		return !pool.isQuiescent();
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	class Batch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final char deck;
+		final String[] paths;
+		final int lo, hi;
+
+		Batch(char deck, String[] paths, int lo, int hi) {
+			this.deck = deck;
+			this.paths = paths;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo <= BATCH) {
+				for (int i = lo; i < hi; i++) {
+					analyseOne(deck, paths[i]);
+				}
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new Batch(deck, paths, lo, mid), new Batch(deck, paths, mid, hi));
+		}
+	}
+
+	void analyseOne(char deck, String path) {
+		ModuleIndex.Entry info = index.lookup(path);
+		if (info == null || info.effectiveTempo <= 0) {
+			PortaMod mod = probe.get();
+			try {
+				mod.doModLoad(path, false, 64);
+				if (mod.loadSuccess <= 0) {
+					return;
+				}
+				info = index.record(path, mod, measureTempo(mod));
+			} catch (Exception e) {
+				// some malformed modules get past headerCheck and then fall over in the loader
+				System.err.println("ModuleAnalyser: couldn't analyse " + path + " (" + e + ")");
+				return;
+			}
+		}
+		if (info != null) {
+			done.add(new Result(deck, path, info));
+		}
+	}
+
+	/**
+	 * Plays the start of the song into a scratch buffer and times MEASURE_ROWS rows, giving the
+	 * tempo you actually hear in BPM (rowsPerBeat rows to the beat). 0 if it couldn't tell.
+	 */
+	float measureTempo(PortaMod mod) {
+		byte[] buf = scratch.get();
+		int lastRow = mod.player.ibxm.current_row;
+		int changes = 0;
+		long frame = 0, firstChange = 0, lastChange = 0;
+		while (changes <= MEASURE_ROWS && frame < MEASURE_MAX_FRAMES) {
+			mod.player.ibxm.get_audio(buf, MasterMixer.QUANTUM_FRAMES);
+			frame += MasterMixer.QUANTUM_FRAMES;
+			int row = mod.player.ibxm.current_row;
+			if (row != lastRow) {
+				lastRow = row;
+				if (changes == 0) {
+					firstChange = frame;
+				}
+				lastChange = frame;
+				changes++;
+			}
+		}
+		if (changes < 2) {
+			return 0f;
+		}
+		float framesPerRow = (float) (lastChange - firstChange) / (changes - 1);
+		return 60f * MasterMixer.SAMPLE_RATE / (framesPerRow * rowsPerBeat);
+	}
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * On-disk index of every module we've looked at, so big crates don't get header-checked file
+ * by file on every startup.
+ *
+ * Entries are keyed by path and only trusted while the file's size and last-modified time
+ * still match what we saw - touch or replace a module and it gets checked again. Alongside the
+ * headerCheck result we keep the song info PortaMod works out on load (channels, patterns,
+ * instruments, initial tempo, length) plus what ModuleAnalyser measures (effective tempo and
+ * instrument names), so playlists can show it without loading anything.
+ *
+ * The index lives in ~/.chipdisco_index as a small binary file. If it's missing, from an older
+ * version or corrupt, we just start empty and rebuild it as we go.
+ */
+public class ModuleIndex {
+
+	static final int MAGIC = 0x43444958; // "CDIX"
+	static final int VERSION = 2;
+
+	File file;
+	Map<String, Entry> entries = new HashMap<String, Entry>();
+	boolean dirty = false;
+	// one save at a time, without holding up lookups while it writes
+	final Object saveLock = new Object();
+
+	static class Entry {
+		long size;
+		long modified;
+		boolean valid;
+		// song info - only known once the module has been loaded (or analysed) at least once
+		boolean hasInfo;
+		int numchannels;
+		int numpatterns;
+		int numinstruments;
+		int initialtempo;
+		float songLength;
+		// from ModuleAnalyser: 0 if it hasn't measured this one yet
+		float effectiveTempo;
+		String[] instruments = new String[0];
+	}
+
+	public ModuleIndex(File file) {
+		this.file = file;
+	}
+
+	public static File defaultFile() {
+		return new File(System.getProperty("user.home"), ".chipdisco_index");
+	}
+
+	public synchronized void load() {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.err.println("ModuleIndex: " + file + " is from another version, rebuilding it");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				Entry e = new Entry();
+				e.size = in.readLong();
+				e.modified = in.readLong();
+				e.valid = in.readBoolean();
+				e.hasInfo = in.readBoolean();
+				if (e.hasInfo) {
+					e.numchannels = in.readShort();
+					e.numpatterns = in.readShort();
+					e.numinstruments = in.readShort();
+					e.initialtempo = in.readShort();
+					e.songLength = in.readFloat();
+					e.effectiveTempo = in.readFloat();
+					e.instruments = new String[in.readShort()];
+					for (int n = 0; n < e.instruments.length; n++) {
+						e.instruments[n] = in.readUTF();
+					}
+				}
+				entries.put(path, e);
+			}
+		} catch (IOException e) {
+			System.err.println("ModuleIndex: couldn't read " + file + " (" + e + "), rebuilding it");
+			entries.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the index out if anything has changed since it was loaded. Goes via a temp file
+	 * that is moved over the old index in one step, so a crash at any point leaves either the
+	 * old index or the new one. Saves from different threads take turns; lookups and checks
+	 * carry on meanwhile, against the index as it is, and anything they change goes out with
+	 * the next save.
+	 */
+	public void save() {
+		synchronized (saveLock) {
+			Map<String, Entry> snapshot;
+			synchronized (this) {
+				if (!dirty) {
+					return;
+				}
+				// entries are replaced, never changed, so a shallow copy is a consistent one
+				snapshot = new HashMap<String, Entry>(entries);
+				dirty = false;
+			}
+			if (!write(snapshot)) {
+				synchronized (this) {
+					dirty = true;
+				}
+			}
+		}
+	}
+
+	boolean write(Map<String, Entry> entries) {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Entry> me = it.next();
+				Entry e = me.getValue();
+				out.writeUTF(me.getKey());
+				out.writeLong(e.size);
+				out.writeLong(e.modified);
+				out.writeBoolean(e.valid);
+				out.writeBoolean(e.hasInfo);
+				if (e.hasInfo) {
+					out.writeShort(e.numchannels);
+					out.writeShort(e.numpatterns);
+					out.writeShort(e.numinstruments);
+					out.writeShort(e.initialtempo);
+					out.writeFloat(e.songLength);
+					out.writeFloat(e.effectiveTempo);
+					out.writeShort(e.instruments.length);
+					for (int n = 0; n < e.instruments.length; n++) {
+						out.writeUTF(e.instruments[n]);
+					}
+				}
+			}
+			out.close();
+			out = null;
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				// a filesystem that can't - still one call, rather than delete then rename
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println("ModuleIndex: couldn't write " + file + " (" + e + ")");
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The headerCheck() result for path, from the index if the file hasn't changed since we last
+	 * saw it, otherwise by asking probe and remembering the answer. The index isn't locked while
+	 * probe reads the file, so several threads with a probe each can check at once.
+	 */
+	public boolean check(PortaMod probe, String path) {
+		File f = new File(path);
+		long size = f.length();
+		long modified = f.lastModified();
+		synchronized (this) {
+			Entry e = entries.get(path);
+			if (e != null && e.size == size && e.modified == modified) {
+				return e.valid;
+			}
+		}
+		Entry e = new Entry();
+		e.size = size;
+		e.modified = modified;
+		e.valid = probe.headerCheck(path);
+		synchronized (this) {
+			// unless someone recorded it meanwhile, with song info we'd be throwing away
+			Entry now = entries.get(path);
+			if (now == null || now.size != size || now.modified != modified) {
+				entries.put(path, e);
+				dirty = true;
+			}
+		}
+		return e.valid;
+	}
+
+	/**
+	 * Remember the song info of a module that has just been loaded into mod. Returns the new entry.
+	 */
+	public Entry record(String path, PortaMod mod) {
+		return record(path, mod, 0f);
+	}
+
+	/**
+	 * As above, with the effective tempo measured by ModuleAnalyser. Pass 0 to keep whatever
+	 * the index already knows. Entries are replaced rather than changed, so one handed out by
+	 * lookup() or record() never changes underneath whoever holds it.
+	 */
+	public synchronized Entry record(String path, PortaMod mod, float effectiveTempo) {
+		if (mod.loadSuccess <= 0) {
+			return null;
+		}
+		File f = new File(path);
+		Entry old = entries.get(path);
+		Entry e = new Entry();
+		e.size = f.length();
+		e.modified = f.lastModified();
+		if (old != null && old.size == e.size && old.modified == e.modified && effectiveTempo <= 0) {
+			e.effectiveTempo = old.effectiveTempo;
+		} else {
+			e.effectiveTempo = effectiveTempo;
+		}
+		e.valid = true;
+		e.hasInfo = true;
+		e.numchannels = mod.numchannels;
+		e.numpatterns = mod.numpatterns;
+		e.numinstruments = mod.numinstruments;
+		e.initialtempo = mod.initialtempo;
+		e.songLength = mod.songLength;
+		e.instruments = instrumentNames(mod);
+		entries.put(path, e);
+		dirty = true;
+		return e;
+	}
+
+	static String[] instrumentNames(PortaMod mod) {
+		if (mod.infotext == null) {
+			return new String[0];
+		}
+		String[] names = new String[mod.infotext.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = mod.infotext[i] != null ? mod.infotext[i] : "";
+		}
+		return names;
+	}
+
+	/**
+	 * The indexed song info for path, or null if it's unknown or the file has changed since.
+	 */
+	public synchronized Entry lookup(String path) {
+		Entry e = entries.get(path);
+		if (e == null || !e.hasInfo) {
+			return null;
+		}
+		File f = new File(path);
+		if (e.size != f.length() || e.modified != f.lastModified()) {
+			return null;
+		}
+		return e;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
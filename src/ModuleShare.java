@@ -0,0 +1,146 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * Lets the second deck play a module the first deck already has, without loading it again.
+ *
+ * IBXM keeps everything it parses out of a file - patterns, instruments, sample PCM - in a
+ * Module that playback only ever reads; the per-deck position, channel and tempo state lives
+ * in the replayer itself. So for doubles and beat-juggling we hand the other deck's Module
+ * straight to this deck's player instead of parsing the file a second time. That's instant,
+ * and both decks share the one copy of the sample data.
+ *
+ * PortaMod doesn't expose the Module, so we find the player's module field and set_module()
+ * by reflection, once. If this PortaMod build doesn't have them, available() is false and
+ * callers just load the file as usual.
+ *
+ * PortaMod doesn't remember which file it loaded either, so deck loads go through loadFile()
+ * and shareInto(), which note the path against the PortaMod under its lock. shareInto() only
+ * shares when from still has the path it was asked for. A deck that changed tune between the
+ * load being asked for and it running is never copied by mistake.
+ */
+public class ModuleShare {
+
+	static boolean resolved = false;
+	static Field moduleField;
+	static Method setModule;
+	// what each deck's PortaMod last loaded, written under that PortaMod's lock
+	static final Map<PortaMod, String> loadedPaths = Collections.synchronizedMap(new WeakHashMap<PortaMod, String>());
+
+	static synchronized boolean resolve(Object player) {
+		if (resolved) {
+			return moduleField != null;
+		}
+		resolved = true;
+		try {
+			for (Class<?> c = player.getClass(); c != null && moduleField == null; c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					if (f.getName().equals("module")) {
+						moduleField = f;
+						break;
+					}
+				}
+			}
+			if (moduleField == null) {
+				throw new NoSuchFieldException("module");
+			}
+			moduleField.setAccessible(true);
+			setModule = player.getClass().getMethod("set_module", moduleField.getType());
+		} catch (Exception e) {
+			System.err.println("ModuleShare: this PortaMod can't share modules between decks (" + e + "), loading them separately");
+			moduleField = null;
+			setModule = null;
+		}
+		return moduleField != null;
+	}
+
+	public static boolean available(PortaMod mod) {
+		return mod.player != null && resolve(mod.player);
+	}
+
+	// The path mod last loaded, or null. Hold mod's lock if it has to stay that way.
+	public static String loadedPath(PortaMod mod) {
+		return loadedPaths.get(mod);
+	}
+
+	/**
+	 * Load path into mod from the file, the usual way, and note that it has it.
+	 */
+	public static void loadFile(PortaMod mod, String path) {
+		synchronized (mod) {
+			loadedPaths.remove(mod);
+			mod.doModLoad(path, false, 64);
+			if (mod.loadSuccess > 0) {
+				loadedPaths.put(mod, path);
+			}
+		}
+	}
+
+	/**
+	 * Put path on to, sharing from's module if from has path loaded and loading the file if not.
+	 * from may be null.
+	 */
+	public static void loadInto(PortaMod from, String path, PortaMod to) {
+		if (from == null || !shareInto(from, path, to)) {
+			loadFile(to, path);
+		}
+	}
+
+	/**
+	 * Point to at the module from is playing, song info and all, as long as that's path. Returns
+	 * false (leaving to as it was) if from has something else loaded by now, or sharing can't be
+	 * done, in which case load the file instead. Locks each deck in turn, never both at once.
+	 */
+	public static boolean shareInto(PortaMod from, String path, PortaMod to) {
+		if (from == to || !available(from) || !available(to)) {
+			return false;
+		}
+		Object module;
+		int loadSuccess, numchannels, numpatterns, numinstruments, initialtempo;
+		float songLength;
+		String[] infotext;
+		synchronized (from) {
+			if (from.loadSuccess <= 0 || !path.equals(loadedPaths.get(from))) {
+				return false;
+			}
+			try {
+				module = moduleField.get(from.player);
+			} catch (IllegalAccessException e) {
+				return false;
+			}
+			loadSuccess = from.loadSuccess;
+			numchannels = from.numchannels;
+			numpatterns = from.numpatterns;
+			numinstruments = from.numinstruments;
+			initialtempo = from.initialtempo;
+			songLength = from.songLength;
+			infotext = from.infotext;
+		}
+		if (module == null) {
+			return false;
+		}
+		synchronized (to) {
+			try {
+				setModule.invoke(to.player, module);
+			} catch (Exception e) {
+				System.err.println("ModuleShare: couldn't share module (" + e + ")");
+				return false;
+			}
+			to.numchannels = numchannels;
+			to.numpatterns = numpatterns;
+			to.numinstruments = numinstruments;
+			to.initialtempo = initialtempo;
+			to.songLength = songLength;
+			// only ever read, so sharing the array is fine
+			to.infotext = infotext;
+			to.loadSuccess = loadSuccess;
+			loadedPaths.put(to, path);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,490 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Everything under deckAdir and deckBdir (and any other roots you give it), subfolders and all,
+ * held in memory and searchable as you type.
+ *
+ * The scan runs on a thread of its own. Each file goes through the ModuleIndex's headerCheck,
+ * so a library that was scanned last time costs little more than a directory walk. Format and
+ * song title come straight from the module header; channels, tempo and instrument names come
+ * from the index where it has them, and from a ModuleAnalyser of our own where it doesn't -
+ * one low priority thread, since a first scan of a big collection can mean replaying thousands
+ * of modules while a set is playing.
+ * Tracks are searchable the moment they're found and pick up their song info as it arrives.
+ *
+ * Filename, title and instrument words go into one sorted map of word to track ids, so a word
+ * of a query is a prefix range lookup and a handful of bit set ORs, however big the library.
+ * Queries are words plus optional filters:
+ *
+ *   jogeir 4mat | title:space | inst:kick | name:dope | fmt:xm | ch:4 | ch:6-8 | bpm:120-135
+ *
+ * Every word has to match somewhere (filters narrow it further); ch: and bpm: skip tracks
+ * that haven't been analysed yet.
+ */
+public class MusicLibrary implements Runnable {
+
+	// what analyser results for us are marked with, where playlists use 'a' and 'b'
+	static final char LIBRARY = 'l';
+	// where a word came from, as the first char of its key, so one map holds all three
+	static final char NAME = 'n';
+	static final char TITLE = 't';
+	static final char INSTRUMENT = 'i';
+	static final String ANY = "nti";
+	// enough of the file to find every header we know (the MOD tag is at 1080)
+	static final int HEADER = 1084;
+	// paths handed to the analyser at a time while the walk is still going
+	static final int ANALYSE_BATCH = 256;
+	// our analyser's workers, kept out of the way of the audio thread and the playlists' analyser
+	static final int ANALYSE_THREADS = 1;
+
+	public static class Track {
+		public final int id;
+		public final String path;
+		public final String name;
+		public final String title;
+		public final String format;
+		// from the index or the analyser; 0 until known
+		volatile int channels;
+		volatile float tempo;
+		volatile float songLength;
+
+		Track(int id, String path, String name, String title, String format) {
+			this.id = id;
+			this.path = path;
+			this.name = name;
+			this.title = title;
+			this.format = format;
+		}
+
+		public boolean hasInfo() {
+			return channels > 0;
+		}
+
+		public int getChannels() {
+			return channels;
+		}
+
+		public float getTempo() {
+			return tempo;
+		}
+
+		public float getSongLength() {
+			return songLength;
+		}
+	}
+
+	// a growable list of track ids; a track can turn up twice if its info is updated
+	static class Postings {
+		int[] ids = new int[4];
+		int size = 0;
+
+		void add(int id) {
+			if (size > 0 && ids[size - 1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	final ModuleIndex index;
+	final PortaMod probe;
+	final ModuleAnalyser analyser;
+
+	// by id; null where a track has been removed
+	final List<Track> tracks = new ArrayList<Track>();
+	int live = 0;
+	final Map<String, Track> byPath = new HashMap<String, Track>();
+	final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+
+	final List<File> roots = new ArrayList<File>();
+	volatile boolean running = false;
+	volatile boolean scanning = false;
+	Thread thread;
+
+	public MusicLibrary(PApplet host, ModuleIndex index) {
+		this.index = index;
+		probe = new PortaMod(host);
+		analyser = new ModuleAnalyser(host, index, ANALYSE_THREADS, Thread.MIN_PRIORITY);
+	}
+
+	public void setRowsPerBeat(int rows) {
+		analyser.setRowsPerBeat(rows);
+	}
+
+	// Directories to scan; call before start(). Missing or empty ones are skipped.
+	public void addRoot(String dir) {
+		if (dir != null && dir.length() > 0) {
+			roots.add(new File(dir));
+		}
+	}
+
+	public void start() {
+		running = true;
+		scanning = true;
+		thread = new Thread(this, "Chipdisco library");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		analyser.shutdown();
+	}
+
+	public boolean isScanning() {
+		return scanning;
+	}
+
+	public synchronized int size() {
+		return live;
+	}
+
+	public void run() {
+		long started = System.nanoTime();
+		ArrayDeque<File> dirs = new ArrayDeque<File>();
+		Set<String> seen = new HashSet<String>();
+		for (int i = roots.size() - 1; i >= 0; i--) {
+			dirs.push(roots.get(i));
+		}
+		List<String> unknown = new ArrayList<String>();
+		while (running && !dirs.isEmpty()) {
+			File dir = dirs.pop();
+			try {
+				// the same folder twice (both decks on one root, or a link back up the tree) is walked once
+				if (!seen.add(dir.getCanonicalPath())) {
+					continue;
+				}
+			} catch (IOException e) {
+				continue;
+			}
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			// pushed backwards so subfolders come off the stack in name order
+			for (int i = files.length - 1; i >= 0; i--) {
+				if (files[i].isDirectory()) {
+					dirs.push(files[i]);
+				}
+			}
+			for (int i = 0; i < files.length && running; i++) {
+				if (!files[i].isFile()) {
+					continue;
+				}
+				String path = files[i].getPath();
+				if (!index.check(probe, path)) {
+					continue;
+				}
+				Track t = add(files[i]);
+				ModuleIndex.Entry info = index.lookup(path);
+				if (info != null) {
+					update(t, info);
+				}
+				// the analyser measures the tempo you hear, which the index may not have yet
+				if (info == null || info.effectiveTempo <= 0) {
+					unknown.add(path);
+				}
+			}
+			if (unknown.size() >= ANALYSE_BATCH) {
+				analyser.analyse(LIBRARY, unknown);
+				unknown.clear();
+			}
+			drain();
+		}
+		analyser.analyse(LIBRARY, unknown);
+		index.save();
+		scanning = false;
+		System.out.println("MusicLibrary: " + size() + " modules in " + (System.nanoTime() - started) / 1000000L + "ms");
+
+		// then fold in song info until the analyser has been through everything
+		int quiet = 0;
+		while (running && quiet < 2) {
+			try {
+				Thread.sleep(250);
+			} catch (InterruptedException e) {
+				return;
+			}
+			quiet = (analyser.isBusy() || drain() > 0) ? 0 : quiet + 1;
+		}
+		index.save();
+	}
+
+	// Analyser results in so far. Returns how many there were.
+	int drain() {
+		int n = 0;
+		ModuleAnalyser.Result r;
+		while ((r = analyser.poll()) != null) {
+			Track t;
+			synchronized (this) {
+				t = byPath.get(r.path);
+			}
+			if (t != null) {
+				update(t, r.info);
+			}
+			n++;
+		}
+		return n;
+	}
+
+	Track add(File f) {
+		String path = f.getPath();
+		// read outside the lock, so a slow disk never holds up a search
+		String[] header = readHeader(f);
+		synchronized (this) {
+			Track t = byPath.get(path);
+			if (t != null) {
+				return t;
+			}
+			t = new Track(tracks.size(), path, f.getName(), header[1], header[0]);
+			tracks.add(t);
+			byPath.put(path, t);
+			live++;
+			index(NAME, stripExtension(t.name), t.id);
+			index(TITLE, t.title, t.id);
+			return t;
+		}
+	}
+
+	/**
+	 * A module that has turned up since the scan (see FolderWatcher). Searchable straight away,
+	 * and analysed in the background if the index doesn't know it.
+	 */
+	public void added(File f) {
+		Track t = add(f);
+		ModuleIndex.Entry info = index.lookup(t.path);
+		if (info != null) {
+			update(t, info);
+		}
+		if (info == null || info.effectiveTempo <= 0) {
+			analyser.analyse(LIBRARY, Collections.singletonList(t.path));
+		}
+	}
+
+	/**
+	 * A module that has gone. Its id is never reused; the words that pointed at it are left to
+	 * point at nothing.
+	 */
+	public synchronized void removed(String path) {
+		Track t = byPath.remove(path);
+		if (t != null) {
+			tracks.set(t.id, null);
+			live--;
+		}
+	}
+
+	synchronized void update(Track t, ModuleIndex.Entry info) {
+		t.channels = info.numchannels;
+		t.tempo = info.effectiveTempo > 0 ? info.effectiveTempo : info.initialtempo;
+		t.songLength = info.songLength;
+		for (int i = 0; i < info.instruments.length; i++) {
+			index(INSTRUMENT, info.instruments[i], t.id);
+		}
+	}
+
+	void index(char field, String text, int id) {
+		List<String> found = new ArrayList<String>();
+		split(text, found);
+		for (int i = 0; i < found.size(); i++) {
+			String key = field + found.get(i);
+			Postings p = words.get(key);
+			if (p == null) {
+				p = new Postings();
+				words.put(key, p);
+			}
+			p.add(id);
+		}
+	}
+
+	// lower case runs of letters and digits
+	static void split(String text, List<String> out) {
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				out.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+	}
+
+	static String stripExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Up to limit tracks matching query, in scan order. See the class comment for the syntax.
+	 */
+	public synchronized List<Track> search(String query, int limit) {
+		// song info for anything added since the scan finished
+		drain();
+		BitSet hits = null;
+		String format = null;
+		int minChannels = 0, maxChannels = Integer.MAX_VALUE;
+		float minTempo = 0f, maxTempo = Float.MAX_VALUE;
+		String[] terms = query.trim().toLowerCase().split("\\s+");
+		for (int i = 0; i < terms.length; i++) {
+			String term = terms[i];
+			if (term.length() == 0) {
+				continue;
+			}
+			int colon = term.indexOf(':');
+			String key = colon > 0 ? term.substring(0, colon) : "";
+			String value = colon > 0 ? term.substring(colon + 1) : term;
+			try {
+				if (key.equals("ch")) {
+					int[] range = intRange(value);
+					minChannels = range[0];
+					maxChannels = range[1];
+					continue;
+				}
+				if (key.equals("bpm")) {
+					int[] range = intRange(value);
+					minTempo = range[0] - 0.5f;
+					maxTempo = range[1] + 0.5f;
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				// not a filter after all - look for it as a word
+				value = term;
+				key = "";
+			}
+			if (key.equals("fmt") || key.equals("format")) {
+				format = value;
+				continue;
+			}
+			String fields = key.equals("name") ? "n" : key.equals("title") ? "t" : key.startsWith("inst") ? "i" : ANY;
+			List<String> found = new ArrayList<String>();
+			split(value, found);
+			for (int w = 0; w < found.size(); w++) {
+				BitSet m = match(fields, found.get(w));
+				if (hits == null) {
+					hits = m;
+				} else {
+					hits.and(m);
+				}
+			}
+		}
+
+		List<Track> out = new ArrayList<Track>();
+		int id = hits == null ? 0 : hits.nextSetBit(0);
+		while (id >= 0 && id < tracks.size() && out.size() < limit) {
+			Track t = tracks.get(id);
+			boolean ok = t != null && (format == null || t.format.equalsIgnoreCase(format));
+			if (ok && (minChannels > 0 || maxChannels < Integer.MAX_VALUE)) {
+				ok = t.channels >= minChannels && t.channels <= maxChannels;
+			}
+			if (ok && (minTempo > 0f || maxTempo < Float.MAX_VALUE)) {
+				ok = t.hasInfo() && t.tempo >= minTempo && t.tempo <= maxTempo;
+			}
+			if (ok) {
+				out.add(t);
+			}
+			id = hits == null ? id + 1 : hits.nextSetBit(id + 1);
+		}
+		return out;
+	}
+
+	// Every track with a word in one of fields starting with prefix
+	BitSet match(String fields, String prefix) {
+		BitSet m = new BitSet(tracks.size());
+		for (int f = 0; f < fields.length(); f++) {
+			String from = fields.charAt(f) + prefix;
+			for (Postings p : words.subMap(from, from + Character.MAX_VALUE).values()) {
+				for (int i = 0; i < p.size; i++) {
+					m.set(p.ids[i]);
+				}
+			}
+		}
+		return m;
+	}
+
+	// "4" or "4-8"
+	static int[] intRange(String s) {
+		int dash = s.indexOf('-', 1);
+		if (dash < 0) {
+			int v = Integer.parseInt(s);
+			return new int[] { v, v };
+		}
+		return new int[] { Integer.parseInt(s.substring(0, dash)), Integer.parseInt(s.substring(dash + 1)) };
+	}
+
+	/**
+	 * Format and song title from the first few bytes of the file: { "XM", "Some title" }. Files
+	 * we don't recognise go by their extension, with no title.
+	 */
+	static String[] readHeader(File f) {
+		byte[] h = new byte[HEADER];
+		int n = 0;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			int r;
+			while (n < h.length && (r = in.read(h, n, h.length - n)) > 0) {
+				n += r;
+			}
+		} catch (IOException e) {
+			n = 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if (n >= 37 && ascii(h, 0, 17).equals("Extended Module: ")) {
+			return new String[] { "XM", ascii(h, 17, 20).trim() };
+		}
+		if (n >= 48 && ascii(h, 44, 4).equals("SCRM")) {
+			return new String[] { "S3M", ascii(h, 0, 28).trim() };
+		}
+		if (n >= 30 && ascii(h, 0, 4).equals("IMPM")) {
+			return new String[] { "IT", ascii(h, 4, 26).trim() };
+		}
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		String ext = dot >= 0 ? name.substring(dot + 1).toUpperCase() : "";
+		// MODs have no magic at the start - the tag at 1080 (M.K., 8CHN...) or the name says it's one
+		if ((n >= HEADER && ascii(h, 1080, 4).trim().length() == 4) || (n >= 20 && ext.equals("MOD"))) {
+			return new String[] { "MOD", ascii(h, 0, 20).trim() };
+		}
+		return new String[] { ext, "" };
+	}
+
+	// Latin-1 text from a header field, with NULs and other control codes as spaces
+	static String ascii(byte[] b, int from, int len) {
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++) {
+			int v = b[from + i] & 0xff;
+			c[i] = v < 32 || v == 127 ? ' ' : (char) v;
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,299 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Renders one deck, or a two-deck mix, straight to a WAV file as fast as the CPU will go.
+ *
+ * It drives a MasterMixer that never opens a line, so there's no sound card involved and
+ * no waiting on real time - handy for pre-listening crates, making golden files and seeing
+ * how many samples per second the replayer can really push. The file is the front of house
+ * bus: 16-bit mono at MasterMixer.SAMPLE_RATE.
+ *
+ * A mix can be scripted with a plain text file, one move per line, times in seconds:
+ *
+ *   # time  command    args
+ *   0       play       a
+ *   0       crossfade  0
+ *   30      play       b
+ *   30      sync       b pattern
+ *   45.5    crossfade  96
+ *   50      tempo      b 130
+ *   90      end
+ *
+ * Commands: play/pause a|b, tempo a|b bpm, transpose a|b semitones, jump a|b sequence-index,
+ * volume a|b 0-48, crossfade 0-96, curve 0-4, sync a|b row|beat|pattern, end.
+ *
+ * Usage: OfflineRender out.wav moduleA [moduleB [script]] [-seconds n]
+ */
+public class OfflineRender {
+
+	MasterMixer mixer;
+	PortaMod[] decks;
+	int curve = 0;
+	int crossfade = Crossfader.CENTRE;
+	int[] faders = { 48, 48 };
+	int[] levels = new int[2];
+	List<ScriptEvent> script = new ArrayList<ScriptEvent>();
+
+	long framesWritten = 0;
+	long renderNanos = 0;
+
+	static class ScriptEvent {
+		long frame;
+		String command;
+		String[] args;
+	}
+
+	public OfflineRender(PortaMod a, PortaMod b) {
+		decks = new PortaMod[] { a, b };
+		mixer = new MasterMixer(a, b);
+	}
+
+	public boolean load(int deck, String path) {
+		synchronized (decks[deck]) {
+			decks[deck].doModLoad(path, false, 64);
+		}
+		return decks[deck].loadSuccess > 0;
+	}
+
+	public void loadScript(File f) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			int lineno = 0;
+			while ((line = in.readLine()) != null) {
+				lineno++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				if (parts.length < 2) {
+					throw new IOException(f.getName() + ":" + lineno + ": expected '<seconds> <command> [args]'");
+				}
+				ScriptEvent e = new ScriptEvent();
+				e.frame = (long) (Double.parseDouble(parts[0]) * MasterMixer.SAMPLE_RATE);
+				e.command = parts[1].toLowerCase();
+				e.args = new String[parts.length - 2];
+				System.arraycopy(parts, 2, e.args, 0, e.args.length);
+				script.add(e);
+			}
+		} finally {
+			in.close();
+		}
+		// stable, so moves at the same time keep the order they were written in
+		Collections.sort(script, new Comparator<ScriptEvent>() {
+			public int compare(ScriptEvent x, ScriptEvent y) {
+				return x.frame < y.frame ? -1 : (x.frame > y.frame ? 1 : 0);
+			}
+		});
+	}
+
+	/**
+	 * Renders until the script says end, or for the given number of seconds if it doesn't.
+	 * Returns the number of frames written.
+	 */
+	public long render(File out, double seconds) throws IOException {
+		long total = (long) (seconds * MasterMixer.SAMPLE_RATE);
+		byte[] block = new byte[MasterMixer.BLOCK_FRAMES * 4];
+		byte[] mono = new byte[MasterMixer.BLOCK_FRAMES * 2];
+		OutputStream wav = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+		writeHeader(wav, 0);
+		applyLevels();
+		int next = 0;
+		long frame = 0;
+		long started = System.nanoTime();
+		try {
+			while (frame < total) {
+				// run every move that's due, then render up to the next one so it lands on its frame
+				while (next < script.size() && script.get(next).frame <= frame) {
+					if (!run(script.get(next))) {
+						total = frame;
+						break;
+					}
+					next++;
+				}
+				if (frame >= total) {
+					break;
+				}
+				long until = total;
+				if (next < script.size() && script.get(next).frame < until) {
+					until = script.get(next).frame;
+				}
+				int count = (int) Math.min(MasterMixer.BLOCK_FRAMES, until - frame);
+				mixer.mix(block, count);
+				// keep the FOH side only
+				for (int i = 0, o = 0; i < count * 4; i += 4) {
+					mono[o++] = block[i];
+					mono[o++] = block[i + 1];
+				}
+				wav.write(mono, 0, count * 2);
+				frame += count;
+			}
+		} finally {
+			wav.close();
+		}
+		renderNanos = System.nanoTime() - started;
+		framesWritten = frame;
+		patchHeader(out, frame);
+		return frame;
+	}
+
+	boolean run(ScriptEvent e) {
+		String c = e.command;
+		if (c.equals("end")) {
+			return false;
+		}
+		if (c.equals("crossfade")) {
+			crossfade = Integer.parseInt(e.args[0]);
+			applyLevels();
+			return true;
+		}
+		if (c.equals("curve")) {
+			curve = Integer.parseInt(e.args[0]);
+			applyLevels();
+			return true;
+		}
+		int deck = e.args[0].equalsIgnoreCase("b") ? MasterMixer.DECK_B : MasterMixer.DECK_A;
+		if (c.equals("play")) {
+			mixer.play(deck);
+		} else if (c.equals("pause")) {
+			mixer.pause(deck);
+		} else if (c.equals("tempo")) {
+			mixer.setTempo(deck, Integer.parseInt(e.args[1]));
+		} else if (c.equals("transpose")) {
+			mixer.setTranspose(deck, Integer.parseInt(e.args[1]));
+		} else if (c.equals("jump")) {
+			mixer.setNextSequence(deck, Integer.parseInt(e.args[1]), 0);
+		} else if (c.equals("volume")) {
+			faders[deck] = Integer.parseInt(e.args[1]);
+			applyLevels();
+		} else if (c.equals("sync")) {
+			// the deck named is the one that follows
+			String b = e.args.length > 1 ? e.args[1] : "pattern";
+			int boundary = b.equals("row") ? SyncScheduler.ROW : (b.equals("beat") ? SyncScheduler.BEAT : SyncScheduler.PATTERN);
+			mixer.setTempo(deck, decks[1 - deck].getTempo());
+			mixer.sync.arm(1 - deck, boundary);
+		} else {
+			System.err.println("OfflineRender: unknown script command '" + c + "', skipping");
+		}
+		return true;
+	}
+
+	void applyLevels() {
+		Crossfader.levels(curve, crossfade, faders[0], faders[1], levels);
+		mixer.setGains(MasterMixer.DECK_A, levels[0] / 64f, 0f);
+		mixer.setGains(MasterMixer.DECK_B, levels[1] / 64f, 0f);
+	}
+
+	public double getSamplesPerSecond() {
+		return renderNanos > 0 ? framesWritten * 1e9 / renderNanos : 0;
+	}
+
+	public double getRealtimeFactor() {
+		return getSamplesPerSecond() / MasterMixer.SAMPLE_RATE;
+	}
+
+	static void writeHeader(OutputStream out, long frames) throws IOException {
+		long data = frames * 2;
+		out.write(new byte[] { 'R', 'I', 'F', 'F' });
+		writeInt(out, (int) (36 + data));
+		out.write(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+		writeInt(out, 16);
+		writeShort(out, 1); // PCM
+		writeShort(out, 1); // mono
+		writeInt(out, MasterMixer.SAMPLE_RATE);
+		writeInt(out, MasterMixer.SAMPLE_RATE * 2);
+		writeShort(out, 2);
+		writeShort(out, 16);
+		out.write(new byte[] { 'd', 'a', 't', 'a' });
+		writeInt(out, (int) data);
+	}
+
+	static void patchHeader(File f, long frames) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			long data = frames * 2;
+			raf.seek(4);
+			raf.writeInt(Integer.reverseBytes((int) (36 + data)));
+			raf.seek(40);
+			raf.writeInt(Integer.reverseBytes((int) data));
+		} finally {
+			raf.close();
+		}
+	}
+
+	static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >> 8) & 0xFF);
+		out.write((v >> 16) & 0xFF);
+		out.write((v >> 24) & 0xFF);
+	}
+
+	static void writeShort(OutputStream out, int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >> 8) & 0xFF);
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> files = new ArrayList<String>();
+		double seconds = -1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-seconds") && i + 1 < args.length) {
+				seconds = Double.parseDouble(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.size() < 2) {
+			System.err.println("Usage: OfflineRender out.wav moduleA [moduleB [script]] [-seconds n]");
+			System.exit(1);
+		}
+
+		// PortaMod wants a PApplet to hang off. This one is never started, and HeadlessHost makes
+		// it without AWT, so rendering works with no display or with java.awt.headless=true.
+		PApplet host = HeadlessHost.create();
+		OfflineRender r = new OfflineRender(new PortaMod(host), new PortaMod(host));
+
+		if (!r.load(MasterMixer.DECK_A, files.get(1))) {
+			System.err.println("Couldn't load " + files.get(1));
+			System.exit(1);
+		}
+		boolean mix = files.size() > 2;
+		if (mix && !r.load(MasterMixer.DECK_B, files.get(2))) {
+			System.err.println("Couldn't load " + files.get(2));
+			System.exit(1);
+		}
+		if (files.size() > 3) {
+			r.loadScript(new File(files.get(3)));
+		} else {
+			// no script: deck A on its own at full fader, hard over to A
+			r.crossfade = 0;
+			r.mixer.play(MasterMixer.DECK_A);
+		}
+		if (seconds < 0) {
+			seconds = r.decks[0].songLength;
+			if (mix && r.decks[1].songLength > seconds) {
+				seconds = r.decks[1].songLength;
+			}
+		}
+
+		long frames = r.render(new File(files.get(0)), seconds);
+		System.out.println("Rendered " + frames + " frames (" + (frames / MasterMixer.SAMPLE_RATE) + "s) to " + files.get(0));
+		System.out.println("Throughput: " + Math.round(r.getSamplesPerSecond()) + " samples/s, "
+				+ Math.round(r.getRealtimeFactor() * 10) / 10.0 + "x realtime");
+	}
+}
@@ -0,0 +1,243 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A deck's playlist, with no widgets in it. Whatever is showing it (PlaylistView in the GUI)
+ * reads it, and watches version to know when it has changed.
+ *
+ * Every entry gets an id when it's added. The id stays the same until the entry is removed and
+ * is never handed out again, so it can be kept in place of a position that goes stale as soon
+ * as the list changes. Entries live in arrays indexed by id and are kept in order by next/prev
+ * links, so appending, removing and moving an entry are all constant time. The same path can
+ * be in the list any number of times.
+ *
+ * Positions are worked out from the links when they're first asked for after a remove or a
+ * move - one pass over the list, however many changes there were - and are array lookups from
+ * then on. Appends keep them up to date, so an import of thousands of entries never needs one.
+ *
+ * Not thread safe: the GUI only touches it from the animation thread - drops, file choosers,
+ * imports and folder changes come from other threads, so they're queued and added in draw() -
+ * and the headless engine from its control thread.
+ */
+public class Playlist {
+
+	static final int NONE = -1;
+
+	// by id
+	String[] paths = new String[64];
+	String[] texts = new String[64];
+	int[] next = new int[64];
+	int[] prev = new int[64];
+	// the next entry with the same path, NONE at the end of the chain
+	int[] samePath = new int[64];
+	int ids = 0;
+
+	int head = NONE, tail = NONE;
+	int size = 0;
+	// the first entry for each path; the rest follow samePath
+	final Map<String, Integer> byPath = new HashMap<String, Integer>();
+
+	// position -> id and id -> position, rebuilt when stale
+	int[] order = new int[64];
+	int[] positions = new int[64];
+	boolean stale = false;
+
+	// goes up with every change, entry text included
+	int version = 0;
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Append path, shown as text, and return its id.
+	 */
+	public int add(String path, String text) {
+		if (ids == paths.length) {
+			int n = ids * 2;
+			paths = Arrays.copyOf(paths, n);
+			texts = Arrays.copyOf(texts, n);
+			next = Arrays.copyOf(next, n);
+			prev = Arrays.copyOf(prev, n);
+			samePath = Arrays.copyOf(samePath, n);
+			positions = Arrays.copyOf(positions, n);
+		}
+		int id = ids++;
+		paths[id] = path;
+		texts[id] = text;
+		link(id, tail, NONE);
+		Integer first = byPath.put(path, id);
+		samePath[id] = first != null ? first.intValue() : NONE;
+		// appending leaves every other position where it was, so no rebuild for this one
+		if (!stale) {
+			if (size > order.length) {
+				order = Arrays.copyOf(order, order.length * 2);
+			}
+			order[size - 1] = id;
+			positions[id] = size - 1;
+		}
+		version++;
+		return id;
+	}
+
+	public void remove(int id) {
+		if (!contains(id)) {
+			return;
+		}
+		// taking the last one off leaves every other position as it was
+		boolean last = next[id] == NONE;
+		unlink(id);
+		// out of the same-path chain, which is rarely more than one long
+		String path = paths[id];
+		int first = byPath.get(path).intValue();
+		if (first == id) {
+			if (samePath[id] == NONE) {
+				byPath.remove(path);
+			} else {
+				byPath.put(path, samePath[id]);
+			}
+		} else {
+			int p = first;
+			while (samePath[p] != id) {
+				p = samePath[p];
+			}
+			samePath[p] = samePath[id];
+		}
+		paths[id] = null;
+		texts[id] = null;
+		stale |= !last;
+		version++;
+	}
+
+	/**
+	 * Move an entry so it ends up at position (clamped to the list).
+	 */
+	public void move(int id, int position) {
+		int from = positionOf(id);
+		position = Math.max(0, Math.min(size - 1, position));
+		if (from == NONE || from == position) {
+			return;
+		}
+		// whoever is at position now ends up next to it, on the side it came from
+		int target = idAt(position);
+		unlink(id);
+		if (position > from) {
+			link(id, target, next[target]);
+		} else {
+			link(id, prev[target], target);
+		}
+		stale = true;
+		version++;
+	}
+
+	public void clear() {
+		while (head != NONE) {
+			remove(head);
+		}
+	}
+
+	public boolean contains(int id) {
+		return id >= 0 && id < ids && paths[id] != null;
+	}
+
+	public String getPath(int id) {
+		return paths[id];
+	}
+
+	public String getText(int id) {
+		return texts[id];
+	}
+
+	public void setText(int id, String text) {
+		if (contains(id)) {
+			texts[id] = text;
+			version++;
+		}
+	}
+
+	/**
+	 * The id at position, or NONE if there's nothing there.
+	 */
+	public int idAt(int position) {
+		if (position < 0 || position >= size) {
+			return NONE;
+		}
+		rebuild();
+		return order[position];
+	}
+
+	/**
+	 * Where id is in the list, or NONE if it has been removed.
+	 */
+	public int positionOf(int id) {
+		if (!contains(id)) {
+			return NONE;
+		}
+		rebuild();
+		return positions[id];
+	}
+
+	// The path at position, or null
+	public String pathAt(int position) {
+		int id = idAt(position);
+		return id == NONE ? null : paths[id];
+	}
+
+	/**
+	 * The first entry with path, or NONE. firstWith/nextWith walk every entry for a path.
+	 */
+	public int firstWith(String path) {
+		Integer id = byPath.get(path);
+		return id != null ? id.intValue() : NONE;
+	}
+
+	public int nextWith(int id) {
+		return samePath[id];
+	}
+
+	void link(int id, int after, int before) {
+		prev[id] = after;
+		next[id] = before;
+		if (after == NONE) {
+			head = id;
+		} else {
+			next[after] = id;
+		}
+		if (before == NONE) {
+			tail = id;
+		} else {
+			prev[before] = id;
+		}
+		size++;
+	}
+
+	void unlink(int id) {
+		if (prev[id] == NONE) {
+			head = next[id];
+		} else {
+			next[prev[id]] = next[id];
+		}
+		if (next[id] == NONE) {
+			tail = prev[id];
+		} else {
+			prev[next[id]] = prev[id];
+		}
+		size--;
+	}
+
+	void rebuild() {
+		if (!stale) {
+			return;
+		}
+		if (order.length < size) {
+			order = new int[Math.max(size, order.length * 2)];
+		}
+		int p = 0;
+		for (int id = head; id != NONE; id = next[id]) {
+			order[p] = id;
+			positions[id] = p++;
+		}
+		stale = false;
+	}
+}
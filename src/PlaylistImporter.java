@@ -0,0 +1,220 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Reads .m3u, .m3u8 and .pls playlists in the background and hands back the modules in them,
+ * in the order the playlist has them, as they're found.
+ *
+ * Each import gets a thread of its own that reads the file a line at a time, so a playlist of
+ * thousands of tunes starts turning up straight away instead of after the whole file (and every
+ * header in it) has been gone through. Paths are resolved against the folder the playlist is in
+ * unless they're absolute or file: URLs, and each one is handed to a shared pool to be
+ * headerChecked, through the ModuleIndex, by a worker with its own PortaMod. At most WINDOW
+ * entries per import are out being checked at once: the reader waits on the oldest before
+ * reading more, so entries come out in playlist order however the checks finish, and a huge
+ * file never queues up more than that.
+ *
+ * Whoever owns the playlist picks entries up with poll(), same as FolderWatcher. Anything that
+ * doesn't exist or doesn't pass headerCheck is skipped.
+ */
+public class PlaylistImporter {
+
+	// entries per import being checked at once, and how far the reader gets ahead of the oldest
+	static final int WINDOW = 64;
+	// header checks are mostly waiting on the disk, so a few more than there are cores
+	static final int THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static class Entry {
+		// 0 for deck A, 1 for deck B
+		public final int deck;
+		public final String path;
+		public final String text;
+
+		Entry(int deck, String path, String text) {
+			this.deck = deck;
+			this.path = path;
+			this.text = text;
+		}
+	}
+
+	final PApplet host;
+	final ModuleIndex index;
+	final ForkJoinPool pool = new ForkJoinPool(THREADS);
+	final ConcurrentLinkedQueue<Entry> found = new ConcurrentLinkedQueue<Entry>();
+	final AtomicInteger running = new AtomicInteger();
+	volatile boolean stopped = false;
+
+	final ThreadLocal<PortaMod> probe = new ThreadLocal<PortaMod>() {
+		protected PortaMod initialValue() {
+			return new PortaMod(host);
+		}
+	};
+
+	public PlaylistImporter(PApplet host, ModuleIndex index) {
+		this.host = host;
+		this.index = index;
+	}
+
+	public static boolean isPlaylist(String path) {
+		String p = path.toLowerCase();
+		return p.endsWith(".m3u") || p.endsWith(".m3u8") || p.endsWith(".pls");
+	}
+
+	/**
+	 * Start importing the playlist at path into deck 0 or 1. Returns straight away.
+	 */
+	public void start(final int deck, final String path) {
+		running.incrementAndGet();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					read(deck, new File(path));
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		}, "Chipdisco playlist import");
+		t.setDaemon(true);
+		t.setPriority(Thread.NORM_PRIORITY - 1);
+		t.start();
+	}
+
+	/**
+	 * The next module from an import, or null if there isn't one yet.
+	 */
+	public Entry poll() {
+		return found.poll();
+	}
+
+	public boolean isBusy() {
+		return running.get() > 0;
+	}
+
+	public void shutdown() {
+		stopped = true;
+		pool.shutdownNow();
+	}
+
+	void read(int deck, File list) {
+		File base = list.getAbsoluteFile().getParentFile();
+		boolean pls = list.getName().toLowerCase().endsWith(".pls");
+		ArrayDeque<Future<Entry>> window = new ArrayDeque<Future<Entry>>();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(list), UTF8));
+			try {
+				String line;
+				while (!stopped && (line = in.readLine()) != null) {
+					String entry = pls ? plsEntry(line) : m3uEntry(line);
+					String path = entry != null ? resolve(base, entry) : null;
+					if (path == null) {
+						continue;
+					}
+					window.add(pool.submit(check(deck, path)));
+					if (window.size() >= WINDOW) {
+						emit(window.poll());
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("PlaylistImporter: couldn't read " + list + " (" + e + ")");
+		}
+		while (!window.isEmpty() && !stopped) {
+			emit(window.poll());
+		}
+		index.save();
+	}
+
+	Callable<Entry> check(final int deck, final String path) {
+		return new Callable<Entry>() {
+			public Entry call() {
+				File f = new File(path);
+				if (!f.isFile() || !index.check(probe.get(), path)) {
+					return null;
+				}
+				return new Entry(deck, path, f.getName());
+			}
+		};
+	}
+
+	// Wait for the oldest check and pass its module on, if it was one
+	void emit(Future<Entry> check) {
+		try {
+			Entry e = check.get();
+			if (e != null) {
+				found.add(e);
+			}
+		} catch (Exception e) {
+			// shut down underneath us, or the check blew up - either way that one's skipped
+		}
+	}
+
+	// An m3u line is a path unless it's blank or a #comment/#EXTINF
+	static String m3uEntry(String line) {
+		line = line.trim();
+		// a byte order mark on the first line, from editors that save m3u8 that way
+		if (line.length() > 0 && line.charAt(0) == '\uFEFF') {
+			line = line.substring(1);
+		}
+		if (line.length() == 0 || line.charAt(0) == '#') {
+			return null;
+		}
+		return line;
+	}
+
+	// In a pls only FileN=path lines are entries; titles, lengths and [playlist] are skipped
+	static String plsEntry(String line) {
+		line = line.trim();
+		int eq = line.indexOf('=');
+		if (eq < 5 || !line.regionMatches(true, 0, "File", 0, 4)) {
+			return null;
+		}
+		String value = line.substring(eq + 1).trim();
+		return value.length() > 0 ? value : null;
+	}
+
+	// The file an entry means, or null for streams and anything else that isn't a local file
+	static String resolve(File base, String entry) {
+		if (entry.regionMatches(true, 0, "file:", 0, 5)) {
+			try {
+				return new File(new URI(entry)).getPath();
+			} catch (Exception e) {
+				return null;
+			}
+		}
+		if (entry.indexOf("://") > 0) {
+			return null;
+		}
+		// playlists written on Windows, read somewhere else
+		if (File.separatorChar == '/' && entry.indexOf('/') < 0) {
+			entry = entry.replace('\\', '/');
+		}
+		File f = new File(entry);
+		if (!f.isAbsolute()) {
+			f = new File(base, entry);
+		}
+		try {
+			return f.toPath().normalize().toString();
+		} catch (InvalidPathException e) {
+			// a NUL or some such in a mangled line: skip that entry, not the rest of the playlist
+			return null;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+import processing.core.PApplet;
+import processing.core.PFont;
+
+/**
+ * Draws a Playlist straight onto the sketch, one row per visible entry, in place of a ControlP5
+ * ListBox that kept a widget for every entry and updated them all each frame.
+ *
+ * Only the rows that fit are ever touched: the view keeps the position of the top row, and
+ * each row it draws is an idAt() lookup in the model, so a frame costs the same with ten
+ * entries or a hundred thousand. It draws nothing at all unless the list, the scroll position,
+ * the selection or the playing entry has changed since last time (or draw() has put the
+ * backdrop back over it).
+ *
+ * Click to select, double click to load (the sketch decides what a click means), drag an entry
+ * to move it, wheel or drag the bar on the right to scroll.
+ */
+public class PlaylistView {
+
+	static final int ROW_HEIGHT = 14;
+	static final int SCROLLBAR = 8;
+	// the shortest the scrollbar thumb gets, however long the list
+	static final int MIN_THUMB = 12;
+
+	final PApplet p;
+	final Playlist playlist;
+	public final int x, y, w, h;
+	final int rows;
+	final PFont font;
+	int foreground = 0xffffffff;
+	int active = 0xff808080;
+
+	int top = 0;
+	int selected = Playlist.NONE;
+	int playing = Playlist.NONE;
+
+	// what the last draw showed
+	int drawnVersion = -1;
+	int drawnTop = -1;
+	int drawnSelected = Playlist.NONE;
+	int drawnPlaying = Playlist.NONE;
+	int drawnForeground, drawnActive;
+
+	// the entry the mouse went down on, for dragging it somewhere else; or the scrollbar
+	int pressed = Playlist.NONE;
+	boolean scrolling = false;
+
+	public PlaylistView(PApplet p, Playlist playlist, PFont font, int x, int y, int w, int h) {
+		this.p = p;
+		this.playlist = playlist;
+		this.font = font;
+		this.x = x;
+		this.y = y;
+		this.w = w;
+		this.h = h;
+		rows = h / ROW_HEIGHT;
+	}
+
+	public void setColours(int foreground, int active) {
+		this.foreground = foreground;
+		this.active = active;
+	}
+
+	public int getSelected() {
+		return playlist.contains(selected) ? selected : Playlist.NONE;
+	}
+
+	public void setPlaying(int id) {
+		playing = id;
+	}
+
+	public boolean contains(int mx, int my) {
+		return mx >= x && mx < x + w && my >= y && my < y + h;
+	}
+
+	// Entries are scrolled past the top; never so far that the end of the list leaves space at the bottom
+	int maxTop() {
+		return Math.max(0, playlist.size() - rows);
+	}
+
+	public void scroll(int lines) {
+		top = Math.max(0, Math.min(maxTop(), top + lines));
+	}
+
+	// Scroll just far enough to have id on screen
+	public void show(int id) {
+		int pos = playlist.positionOf(id);
+		if (pos == Playlist.NONE) {
+			return;
+		}
+		if (pos < top) {
+			top = pos;
+		} else if (pos >= top + rows) {
+			top = pos - rows + 1;
+		}
+	}
+
+	// The position of the row at my, or NONE below the last entry
+	int positionAt(int my) {
+		int pos = top + (my - y) / ROW_HEIGHT;
+		return pos < playlist.size() ? pos : Playlist.NONE;
+	}
+
+	/**
+	 * The mouse went down at mx, my. Returns the entry it went down on (now selected), or NONE
+	 * for empty space and the scrollbar.
+	 */
+	public int press(int mx, int my) {
+		if (playlist.size() > rows && mx >= x + w - SCROLLBAR) {
+			scrolling = true;
+			drag(mx, my);
+			return Playlist.NONE;
+		}
+		int pos = positionAt(my);
+		if (pos == Playlist.NONE) {
+			return Playlist.NONE;
+		}
+		selected = playlist.idAt(pos);
+		pressed = selected;
+		return selected;
+	}
+
+	public void drag(int mx, int my) {
+		if (scrolling) {
+			// the middle of the thumb follows the mouse
+			float along = (float) (my - y) / h;
+			top = Math.max(0, Math.min(maxTop(), Math.round(along * playlist.size() - rows / 2f)));
+		}
+	}
+
+	/**
+	 * The mouse came up. True if that dropped an entry somewhere new, so positions have changed.
+	 */
+	public boolean release(int mx, int my) {
+		int id = pressed;
+		pressed = Playlist.NONE;
+		scrolling = false;
+		if (id == Playlist.NONE || !contains(mx, my) || !playlist.contains(id)) {
+			return false;
+		}
+		int to = positionAt(my);
+		if (to == Playlist.NONE) {
+			to = playlist.size() - 1;
+		}
+		if (to == playlist.positionOf(id)) {
+			return false;
+		}
+		playlist.move(id, to);
+		return true;
+	}
+
+	public boolean needsDraw() {
+		return drawnVersion != playlist.version || drawnTop != top || drawnSelected != selected || drawnPlaying != playing
+				|| drawnForeground != foreground || drawnActive != active;
+	}
+
+	/**
+	 * Draw the visible rows. The caller has put the backdrop back first.
+	 */
+	public void draw() {
+		top = Math.min(top, maxTop());
+		int n = playlist.size();
+		int textW = w - SCROLLBAR - 2;
+		p.noStroke();
+		p.textFont(font);
+		p.clip(x, y, textW, h);
+		for (int r = 0; r < rows && top + r < n; r++) {
+			int id = playlist.idAt(top + r);
+			int ry = y + r * ROW_HEIGHT;
+			if (id == selected) {
+				p.fill(active);
+				p.rect(x, ry, textW, ROW_HEIGHT - 1);
+			}
+			if (id == playing) {
+				p.fill(foreground);
+				p.rect(x, ry, 3, ROW_HEIGHT - 1);
+			}
+			p.fill(255);
+			p.text(playlist.getText(id), x + 5, ry + ROW_HEIGHT - 3);
+		}
+		p.noClip();
+		if (n > rows) {
+			int thumb = Math.max(MIN_THUMB, h * rows / n);
+			int thumbY = y + (h - thumb) * top / maxTop();
+			p.fill(0, 60);
+			p.rect(x + w - SCROLLBAR, y, SCROLLBAR, h);
+			p.fill(foreground);
+			p.rect(x + w - SCROLLBAR, thumbY, SCROLLBAR, thumb);
+		}
+		drawnVersion = playlist.version;
+		drawnTop = top;
+		drawnSelected = selected;
+		drawnPlaying = playing;
+		drawnForeground = foreground;
+		drawnActive = active;
+	}
+}
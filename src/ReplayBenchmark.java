@@ -0,0 +1,214 @@
+import java.util.Arrays;
+
+import processing.core.PApplet;
+import crayolon.portamod.PortaMod;
+
+/**
+ * Micro-benchmarks for the replay and mix hot path, reported in nanoseconds per output sample
+ * so the numbers can be compared across machines and before gigs.
+ *
+ * Give it a few modules - ideally a 4-channel MOD, a big (32-channel) XM and an S3M - and it
+ * times, through the same MasterMixer the app uses:
+ *
+ *   replay     each module on its own deck
+ *   bothdecks  the first two modules playing at once
+ *   tempo      the first module with a tempo and transpose change posted every block
+ *   volume     the first two modules with a doVolume()-style crossfader move every block
+ *   curve      Crossfader.levels() + setGains() on their own, in ns per call, not per sample
+ *
+ * Each case gets warmup rounds first so the JIT has settled, then timed rounds; we print the
+ * median and best. Modules are reloaded between rounds outside the timed section.
+ *
+ * Usage: ReplayBenchmark module [module...] [-rounds n] [-warmup n] [-seconds s]
+ */
+public class ReplayBenchmark {
+
+	int rounds = 10;
+	int warmup = 5;
+	double seconds = 10;
+
+	PortaMod[] decks;
+	MasterMixer mixer;
+	byte[] block = new byte[MasterMixer.BLOCK_FRAMES * 4];
+	int[] levels = new int[2];
+	// everything we render is folded in here so the JIT can't throw the work away
+	long sink = 0;
+
+	interface Case {
+		// render frames worth of audio (or do frames worth of calls) and return how many samples that was
+		long run(long frames);
+	}
+
+	public ReplayBenchmark(PortaMod a, PortaMod b) {
+		decks = new PortaMod[] { a, b };
+		mixer = new MasterMixer(a, b);
+		mixer.setGains(MasterMixer.DECK_A, 0.75f, 0f);
+		mixer.setGains(MasterMixer.DECK_B, 0.75f, 0f);
+	}
+
+	void load(int deck, String path) {
+		synchronized (decks[deck]) {
+			decks[deck].doModLoad(path, false, 64);
+		}
+		if (decks[deck].loadSuccess <= 0) {
+			throw new IllegalArgumentException("Couldn't load " + path);
+		}
+	}
+
+	long renderFor(long frames) {
+		long done = 0;
+		while (done < frames) {
+			int count = (int) Math.min(MasterMixer.BLOCK_FRAMES, frames - done);
+			mixer.mix(block, count);
+			sink += block[0] + block[count * 2];
+			done += count;
+		}
+		return done;
+	}
+
+	void measure(String name, String[] setupA, String[] setupB, Case c) {
+		measure(name, "sample", setupA, setupB, c);
+	}
+
+	/**
+	 * Times one case and prints median/best ns per whatever c.run() counts - samples, or calls
+	 * for cases that don't render. setup runs before every round, outside the timer.
+	 */
+	void measure(String name, String unit, String[] setupA, String[] setupB, Case c) {
+		long frames = (long) (seconds * MasterMixer.SAMPLE_RATE);
+		double[] results = new double[rounds];
+		for (int r = -warmup; r < rounds; r++) {
+			prepare(setupA, setupB);
+			long start = System.nanoTime();
+			long samples = c.run(frames);
+			long elapsed = System.nanoTime() - start;
+			if (r >= 0) {
+				results[r] = (double) elapsed / samples;
+			}
+		}
+		Arrays.sort(results);
+		String line = String.format("%-32s %10.2f ns/%s (median)  %10.2f ns/%s (best)",
+				name, results[rounds / 2], unit, results[0], unit);
+		// realtime only means something when what was counted is samples
+		if (unit.equals("sample")) {
+			line += String.format("  %8.1fx realtime", 1e9 / (results[rounds / 2] * MasterMixer.SAMPLE_RATE));
+		}
+		System.out.println(line);
+	}
+
+	void prepare(String[] a, String[] b) {
+		mixer.pause(MasterMixer.DECK_A);
+		mixer.pause(MasterMixer.DECK_B);
+		if (a != null) {
+			load(MasterMixer.DECK_A, a[0]);
+			mixer.play(MasterMixer.DECK_A);
+		}
+		if (b != null) {
+			load(MasterMixer.DECK_B, b[0]);
+			mixer.play(MasterMixer.DECK_B);
+		}
+	}
+
+	public void runAll(String[] modules) {
+		System.out.println("ReplayBenchmark: " + rounds + " rounds of " + seconds + "s after " + warmup + " warmup rounds\n");
+
+		for (int i = 0; i < modules.length; i++) {
+			String path = modules[i];
+			measure("replay " + shortName(path), new String[] { path }, null, new Case() {
+				public long run(long frames) {
+					return renderFor(frames);
+				}
+			});
+		}
+
+		String first = modules[0];
+		String second = modules.length > 1 ? modules[1] : modules[0];
+
+		measure("bothdecks", new String[] { first }, new String[] { second }, new Case() {
+			public long run(long frames) {
+				return renderFor(frames);
+			}
+		});
+
+		measure("tempo+transpose " + shortName(first), new String[] { first }, null, new Case() {
+			public long run(long frames) {
+				long done = 0;
+				int step = 0;
+				while (done < frames) {
+					// swing the tempo and pitch around every block, like someone riding the faders
+					mixer.setTempo(MasterMixer.DECK_A, 100 + (step % 60));
+					mixer.setTranspose(MasterMixer.DECK_A, (step % 25) - 12);
+					step++;
+					done += renderFor(Math.min(MasterMixer.BLOCK_FRAMES, frames - done));
+				}
+				return done;
+			}
+		});
+
+		measure("volume (crossfader sweep)", new String[] { first }, new String[] { second }, new Case() {
+			public long run(long frames) {
+				long done = 0;
+				int step = 0;
+				while (done < frames) {
+					setLevels(step % (Crossfader.RANGE + 1));
+					step++;
+					done += renderFor(Math.min(MasterMixer.BLOCK_FRAMES, frames - done));
+				}
+				return done;
+			}
+		});
+
+		// nothing is rendered here, so what's counted is calls - one per block in a real set
+		measure("curve (Crossfader+setGains)", "call", null, null, new Case() {
+			public long run(long frames) {
+				for (long i = 0; i < frames; i++) {
+					setLevels((int) (i % (Crossfader.RANGE + 1)));
+					sink += levels[0];
+				}
+				return frames;
+			}
+		});
+
+		System.out.println("\n(sink " + sink + ")");
+	}
+
+	// the doVolume() path, minus the sliders
+	void setLevels(int position) {
+		Crossfader.levels(0, position, 48, 48, levels);
+		mixer.setGains(MasterMixer.DECK_A, levels[0] / 64f, 0f);
+		mixer.setGains(MasterMixer.DECK_B, levels[1] / 64f, 0f);
+	}
+
+	static String shortName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	public static void main(String[] args) {
+		String[] modules = new String[args.length];
+		int count = 0;
+		int rounds = 10, warmup = 5;
+		double seconds = 10;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-rounds") && i + 1 < args.length) {
+				rounds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-warmup") && i + 1 < args.length) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-seconds") && i + 1 < args.length) {
+				seconds = Double.parseDouble(args[++i]);
+			} else {
+				modules[count++] = args[i];
+			}
+		}
+		if (count == 0) {
+			System.err.println("Usage: ReplayBenchmark module [module...] [-rounds n] [-warmup n] [-seconds s]");
+			System.exit(1);
+		}
+		// never started, and needs no display - see HeadlessHost
+		PApplet host = HeadlessHost.create();
+		ReplayBenchmark b = new ReplayBenchmark(new PortaMod(host), new PortaMod(host));
+		b.rounds = Math.max(1, rounds);
+		b.warmup = warmup;
+		b.seconds = seconds;
+		b.runAll(Arrays.copyOf(modules, count));
+	}
+}
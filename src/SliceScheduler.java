@@ -0,0 +1,86 @@
+/**
+ * Slice triggers that land on the grid.
+ *
+ * A slice trigger is a jump to another sequence position. Fired straight at the replayer, it
+ * takes effect on the very next row, so in "Continue" mode the new pattern comes in wherever the
+ * row counter happens to be. With quantizing on, the mixer holds the latest trigger for each
+ * deck and lets it go on the last row before the next beat, bar or pattern boundary, so the jump
+ * lands exactly on it. Triggers arrive through the deck command queues and are released from
+ * the mixer's row tracking, so the UI frame rate has nothing to do with where they land.
+ */
+public class SliceScheduler {
+
+	public static final int NOW = 0;
+	public static final int BEAT = 1;
+	public static final int BAR = 2;
+	public static final int PATTERN = 3;
+
+	static final int BEATS_PER_BAR = 4;
+
+	volatile int quantize = NOW;
+	volatile int rowsPerBeat = 4;
+
+	// audio thread only: the trigger waiting for its boundary, per deck (-1 for none)
+	final int[] pendingTarget = { -1, -1 };
+	final int[] pendingBehaviour = new int[2];
+
+	public void setQuantize(int q) {
+		quantize = Math.max(NOW, Math.min(PATTERN, q));
+	}
+
+	public int getQuantize() {
+		return quantize;
+	}
+
+	public void setRowsPerBeat(int rows) {
+		if (rows > 0) {
+			rowsPerBeat = rows;
+		}
+	}
+
+	// Audio thread: a trigger has come off the queue. lastRow is the row the deck is on, -1 if not playing
+	void trigger(MasterMixer mixer, int deck, int target, int behaviour, int lastRow) {
+		if (quantize == NOW || lastRow < 0) {
+			pendingTarget[deck] = -1;
+			mixer.apply(DeckCommandQueue.NEXT_SEQUENCE, deck, target, behaviour);
+			return;
+		}
+		pendingTarget[deck] = target;
+		pendingBehaviour[deck] = behaviour;
+		// already on the last row before a boundary - go now, or it waits a whole span
+		rowChanged(mixer, deck, lastRow);
+	}
+
+	// Audio thread: the mixer calls this whenever a deck's current row changes
+	void rowChanged(MasterMixer mixer, int deck, int row) {
+		int target = pendingTarget[deck];
+		if (target < 0) {
+			return;
+		}
+		int total = mixer.getDeck(deck).player.ibxm.total_rows;
+		if (total <= 0) {
+			total = 64;
+		}
+		int span = span(quantize, total);
+		if ((row + 1) % span != 0 && row < total - 1) {
+			return;
+		}
+		pendingTarget[deck] = -1;
+		mixer.apply(DeckCommandQueue.NEXT_SEQUENCE, deck, target, pendingBehaviour[deck]);
+	}
+
+	// Audio thread: nothing should carry over onto a newly loaded or stopped deck
+	void cancel(int deck) {
+		pendingTarget[deck] = -1;
+	}
+
+	int span(int q, int totalRows) {
+		if (q == BEAT) {
+			return rowsPerBeat;
+		}
+		if (q == BAR) {
+			return rowsPerBeat * BEATS_PER_BAR;
+		}
+		return totalRows;
+	}
+}
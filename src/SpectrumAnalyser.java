@@ -0,0 +1,221 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A real spectrum view at last: radix-2 FFTs of each deck's output and of the front of house
+ * mix, on a thread of their own so neither the audio nor the animation thread pays for them.
+ *
+ * The mixer copies every block into a Tap - three small float rings, written in place, so the
+ * audio path gains a few stores and no allocation. This thread wakes up rate times a second,
+ * copies the latest FFT_SIZE samples of each source out of the rings, windows and transforms
+ * them, and folds the bins into BANDS log-spaced bands scaled 0..1 over the bottom 72dB.
+ * Band arrays are double-buffered and swapped in whole, so draw() can just read them.
+ *
+ * Every buffer, window and table is allocated up front. With cpuSaver set it's never started.
+ */
+public class SpectrumAnalyser implements Runnable {
+
+	public static final int FFT_SIZE = 1024;
+	public static final int BANDS = 32;
+	// sources
+	public static final int DECK_A = 0;
+	public static final int DECK_B = 1;
+	public static final int MASTER = 2;
+	static final int SOURCES = 3;
+
+	static final float MIN_FREQ = 40f;
+	static final float FLOOR_DB = -72f;
+	// how much of last frame's level a band keeps, so the display falls rather than flickers
+	static final float FALLOFF = 0.8f;
+
+	/**
+	 * What the mixer writes into: the last RING samples of each source, as -1..1 floats.
+	 */
+	public static class Tap {
+		static final int RING = FFT_SIZE * 4;
+		static final int MASK = RING - 1;
+		final float[][] ring = new float[SOURCES][RING];
+		volatile long written = 0;
+
+		// Audio thread: a block of deck A, deck B and FOH samples (16-bit scale, FOH unclipped)
+		void write(int[] a, int[] b, int[] foh, int frames) {
+			long w = written;
+			for (int i = 0; i < frames; i++) {
+				int idx = (int) (w + i) & MASK;
+				ring[DECK_A][idx] = a[i] / 32768f;
+				ring[DECK_B][idx] = b[i] / 32768f;
+				ring[MASTER][idx] = foh[i] / 32768f;
+			}
+			written = w + frames;
+		}
+
+		// Copy the latest out.length samples of source into out. False if there aren't that many yet.
+		boolean read(int source, float[] out) {
+			long w = written;
+			if (w < out.length) {
+				return false;
+			}
+			long start = w - out.length;
+			float[] r = ring[source];
+			for (int i = 0; i < out.length; i++) {
+				out[i] = r[(int) (start + i) & MASK];
+			}
+			return true;
+		}
+	}
+
+	public final Tap tap = new Tap();
+
+	volatile int rate;
+	volatile boolean running = false;
+	Thread thread;
+
+	final float[] window = new float[FFT_SIZE];
+	final float[] re = new float[FFT_SIZE];
+	final float[] im = new float[FFT_SIZE];
+	final float[] cos = new float[FFT_SIZE / 2];
+	final float[] sin = new float[FFT_SIZE / 2];
+	final int[] bitrev = new int[FFT_SIZE];
+	// first bin of each band; the last entry is one past the end
+	final int[] bandStart = new int[BANDS + 1];
+
+	// two band arrays per source: one published, one being worked on
+	final float[][][] bandBuffers = new float[SOURCES][2][BANDS];
+	final int[] back = new int[SOURCES];
+	final AtomicReferenceArray<float[]> published = new AtomicReferenceArray<float[]>(SOURCES);
+
+	public SpectrumAnalyser(int rate) {
+		this.rate = Math.max(1, rate);
+		int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+		for (int i = 0; i < FFT_SIZE; i++) {
+			// Hann
+			window[i] = 0.5f - 0.5f * (float) Math.cos(2 * Math.PI * i / (FFT_SIZE - 1));
+			bitrev[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+		for (int i = 0; i < FFT_SIZE / 2; i++) {
+			cos[i] = (float) Math.cos(2 * Math.PI * i / FFT_SIZE);
+			sin[i] = (float) -Math.sin(2 * Math.PI * i / FFT_SIZE);
+		}
+		// log-spaced bands from MIN_FREQ up to Nyquist, at least one bin each
+		float nyquist = MasterMixer.SAMPLE_RATE / 2f;
+		float binHz = (float) MasterMixer.SAMPLE_RATE / FFT_SIZE;
+		int last = 1;
+		for (int b = 0; b <= BANDS; b++) {
+			float f = MIN_FREQ * (float) Math.pow(nyquist / MIN_FREQ, (float) b / BANDS);
+			int bin = Math.min(FFT_SIZE / 2, Math.max(last, Math.round(f / binHz)));
+			bandStart[b] = bin;
+			last = b == 0 ? bin : bin + 1;
+		}
+		for (int s = 0; s < SOURCES; s++) {
+			published.set(s, bandBuffers[s][0]);
+			back[s] = 1;
+		}
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, "Chipdisco spectrum");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public void setRate(int perSecond) {
+		rate = Math.max(1, perSecond);
+	}
+
+	public void run() {
+		while (running) {
+			long started = System.nanoTime();
+			for (int s = 0; s < SOURCES; s++) {
+				analyse(s);
+			}
+			long wait = 1000L / rate - (System.nanoTime() - started) / 1000000L;
+			try {
+				Thread.sleep(Math.max(1, wait));
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	void analyse(int source) {
+		if (!tap.read(source, re)) {
+			return;
+		}
+		for (int i = 0; i < FFT_SIZE; i++) {
+			re[i] *= window[i];
+			im[i] = 0f;
+		}
+		fft();
+		float[] last = published.get(source);
+		float[] out = bandBuffers[source][back[source]];
+		// Hann halves the amplitude, and a full-scale sine puts FFT_SIZE/2 into its bin
+		float scale = 4f / FFT_SIZE;
+		for (int b = 0; b < BANDS; b++) {
+			float peak = 0f;
+			for (int k = bandStart[b]; k < bandStart[b + 1] || k == bandStart[b]; k++) {
+				float m = (re[k] * re[k] + im[k] * im[k]);
+				if (m > peak) {
+					peak = m;
+				}
+			}
+			float db = 10f * (float) Math.log10(peak * scale * scale + 1e-12f);
+			float level = 1f - db / FLOOR_DB;
+			if (level < 0f) {
+				level = 0f;
+			} else if (level > 1f) {
+				level = 1f;
+			}
+			out[b] = Math.max(level, last[b] * FALLOFF);
+		}
+		published.set(source, out);
+		back[source] ^= 1;
+	}
+
+	// in-place iterative radix-2 on re/im
+	void fft() {
+		for (int i = 0; i < FFT_SIZE; i++) {
+			int j = bitrev[i];
+			if (j > i) {
+				float t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int size = 2; size <= FFT_SIZE; size <<= 1) {
+			int half = size >> 1;
+			int step = FFT_SIZE / size;
+			for (int start = 0; start < FFT_SIZE; start += size) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k * step];
+					float wi = sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					float tr = re[b] * wr - im[b] * wi;
+					float ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The latest BANDS levels (0..1, low to high) for DECK_A, DECK_B or MASTER. Read, don't keep.
+	 */
+	public float[] getBands(int source) {
+		return published.get(source);
+	}
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * A spare PortaMod that sits behind a deck and takes every load off the UI and MIDI threads.
+ *
+ * After every load, modLoader() asks the standby to preload the following entry on its own
+ * thread. Async loads (modLoaderAsync) go through here too. The loaded PortaMod is handed over
+ * whole when it's wanted and the outgoing one becomes the new spare, so nobody sits there
+ * reading and parsing a file mid-set.
+ *
+ * Only one load is live per deck: asking for a different path cancels whatever was running.
+ */
+public class StandbyDeck {
+
+	final ExecutorService loader;
+	PortaMod spare;
+	// the load the spare is getting, or has got
+	ModLoad current = null;
+
+	public StandbyDeck(PortaMod spare, final String name) {
+		this.spare = spare;
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Chipdisco standby deck " + name);
+				t.setDaemon(true);
+				// below the mixer and the animation thread - this is strictly background work
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Start loading path into the spare and return the handle. If path is already loading (or
+	 * loaded) you get that handle back; anything else in progress is cancelled.
+	 */
+	public ModLoad load(String path) {
+		return load(path, null, 0);
+	}
+
+	/**
+	 * As above, but if mixer's otherDeck has the same module by the time the load runs, share
+	 * its parsed module instead of reading the file again.
+	 */
+	public synchronized ModLoad load(String path, MasterMixer mixer, int otherDeck) {
+		if (current != null && current.path.equals(path) && !current.isCancelled()) {
+			return current;
+		}
+		if (current != null) {
+			current.cancel();
+		}
+		final ModLoad load = new ModLoad(path, mixer, otherDeck);
+		final PortaMod target = spare;
+		current = load;
+		loader.execute(new Runnable() {
+			public void run() {
+				load.run(target);
+			}
+		});
+		return load;
+	}
+
+	public void preload(String path) {
+		load(path);
+	}
+
+	/**
+	 * Hand over the PortaMod that load finished into, keeping outgoing as the new spare.
+	 * Returns null if load isn't this deck's latest or didn't succeed.
+	 */
+	public synchronized PortaMod take(ModLoad load, PortaMod outgoing) {
+		if (load != current || !load.succeeded()) {
+			return null;
+		}
+		PortaMod ready = spare;
+		spare = outgoing;
+		current = null;
+		return ready;
+	}
+
+	/**
+	 * For the blocking modLoader(): if path is being preloaded, wait for it and take it.
+	 * Returns null if we don't have path, in which case the caller just loads it the old way.
+	 */
+	public PortaMod swap(String path, PortaMod outgoing) {
+		ModLoad load;
+		synchronized (this) {
+			load = current;
+		}
+		if (load == null || !load.path.equals(path) || load.isCancelled()) {
+			return null;
+		}
+		try {
+			load.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (!load.succeeded() && load.getError() != null) {
+			System.err.println("StandbyDeck: preload of " + path + " failed (" + load.getError() + ")");
+		}
+		return take(load, outgoing);
+	}
+
+	public void shutdown() {
+		loader.shutdownNow();
+		spare.stop();
+	}
+}
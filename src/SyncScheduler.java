@@ -0,0 +1,153 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+import crayolon.portamod.PortaMod;
+
+/**
+ * Beat sync, done inside the replay loop rather than polled from draw().
+ *
+ * The sync buttons arm it with a master deck and a boundary (row, beat or pattern). The mixer
+ * tells it about every row change it sees, quantum by quantum, and the moment the master lands
+ * on the chosen boundary the other deck's row reset goes straight to its replayer - no waiting
+ * for the next frame, and no chance of stepping over row 0 at high tempos.
+ *
+ * It's row-granular, not sample-exact. The master's row change is only seen at the end of the
+ * quantum it happened in, so up to QUANTUM_FRAMES late, and IBXM takes setNext_row at the end
+ * of the slave's current row, not there and then. So the slave lands on the boundary when its
+ * current row runs out. If that's more than half a master row after the master's boundary, we
+ * aim it that many rows further on, which keeps it within half a row.
+ *
+ * Each time it fires it records two offsets, in frames (positive = slave ahead, negative =
+ * behind). One is how far the slave was from the boundary when it was seen. The other is how
+ * far off it will be when the jump actually lands, by the row lengths measured so far. The
+ * second is the one that says how good the sync was.
+ */
+public class SyncScheduler {
+
+	public static final int ROW = 0;
+	public static final int BEAT = 1;
+	public static final int PATTERN = 2;
+
+	// -1 when nothing is armed, otherwise the master deck
+	final AtomicInteger armedMaster = new AtomicInteger(-1);
+	volatile int armedBoundary = PATTERN;
+	volatile int rowsPerBeat = 4;
+
+	// last result, written by the audio thread
+	volatile int lastMaster = -1;
+	volatile int lastSlave = -1;
+	volatile long lastOffsetFrames = 0;
+	volatile long lastAppliedFrames = 0;
+	volatile int fireCount = 0;
+
+	public void arm(int master, int boundary) {
+		armedBoundary = boundary;
+		armedMaster.set(master);
+	}
+
+	public void disarm() {
+		armedMaster.set(-1);
+	}
+
+	public boolean isArmed(int master) {
+		return armedMaster.get() == master;
+	}
+
+	public void setRowsPerBeat(int rows) {
+		if (rows > 0) {
+			rowsPerBeat = rows;
+		}
+	}
+
+	// Audio thread: the mixer calls this whenever a deck's current row changes
+	void rowChanged(MasterMixer mixer, int deck, int row, long frame) {
+		if (armedMaster.get() != deck) {
+			return;
+		}
+		int boundary = armedBoundary;
+		int span = span(boundary, mixer.getDeck(deck).player.ibxm.total_rows);
+		if (row % span != 0) {
+			return;
+		}
+		if (!armedMaster.compareAndSet(deck, -1)) {
+			return;
+		}
+		int slave = 1 - deck;
+		MasterMixer.MixerDeck s = mixer.decks[slave];
+		PortaMod smod = s.mod;
+		if (smod == null || smod.loadSuccess <= 0 || !s.playing) {
+			return;
+		}
+		int slaveRows = smod.player.ibxm.total_rows;
+		int slaveSpan = span(boundary, slaveRows);
+		int slaveRow = s.lastRow;
+
+		// nearest boundary on the slave - it may be the one we've just passed or the one coming up
+		int rowsPast = slaveRow % slaveSpan;
+		long sinceRow = frame - s.rowStartFrame;
+		long offset;
+		int target;
+		if (rowsPast * 2 < slaveSpan) {
+			offset = rowsPast * (long) s.rowFrames + sinceRow;
+			target = slaveRow - rowsPast;
+		} else {
+			offset = sinceRow - (slaveSpan - rowsPast) * (long) s.rowFrames;
+			target = slaveRow - rowsPast + slaveSpan;
+		}
+
+		// the row change only lands when the slave's current row runs out; by then the master
+		// is that far past its boundary, so go for the row the master will be on
+		long lands = s.rowFrames > 0 ? Math.max(frame, s.rowStartFrame + s.rowFrames) : frame;
+		int masterRowFrames = mixer.decks[deck].rowFrames;
+		int late = masterRowFrames > 0 ? (int) ((lands - frame + masterRowFrames / 2) / masterRowFrames) : 0;
+		target += late;
+		if (target >= slaveRows) {
+			target %= slaveRows > 0 ? slaveRows : 1;
+		}
+		mixer.apply(DeckCommandQueue.NEXT_ROW, slave, target, 0);
+
+		lastMaster = deck;
+		lastSlave = slave;
+		lastOffsetFrames = offset;
+		lastAppliedFrames = frame + late * (long) masterRowFrames - lands;
+		fireCount++;
+	}
+
+	int span(int boundary, int totalRows) {
+		if (boundary == ROW) {
+			return 1;
+		}
+		if (boundary == BEAT) {
+			return rowsPerBeat;
+		}
+		return totalRows > 0 ? totalRows : 64;
+	}
+
+	public int getFireCount() {
+		return fireCount;
+	}
+
+	public long getLastOffsetFrames() {
+		return lastOffsetFrames;
+	}
+
+	public float getLastOffsetMillis() {
+		return lastOffsetFrames * 1000f / MasterMixer.SAMPLE_RATE;
+	}
+
+	// How far off the slave will be when the jump lands - what the sync actually achieved
+	public long getLastAppliedFrames() {
+		return lastAppliedFrames;
+	}
+
+	public float getLastAppliedMillis() {
+		return lastAppliedFrames * 1000f / MasterMixer.SAMPLE_RATE;
+	}
+
+	public int getLastMaster() {
+		return lastMaster;
+	}
+
+	public int getLastSlave() {
+		return lastSlave;
+	}
+}